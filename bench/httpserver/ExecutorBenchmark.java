@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the default pool with virtual threads for handlers which block,
+ * like handlers waiting on a database.
+ *
+ * Usage: ExecutorBenchmark [clients] [requests per client] [handler delay ms]
+ */
+public class ExecutorBenchmark {
+
+  static final int PORT = 18080;
+  static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int delay = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    System.out.println(String.format("%d clients, %d requests each, %d ms handler delay", clients, requests, delay));
+    for (Server.Engine engine : Server.Engine.values()) {
+      for (boolean virtual : new boolean[]{false, true}) {
+        String name = String.format("%-8s %-7s", engine, virtual ? "virtual" : "pool");
+        if (virtual && !virtualThreadsAvailable()) {
+          System.out.println(name + " skipped, virtual threads require Java 21.");
+        } else {
+          run(name, engine, virtual, clients, requests, delay);
+        }
+      }
+    }
+  }
+
+  static void run(String name, Server.Engine engine, boolean virtual, int clients, int requests, int delay) throws Exception {
+    Server server = Server.create(PORT, engine);
+    server.setMaxRequestsPerConnection(Integer.MAX_VALUE);
+    if (virtual) {
+      server.useVirtualThreads();
+    }
+    server.start(req -> {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Responses.json("{\"ok\":true}");
+    });
+    try {
+      CountDownLatch done = new CountDownLatch(clients);
+      AtomicInteger errors = new AtomicInteger();
+      long start = System.nanoTime();
+      for (int i = 0; i < clients; ++i) {
+        new Thread(null, () -> {
+          try (Socket s = new Socket("localhost", PORT)) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            for (int j = 0; j < requests; ++j) {
+              out.write(REQUEST);
+              readResponse(in);
+            }
+          } catch (IOException e) {
+            errors.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }, "client", 1 << 16).start();
+      }
+      done.await();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%s %10.0f req/s %8.2f s %d errors",
+              name, clients * (double) requests / seconds, seconds, errors.get()));
+    } finally {
+      server.stop();
+      Thread.sleep(500);
+    }
+  }
+
+  static boolean virtualThreadsAvailable() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads a response with a Content-Length and discards it.
+   */
+  static void readResponse(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int length = 0;
+    while (true) {
+      int c = in.read();
+      if (c == -1) {
+        throw new IOException("Unexpected end of stream.");
+      }
+      if (c != '\n') {
+        line.append((char) c);
+        continue;
+      }
+      String l = line.toString().trim();
+      line.setLength(0);
+      if (l.isEmpty()) {
+        break;
+      }
+      if (l.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+        length = Integer.parseInt(l.substring(15).trim());
+      }
+    }
+    for (int i = 0; i < length; ++i) {
+      if (in.read() == -1) {
+        throw new IOException("Unexpected end of stream.");
+      }
+    }
+  }
+}
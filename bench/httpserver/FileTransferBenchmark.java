@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a file over loopback with FileChannel.transferTo and with the buffered
+ * copy used for ssl sockets, reporting throughput and cpu time of the sending
+ * thread.
+ *
+ * Usage: FileTransferBenchmark [file size MB] [repetitions]
+ */
+public class FileTransferBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int mb = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int reps = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    File f = File.createTempFile("transfer", ".bin");
+    f.deleteOnExit();
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength((long) mb << 20);
+    }
+    System.out.println(String.format("%d MB file sent %d times", mb, reps));
+    for (int i = 0; i < 2; ++i) {
+      run("transferTo", f, reps, true);
+      run("copy      ", f, reps, false);
+    }
+  }
+
+  static void run(String name, File f, int reps, boolean zeroCopy) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      long total = f.length() * reps;
+      Thread reader = new Thread(() -> {
+        try (SocketChannel ch = SocketChannel.open(server.getLocalAddress())) {
+          ByteBuffer b = ByteBuffer.allocateDirect(1 << 16);
+          long read = 0;
+          while (read < total) {
+            b.clear();
+            int n = ch.read(b);
+            if (n < 0) {
+              break;
+            }
+            read += n;
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+      reader.start();
+      try (SocketChannel ch = server.accept();
+              FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+        ChannelOutput out = zeroCopy ? ChannelOutput.of(ch.socket()) : ChannelOutput.of(ch.socket().getOutputStream());
+        long cpu = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < reps; ++i) {
+          out.transferFrom(file, 0, f.length());
+        }
+        out.flush();
+        reader.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (threads.getCurrentThreadCpuTime() - cpu) / 1e9;
+        double gb = total / (double) (1 << 30);
+        System.out.println(String.format("%s %8.0f MB/s %8.3f cpu s/GB", name, gb * 1024 / seconds, cpuSeconds / gb));
+      }
+    }
+  }
+}
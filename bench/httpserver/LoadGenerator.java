@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a server on a loopback port with keep-alive clients and reports
+ * throughput, latency percentiles and errors, on the console and as json for
+ * comparing runs.
+ *
+ * In the closed mode every connection sends its next request as soon as the
+ * last response arrived. In the open mode requests are due at a constant
+ * rate whether or not the server keeps up, and latency is measured from when
+ * a request was due rather than when it was sent, so a stalled server shows
+ * up in the percentiles instead of just slowing the clients down.
+ *
+ * Usage: LoadGenerator [name=value ...]
+ *   engine       BLOCKING or SELECTOR (BLOCKING)
+ *   handler      file, json or sql (json)
+ *   mode         closed or open (closed)
+ *   connections  concurrent client connections (64)
+ *   rate         requests per second in the open mode (10000)
+ *   duration     seconds measured (10)
+ *   warmup       seconds run before measuring (3)
+ *   size         bytes of the file served by the file handler (16384)
+ *   delay        milliseconds the sql handler waits for its fake query (5)
+ *   out          the json result file (loadgen.json)
+ */
+public class LoadGenerator {
+
+  static final int PORT = 18090;
+  static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1};
+
+  final Map<String, String> config = new HashMap<>();
+  final Histogram latency = new Histogram();
+  final AtomicLong errors = new AtomicLong(), completed = new AtomicLong();
+  volatile boolean measuring = false, running = true;
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator g = new LoadGenerator();
+    g.config.put("engine", "BLOCKING");
+    g.config.put("handler", "json");
+    g.config.put("mode", "closed");
+    g.config.put("connections", "64");
+    g.config.put("rate", "10000");
+    g.config.put("duration", "10");
+    g.config.put("warmup", "3");
+    g.config.put("size", "16384");
+    g.config.put("delay", "5");
+    g.config.put("out", "loadgen.json");
+    for (String a : args) {
+      int eq = a.indexOf('=');
+      if (eq < 0 || !g.config.containsKey(a.substring(0, eq))) {
+        System.err.println("Unknown option: " + a);
+        System.exit(1);
+      }
+      g.config.put(a.substring(0, eq), a.substring(eq + 1));
+    }
+    g.run();
+    System.exit(0);
+  }
+
+  int integer(String name) {
+    return Integer.parseInt(config.get(name));
+  }
+
+  void run() throws Exception {
+    Server server = Server.create(PORT, Server.Engine.valueOf(config.get("engine")));
+    server.setMaxRequestsPerConnection(Integer.MAX_VALUE);
+    server.setIdleTimeout(0);
+    server.start(handler());
+    try {
+      int connections = integer("connections");
+      boolean open = config.get("mode").equals("open");
+      // In the open mode each connection sends every connections:th request.
+      long interval = open ? TimeUnit.SECONDS.toNanos(1) * connections / integer("rate") : 0;
+      CountDownLatch done = new CountDownLatch(connections);
+      long start = System.nanoTime();
+      for (int i = 0; i < connections; ++i) {
+        long first = start + (open ? interval * i / connections : 0);
+        new Thread(null, () -> {
+          try {
+            client(first, interval);
+          } finally {
+            done.countDown();
+          }
+        }, "client", 1 << 16).start();
+      }
+      Thread.sleep(TimeUnit.SECONDS.toMillis(integer("warmup")));
+      measuring = true;
+      long measured = System.nanoTime();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(integer("duration")));
+      measuring = false;
+      double seconds = (System.nanoTime() - measured) / 1e9;
+      running = false;
+      done.await();
+      report(seconds);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Sends requests over one connection until the run ends, reconnecting
+   * after errors.
+   * @param interval the time between requests in the open mode, 0 in the
+   * closed mode
+   */
+  void client(long due, long interval) {
+    while (running) {
+      try (Socket s = new Socket("localhost", PORT)) {
+        s.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        OutputStream out = s.getOutputStream();
+        while (running) {
+          long now = System.nanoTime();
+          if (interval > 0) {
+            if (due > now) {
+              LockSupport.parkNanos(due - now);
+            }
+          } else {
+            due = now;
+          }
+          out.write(REQUEST);
+          int status = readResponse(in);
+          long end = System.nanoTime();
+          if (measuring) {
+            if (status < 200 || status >= 400) {
+              errors.incrementAndGet();
+            } else {
+              latency.record(end - due);
+              completed.incrementAndGet();
+            }
+          }
+          due += interval;
+        }
+      } catch (IOException e) {
+        if (measuring) {
+          errors.incrementAndGet();
+        }
+        due += interval;
+      }
+    }
+  }
+
+  RequestHandler handler() throws IOException {
+    switch (config.get("handler")) {
+      case "file": {
+        File f = File.createTempFile("loadgen", ".html");
+        f.deleteOnExit();
+        byte[] content = new byte[integer("size")];
+        Arrays.fill(content, (byte) 'a');
+        Files.write(f.toPath(), content);
+        return req -> Responses.respond(f);
+      }
+      case "json":
+        return req -> Responses.json(items());
+      case "sql": {
+        int delay = integer("delay");
+        return req -> {
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return Responses.json(items());
+        };
+      }
+      default:
+        throw new IllegalArgumentException("Unknown handler: " + config.get("handler"));
+    }
+  }
+
+  static JsonWriter items() {
+    JsonWriter json = new JsonWriter();
+    json.beginArray();
+    for (int i = 0; i < 10; ++i) {
+      json.beginObject().name("id").value(i).name("name").value("Item " + i).name("price").value(i * 1.5).endObject();
+    }
+    return json.endArray();
+  }
+
+  void report(double seconds) throws IOException {
+    long[] q = latency.quantiles(QUANTILES);
+    long n = completed.get();
+    double throughput = n / seconds;
+    double mean = n == 0 ? 0 : latency.sum() / (double) n / 1000;
+    System.out.println(String.format("%s %s %s, %s connections%s, %s s",
+            config.get("engine"), config.get("handler"), config.get("mode"), config.get("connections"),
+            config.get("mode").equals("open") ? " at " + config.get("rate") + " req/s" : "", config.get("duration")));
+    System.out.println(String.format("%10.0f req/s %8d requests %6d errors", throughput, n, errors.get()));
+    System.out.println(String.format("latency us: mean %.0f p50 %d p90 %d p99 %d p99.9 %d max %d",
+            mean, q[0] / 1000, q[1] / 1000, q[2] / 1000, q[3] / 1000, q[4] / 1000));
+    try (OutputStream out = new FileOutputStream(config.get("out"))) {
+      JsonWriter json = new JsonWriter(out);
+      json.beginObject().name("config").beginObject();
+      for (Map.Entry<String, String> e : new java.util.TreeMap<>(config).entrySet()) {
+        json.name(e.getKey()).value(e.getValue());
+      }
+      json.endObject()
+              .name("seconds").value(seconds)
+              .name("requests").value(n)
+              .name("errors").value(errors.get())
+              .name("throughput").value(throughput)
+              .name("latencyMicros").beginObject()
+              .name("mean").value(mean)
+              .name("p50").value(q[0] / 1000)
+              .name("p90").value(q[1] / 1000)
+              .name("p99").value(q[2] / 1000)
+              .name("p999").value(q[3] / 1000)
+              .name("max").value(q[4] / 1000)
+              .endObject()
+              .endObject();
+      json.flush();
+    }
+  }
+
+  /**
+   * Reads a response with a Content-Length and discards its body.
+   * @return the status code
+   */
+  static int readResponse(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int status = -1;
+    long length = 0;
+    while (true) {
+      int c = in.read();
+      if (c == -1) {
+        throw new IOException("Unexpected end of stream.");
+      }
+      if (c != '\n') {
+        line.append((char) c);
+        continue;
+      }
+      String l = line.toString().trim();
+      line.setLength(0);
+      if (l.isEmpty()) {
+        break;
+      }
+      if (status < 0) {
+        status = Integer.parseInt(l.substring(9, 12));
+      } else if (l.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+        length = Long.parseLong(l.substring(15).trim());
+      }
+    }
+    while (length > 0) {
+      long n = in.skip(length);
+      if (n <= 0) {
+        if (in.read() == -1) {
+          throw new IOException("Unexpected end of stream.");
+        }
+        n = 1;
+      }
+      length -= n;
+    }
+    return status;
+  }
+}
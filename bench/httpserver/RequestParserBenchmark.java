@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import util.HttpHeaders;
+import util.io.CappedInputStream;
+import util.io.Streams;
+
+/**
+ * Parses a typical browser request with Request and with the eager string
+ * based parsing Request used before, reporting time and allocated bytes per
+ * request. Each parsed request has its path and one header read, like a
+ * static file handler does.
+ *
+ * Usage: RequestParserBenchmark [iterations]
+ */
+public class RequestParserBenchmark {
+
+  static final byte[] REQUEST = ("GET /static/js/app.js?v=12 HTTP/1.1\r\n"
+          + "Host: localhost:8080\r\n"
+          + "Connection: keep-alive\r\n"
+          + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+          + "Accept: */*\r\n"
+          + "Referer: http://localhost:8080/\r\n"
+          + "Accept-Encoding: gzip, deflate, br\r\n"
+          + "Accept-Language: en-US,en;q=0.9,sv;q=0.8\r\n"
+          + "Cookie: session=8f14e45fceea167a5a36dedd4bea2543; theme=dark; _ga=GA1.1.123456789.1700000000\r\n"
+          + "\r\n").getBytes();
+
+  interface Parser {
+    String parse(InputStream in) throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    System.out.println(String.format("%d requests of %d bytes", iterations, REQUEST.length));
+    for (int i = 0; i < 3; ++i) {
+      run("Request", in -> {
+        Request req = new Request(in);
+        return req.path + req.headers.get("Accept-Encoding");
+      }, iterations);
+      run("eager  ", in -> {
+        Legacy req = new Legacy(in);
+        return req.path + req.headers.get("Accept-Encoding");
+      }, iterations);
+    }
+  }
+
+  static void run(String name, Parser parser, int iterations) throws IOException {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long allocated = threads.getThreadAllocatedBytes(id);
+    long start = System.nanoTime();
+    int sink = 0;
+    for (int i = 0; i < iterations; ++i) {
+      sink += parser.parse(new ByteArrayInputStream(REQUEST)).length();
+    }
+    double ns = (System.nanoTime() - start) / (double) iterations;
+    double bytes = (threads.getThreadAllocatedBytes(id) - allocated) / (double) iterations;
+    System.out.println(String.format("%s %8.0f ns/request %8.0f bytes/request (%d)", name, ns, bytes, sink % 10));
+  }
+
+  /**
+   * The parsing Request did before it parsed bytes.
+   */
+  static class Legacy {
+
+    final String path, protocol, host;
+    final Map<String, String> cookies = new HashMap<>(), headers;
+    final Http.Method method;
+
+    Legacy(InputStream req) throws IOException {
+      InputStream s = new CappedInputStream(req, Request.MAX_HEADER_SIZE);
+      String[] protocols = Streams.readWindowsLine(s).split(" ");
+      method = Http.Method.valueOf(protocols[0]);
+      path = protocols[1];
+      protocol = protocols[2];
+      headers = HttpHeaders.parseHeaders(s);
+      host = headers.get("Host");
+      String val = headers.get("Cookie");
+      int cur = 0, mid = 0;
+      for (int i = 0; i < val.length(); ++i) {
+        if (val.charAt(i) == '=') {
+          mid = i;
+        } else if (val.charAt(i) == ';') {
+          cookies.put(val.substring(cur, mid), val.substring(mid + 1, i));
+          cur = i + 2;
+          mid = cur;
+        }
+      }
+    }
+  }
+}
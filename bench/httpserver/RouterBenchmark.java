@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import httpserver.Http.Method;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routes requests over a few hundred routes with the compiled route table of
+ * Aggregate and with a linear scan running every regex in order, the way
+ * Aggregate used to.
+ *
+ * Usage: RouterBenchmark [resources] [iterations]
+ */
+public class RouterBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int resources = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+    Response ok = new Response().seal();
+    RequestHandler.Aggregate.Builder builder = new RequestHandler.Aggregate.Builder();
+    Linear linear = new Linear();
+    List<Request> requests = new ArrayList<>();
+    for (int i = 0; i < resources; ++i) {
+      String base = "/api/v1/resource" + i;
+      String[] routes = {base, base + "/([^/]+)", base + "/(\\d+)/items/([^/]+)"};
+      for (String route : routes) {
+        builder.add(Method.GET, route, req -> ok);
+        linear.add(Method.GET, route, req -> ok);
+      }
+      requests.add(request(base));
+      requests.add(request(base + "/abc?sort=name"));
+      requests.add(request(base + "/42/items/7"));
+    }
+    RequestHandler.Aggregate aggregate = builder.build();
+    System.out.println(String.format("%d routes, %d lookups", resources * 3, iterations));
+    for (int i = 0; i < 3; ++i) {
+      run("compiled", aggregate, requests, iterations);
+      run("linear  ", linear, requests, iterations);
+    }
+  }
+
+  static Request request(String target) throws IOException {
+    String s = "GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    return new Request(new ByteArrayInputStream(s.getBytes()));
+  }
+
+  static void run(String name, RequestHandler rh, List<Request> requests, int iterations) throws IOException {
+    int n = requests.size();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      Request req = requests.get(i % n);
+      req.params.clear();
+      if (rh.handle(req) == Responses.notFound()) {
+        throw new IllegalStateException("No route for " + req.path);
+      }
+    }
+    double ns = (System.nanoTime() - start) / (double) iterations;
+    System.out.println(String.format("%s %8.0f ns/lookup", name, ns));
+  }
+
+  /**
+   * The regex scan Aggregate did before routes were compiled.
+   */
+  static class Linear implements RequestHandler {
+
+    final List<Method> methods = new ArrayList<>();
+    final List<Pattern> patterns = new ArrayList<>();
+    final List<RequestHandler> handlers = new ArrayList<>();
+
+    void add(Method method, String regex, RequestHandler handler) {
+      methods.add(method);
+      patterns.add(Pattern.compile(regex));
+      handlers.add(handler);
+    }
+
+    @Override
+    public Response handle(Request req) throws java.net.SocketException {
+      for (int i = 0; i < patterns.size(); ++i) {
+        if (req.method == methods.get(i)) {
+          Matcher m = patterns.get(i).matcher(req.path);
+          if (m.matches()) {
+            for (int j = 1; j <= m.groupCount(); ++j) {
+              req.params.add(m.group(j));
+            }
+            return handlers.get(i).handle(req);
+          }
+        }
+      }
+      return Responses.notFound();
+    }
+  }
+}
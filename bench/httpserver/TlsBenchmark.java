@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Measures the rate of full and resumed TLS handshakes and the throughput of
+ * large responses over TLS, for both engines, with a self-signed certificate
+ * made by keytool.
+ *
+ * Usage: TlsBenchmark [clients] [connections per client] [key algorithm]
+ */
+public class TlsBenchmark {
+
+  static final int PORT = 18081;
+  static final char[] PASSWORD = "changeit".toCharArray();
+  static final byte[] CLOSE = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+  static final byte[] LARGE = "GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+  static final int LARGE_SIZE = 1 << 20;
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int connections = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    String algorithm = args.length > 2 ? args[2] : "EC";
+    File keyStore = keyStore(algorithm);
+    SSLContext trusting = trusting(keyStore);
+    System.out.println(String.format("%d clients, %d connections each, %s key", clients, connections, algorithm));
+    for (Server.Engine engine : Server.Engine.values()) {
+      Server server = Server.createSecure(PORT, TlsConfig.fromKeyStore(keyStore, PASSWORD), engine);
+      server.setMaxRequestsPerConnection(Integer.MAX_VALUE);
+      byte[] large = new byte[LARGE_SIZE];
+      server.start(req -> req.path.equals("/large")
+              ? new Responses.RawResponse(large, "application/octet-stream")
+              : Responses.respond("ok"));
+      try {
+        for (String protocol : new String[]{"TLSv1.3", "TLSv1.2"}) {
+          handshakes(String.format("%-8s %s full   ", engine, protocol), trusting, protocol, false, clients, connections);
+          handshakes(String.format("%-8s %s resumed", engine, protocol), trusting, protocol, true, clients, connections);
+        }
+        throughput(String.format("%-8s TLSv1.3 1 MB responses", engine), trusting, clients, connections / 4);
+      } finally {
+        server.stop();
+        Thread.sleep(500);
+      }
+    }
+  }
+
+  /**
+   * Opens connections which send one request each.
+   * @param resume whether clients keep their sessions to resume them
+   */
+  static void handshakes(String name, SSLContext context, String protocol, boolean resume, int clients, int connections) throws Exception {
+    run(name, clients, connections, () -> {
+      try (SSLSocket s = (SSLSocket) context.getSocketFactory().createSocket("localhost", PORT)) {
+        s.setEnabledProtocols(new String[]{protocol});
+        s.getOutputStream().write(CLOSE);
+        ExecutorBenchmark.readResponse(new BufferedInputStream(s.getInputStream()));
+        if (!resume) {
+          s.getSession().invalidate();
+        }
+      }
+    }, "handshakes/s");
+  }
+
+  static void throughput(String name, SSLContext context, int clients, int requests) throws Exception {
+    long start = System.nanoTime();
+    run(name, clients, 1, () -> {
+      try (SSLSocket s = (SSLSocket) context.getSocketFactory().createSocket("localhost", PORT)) {
+        InputStream in = new BufferedInputStream(s.getInputStream(), 1 << 16);
+        OutputStream out = s.getOutputStream();
+        for (int i = 0; i < requests; ++i) {
+          out.write(LARGE);
+          ExecutorBenchmark.readResponse(in);
+        }
+      }
+    }, null);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%s %10.1f MB/s", name, clients * (double) requests * LARGE_SIZE / seconds / (1 << 20)));
+  }
+
+  interface Task {
+    void run() throws IOException;
+  }
+
+  static void run(String name, int clients, int times, Task task, String unit) throws Exception {
+    CountDownLatch done = new CountDownLatch(clients);
+    AtomicInteger errors = new AtomicInteger();
+    long start = System.nanoTime();
+    for (int i = 0; i < clients; ++i) {
+      new Thread(() -> {
+        try {
+          for (int j = 0; j < times; ++j) {
+            task.run();
+          }
+        } catch (IOException e) {
+          errors.incrementAndGet();
+        } finally {
+          done.countDown();
+        }
+      }, "client").start();
+    }
+    done.await();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (unit != null) {
+      System.out.println(String.format("%s %10.0f %s %d errors", name, clients * (double) times / seconds, unit, errors.get()));
+    } else if (errors.get() > 0) {
+      System.out.println(String.format("%s %d errors", name, errors.get()));
+    }
+  }
+
+  /**
+   * Creates a self-signed certificate for localhost with keytool.
+   * @param algorithm "EC" for a P-256 key or "RSA" for a 2048 bit key
+   */
+  static File keyStore(String algorithm) throws IOException, InterruptedException {
+    File f = File.createTempFile("httpserver", ".p12");
+    f.delete();
+    f.deleteOnExit();
+    Process p = new ProcessBuilder(System.getProperty("java.home") + "/bin/keytool", "-genkeypair",
+            "-keystore", f.getPath(), "-storetype", "PKCS12", "-storepass", new String(PASSWORD),
+            "-alias", "server", "-keyalg", algorithm, algorithm.equals("EC") ? "-groupname" : "-keysize",
+            algorithm.equals("EC") ? "secp256r1" : "2048", "-validity", "1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1")
+            .redirectErrorStream(true).start();
+    p.getInputStream().readAllBytes();
+    if (p.waitFor() != 0) {
+      throw new IOException("keytool failed.");
+    }
+    return f;
+  }
+
+  static SSLContext trusting(File keyStore) throws Exception {
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(KeyStore.getInstance(keyStore, PASSWORD));
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, trust.getTrustManagers(), null);
+    return context;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encodes a list of nested maps like a typical api response, with JsonBuilder
+ * and straight to bytes with JsonWriter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBench {
+
+  @Param({"10", "1000"})
+  int items;
+
+  List<Object> document;
+  JsonWriter writer = new JsonWriter();
+
+  @Setup
+  public void setup() {
+    document = new ArrayList<>();
+    for (int i = 0; i < items; ++i) {
+      Map<String, Object> item = new LinkedHashMap<>();
+      item.put("id", i);
+      item.put("name", "Item \"" + i + "\"");
+      item.put("price", i * 1.25);
+      item.put("available", i % 3 != 0);
+      List<Object> tags = new ArrayList<>();
+      tags.add("tag" + i % 7);
+      tags.add("åäö");
+      item.put("tags", tags);
+      Map<String, Object> owner = new LinkedHashMap<>();
+      owner.put("id", i % 17);
+      owner.put("email", "user" + i + "@example.com");
+      item.put("owner", owner);
+      document.add(item);
+    }
+  }
+
+  @Benchmark
+  public String builder() {
+    return JsonBuilder.json(document);
+  }
+
+  @Benchmark
+  public byte[] writer() {
+    writer.reset();
+    writer.value(document);
+    return writer.toByteArray();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Serializes responses into an output which discards the bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBench {
+
+  @Param({"1024", "262144"})
+  int size;
+
+  ChannelOutput out;
+  byte[] body;
+  File file;
+
+  @Setup
+  public void setup() throws IOException {
+    out = ChannelOutput.of(OutputStream.nullOutputStream());
+    body = new byte[size];
+    Arrays.fill(body, (byte) 'a');
+    file = File.createTempFile("bench", ".html");
+    file.deleteOnExit();
+    Files.write(file.toPath(), body);
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public void sealed() throws IOException {
+    Responses.notFound().send(out, true);
+    out.flush();
+  }
+
+  @Benchmark
+  public void raw() throws IOException {
+    Response r = new Responses.RawResponse(body, "text/plain");
+    r.addHeader("Cache-Control", "no-cache");
+    r.send(out, true);
+    out.flush();
+  }
+
+  @Benchmark
+  public void file() throws IOException {
+    Responses.respond(file).send(out, true);
+    out.flush();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import httpserver.Http.Method;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Routes requests with Aggregate over three routes per resource, a literal
+ * one and two with captured segments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBench {
+
+  @Param({"10", "100", "500"})
+  int resources;
+
+  RequestHandler.Aggregate aggregate;
+  Request[] requests;
+  int next = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    Response ok = new Response().seal();
+    RequestHandler.Aggregate.Builder builder = new RequestHandler.Aggregate.Builder();
+    List<Request> list = new ArrayList<>();
+    for (int i = 0; i < resources; ++i) {
+      String base = "/api/v1/resource" + i;
+      builder.add(Method.GET, base, req -> ok);
+      builder.add(Method.GET, base + "/([^/]+)", req -> ok);
+      builder.add(Method.GET, base + "/(\\d+)/items/([^/]+)", req -> ok);
+      list.add(request(base));
+      list.add(request(base + "/abc?sort=name"));
+      list.add(request(base + "/42/items/7"));
+    }
+    aggregate = builder.build();
+    requests = list.toArray(new Request[0]);
+  }
+
+  static Request request(String target) throws IOException {
+    String s = "GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    return new Request(new ByteArrayInputStream(s.getBytes()));
+  }
+
+  @Benchmark
+  public Response route() throws SocketException {
+    Request req = requests[next];
+    next = next + 1 == requests.length ? 0 : next + 1;
+    req.params.clear();
+    return aggregate.handle(req);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver.sql;
+
+import httpserver.Response;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Turns query results into json responses. The queries run against a driver
+ * answering from memory, so what is measured is the pool, the statement cache
+ * and the json encoding rather than a database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SQLResponsesBench {
+
+  static final String URL = "jdbc:memory:bench";
+  static final String[] COLUMNS = {"id", "name", "price", "created"};
+  static final int[] TYPES = {Types.INTEGER, Types.VARCHAR, Types.DOUBLE, Types.TIMESTAMP};
+
+  @Param({"10", "1000"})
+  int rows;
+
+  Object[][] table;
+  Driver driver;
+
+  @Setup
+  public void setup() throws SQLException {
+    table = new Object[rows][];
+    for (int i = 0; i < rows; ++i) {
+      table[i] = new Object[]{i, "Row \"" + i + "\"", i * 0.5, new java.sql.Timestamp(1700000000000L + i)};
+    }
+    driver = new MemoryDriver(table);
+    DriverManager.registerDriver(driver);
+    ConnectionPool.setUrl(URL);
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    ConnectionPool.close();
+    DriverManager.deregisterDriver(driver);
+  }
+
+  @Benchmark
+  public Response direct() {
+    return SQLResponses.directSQL("SELECT * FROM items WHERE price > ?", 0);
+  }
+
+  /**
+   * A driver whose every query returns the same rows.
+   */
+  static class MemoryDriver implements Driver {
+
+    final Object[][] table;
+
+    MemoryDriver(Object[][] table) {
+      this.table = table;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) {
+      if (!acceptsURL(url)) {
+        return null;
+      }
+      return proxy(Connection.class, (p, m, args) -> {
+        switch (m.getName()) {
+          case "prepareStatement":
+          case "createStatement":
+            return statement();
+          case "isValid":
+            return true;
+          default:
+            return defaultValue(m.getReturnType());
+        }
+      });
+    }
+
+    Object statement() {
+      return proxy(java.sql.PreparedStatement.class, (p, m, args) -> {
+        if (m.getName().equals("executeQuery")) {
+          return resultSet();
+        }
+        return defaultValue(m.getReturnType());
+      });
+    }
+
+    ResultSet resultSet() {
+      ResultSetMetaData meta = proxy(ResultSetMetaData.class, (p, m, args) -> {
+        switch (m.getName()) {
+          case "getColumnCount":
+            return COLUMNS.length;
+          case "getColumnName":
+          case "getColumnLabel":
+            return COLUMNS[(Integer) args[0] - 1];
+          case "getColumnType":
+            return TYPES[(Integer) args[0] - 1];
+          default:
+            return defaultValue(m.getReturnType());
+        }
+      });
+      int[] row = {-1};
+      return proxy(ResultSet.class, (p, m, args) -> {
+        switch (m.getName()) {
+          case "next":
+            return ++row[0] < table.length;
+          case "getMetaData":
+            return meta;
+          case "getObject":
+            return table[row[0]][(Integer) args[0] - 1];
+          case "wasNull":
+            return false;
+          default:
+            return defaultValue(m.getReturnType());
+        }
+      });
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+      return URL.equals(url);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+      return Logger.getLogger(MemoryDriver.class.getName());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+  }
+
+  static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Writes a line per served request to a file. Requests only fill a slot in a
+ * ring buffer, the lines are formatted and written by a background thread.
+ * When the buffer is full records are dropped rather than slowing down the
+ * requests.
+ */
+public class AccessLog implements Closeable {
+
+  private static final Logger log = Logger.getLogger(AccessLog.class.getName());
+
+  public enum Format {
+    /**
+     * The common log format followed by the time taken in microseconds.
+     */
+    COMMON,
+    /**
+     * A JSON object per line.
+     */
+    JSON
+  }
+
+  static final int DEFAULT_CAPACITY = 1 << 13;
+  static final long DEFAULT_MAX_FILE_SIZE = 64 << 20;
+  static final int DEFAULT_MAX_FILES = 5;
+  private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final DateTimeFormatter COMMON_TIME
+          = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+  private static class Entry {
+
+    /**
+     * The position of the record plus one once it is written.
+     */
+    volatile long sequence;
+    long time;
+    InetAddress remote;
+    Http.Method method;
+    String path;
+    String query;
+    String protocol;
+    int status;
+    long bytes;
+    long nanos;
+  }
+
+  private final Path file;
+  private final Format format;
+  private final Entry[] ring;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private volatile long tail = 0;
+  private final LongAdder dropped = new LongAdder();
+  private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+  private volatile int maxFiles = DEFAULT_MAX_FILES;
+
+  private Thread writer;
+  private volatile boolean running = false;
+  private OutputStream out;
+  private long size;
+  private final JsonWriter json = new JsonWriter();
+  private final StringBuilder line = new StringBuilder(256);
+  private long lastSecond = -1;
+  private String lastTime;
+
+  public AccessLog(Path file, Format format) {
+    this(file, format, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity the number of records buffered before new ones are
+   * dropped, rounded up to a power of two
+   */
+  public AccessLog(Path file, Format format, int capacity) {
+    this.file = file;
+    this.format = format;
+    int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    ring = new Entry[n];
+    for (int i = 0; i < n; ++i) {
+      ring[i] = new Entry();
+    }
+    mask = n - 1;
+  }
+
+  /**
+   * @param bytes the size at which the file is rotated
+   */
+  public void setMaxFileSize(long bytes) {
+    this.maxFileSize = bytes;
+  }
+
+  /**
+   * @param files the number of rotated files kept besides the current one
+   */
+  public void setMaxFiles(int files) {
+    this.maxFiles = files;
+  }
+
+  /**
+   * @return the number of records dropped because the buffer was full
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    open();
+    running = true;
+    writer = new Thread(this::drainLoop, "access-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Writes what is buffered and closes the file.
+   */
+  @Override
+  public synchronized void close() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer = null;
+  }
+
+  /**
+   * Records a served request, without blocking.
+   */
+  void record(InetAddress remote, Request rq, int status, long bytes, long nanos) {
+    long n;
+    do {
+      n = head.get();
+      if (n - tail >= ring.length) {
+        dropped.increment();
+        return;
+      }
+    } while (!head.compareAndSet(n, n + 1));
+    Entry e = ring[(int) n & mask];
+    e.time = System.currentTimeMillis();
+    e.remote = remote;
+    e.method = rq.method;
+    e.path = rq.path;
+    e.query = rq.query;
+    e.protocol = rq.protocol;
+    e.status = status;
+    e.bytes = bytes;
+    e.nanos = nanos;
+    e.sequence = n + 1;
+  }
+
+  private void drainLoop() {
+    long reported = 0;
+    while (true) {
+      boolean stopping = !running;
+      try {
+        if (drain() == 0) {
+          out.flush();
+          long d = dropped.sum();
+          if (d > reported) {
+            log.warning(String.format("Dropped %d access log records.", d - reported));
+            reported = d;
+          }
+          if (stopping) {
+            break;
+          }
+          LockSupport.parkNanos(this, FLUSH_INTERVAL);
+        }
+      } catch (IOException e) {
+        log.severe(String.format("Failed writing access log '%s': %s", file, e));
+        LockSupport.parkNanos(this, FLUSH_INTERVAL);
+      }
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      log.warning(e.toString());
+    }
+  }
+
+  /**
+   * Writes the published records.
+   * @return the number of records written
+   */
+  private int drain() throws IOException {
+    int count = 0;
+    long t = tail;
+    for (Entry e = ring[(int) t & mask]; e.sequence == t + 1; e = ring[(int) t & mask]) {
+      byte[] b = format(e);
+      e.remote = null;
+      e.path = null;
+      e.query = null;
+      tail = ++t;
+      if (size + b.length > maxFileSize && size > 0) {
+        rotate();
+      }
+      out.write(b);
+      size += b.length;
+      ++count;
+    }
+    return count;
+  }
+
+  private byte[] format(Entry e) {
+    if (format == Format.JSON) {
+      json.reset();
+      json.beginObject()
+              .name("time").value(Instant.ofEpochMilli(e.time).toString())
+              .name("remote").value(e.remote == null ? null : e.remote.getHostAddress())
+              .name("method").value(e.method.name())
+              .name("path").value(e.path)
+              .name("query").value(e.query)
+              .name("protocol").value(e.protocol)
+              .name("status").value(e.status)
+              .name("bytes").value(e.bytes)
+              .name("micros").value(e.nanos / 1000)
+              .endObject();
+      byte[] b = json.toByteArray();
+      b = Arrays.copyOf(b, b.length + 1);
+      b[b.length - 1] = '\n';
+      return b;
+    }
+    long second = e.time / 1000;
+    if (second != lastSecond) {
+      lastSecond = second;
+      lastTime = COMMON_TIME.format(Instant.ofEpochSecond(second));
+    }
+    line.setLength(0);
+    line.append(e.remote == null ? "-" : e.remote.getHostAddress())
+            .append(" - - [").append(lastTime).append("] \"")
+            .append(e.method).append(' ').append(e.path);
+    if (e.query != null) {
+      line.append('?').append(e.query);
+    }
+    line.append(' ').append(e.protocol).append("\" ")
+            .append(e.status).append(' ').append(e.bytes).append(' ')
+            .append(e.nanos / 1000).append('\n');
+    return line.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private void open() throws IOException {
+    out = new BufferedOutputStream(Files.newOutputStream(file,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16);
+    size = Files.size(file);
+  }
+
+  /**
+   * Moves file to file.1, file.1 to file.2 and so on, dropping the oldest.
+   */
+  private void rotate() throws IOException {
+    out.close();
+    int keep = maxFiles;
+    if (keep > 0) {
+      Files.deleteIfExists(rotated(keep));
+      for (int i = keep - 1; i > 0; --i) {
+        Path p = rotated(i);
+        if (Files.exists(p)) {
+          Files.move(p, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    open();
+  }
+
+  private Path rotated(int i) {
+    return file.resolveSibling(file.getFileName() + "." + i);
+  }
+}
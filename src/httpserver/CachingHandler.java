@@ -0,0 +1,426 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import httpserver.Http.Method;
+import httpserver.Http.Status;
+import httpserver.Responses.RawResponse;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the responses of another handler for a short time, so endpoints which
+ * return the same body for seconds at a time, like reports from
+ * SQLResponses.directSQL, run once per interval instead of once per request.
+ *
+ * Successful GET responses with an in-memory body are stored sealed,
+ * keyed by method, path, query and the values of the request headers named
+ * at construction. A hit returns the stored response itself, the wrapped
+ * handler isn't called. Once its time to live is over an entry is still
+ * served while a background thread refreshes it, for as long as its stale
+ * window lasts.
+ *
+ * Concurrent misses for the same key wait for a single call of the handler,
+ * and get its response if it could be stored.
+ *
+ * A response isn't stored if it has Cache-Control no-store, no-cache or
+ * private, sets a cookie, or varies by a header the key doesn't include.
+ * Its max-age, s-maxage and stale-while-revalidate override the times of the
+ * route. Requests with an Authorization header or a body are never served
+ * from the cache.
+ */
+public class CachingHandler implements RequestHandler {
+
+  private static final Logger log = Logger.getLogger(CachingHandler.class.getName());
+
+  public static final long DEFAULT_MAX_BYTES = 16 << 20;
+  /**
+   * Approximate size of the key and bookkeeping of an entry.
+   */
+  static final int ENTRY_OVERHEAD = 256;
+
+  private final RequestHandler rh;
+  private final long maxBytes;
+  private final long[] times;
+  private final String[] vary;
+  private final Executor refresher;
+  private final List<Pattern> routes = new ArrayList<>();
+  private final List<long[]> routeTimes = new ArrayList<>();
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * The loads running, by key.
+   */
+  private final Map<String, CompletableFuture<Response>> loading = new HashMap<>();
+  private long bytes = 0;
+  private long hits = 0, misses = 0, evictions = 0;
+
+  /**
+   * @param rh the handler whose responses are cached
+   * @param ttl the number of milliseconds a response is fresh
+   * @param vary the request headers responses may depend on
+   */
+  public CachingHandler(RequestHandler rh, long ttl, String... vary) {
+    this(rh, ttl, 0, DEFAULT_MAX_BYTES, daemonPool(), vary);
+  }
+
+  /**
+   * @param rh the handler whose responses are cached
+   * @param ttl the number of milliseconds a response is fresh
+   * @param stale the number of milliseconds a response is still served after
+   * it expired, while it is refreshed in the background
+   * @param maxBytes the total size of the cached responses, the least
+   * recently used ones are evicted beyond it
+   * @param refresher runs the background refreshes
+   * @param vary the request headers responses may depend on
+   */
+  public CachingHandler(RequestHandler rh, long ttl, long stale, long maxBytes, Executor refresher, String... vary) {
+    this.rh = rh;
+    this.times = new long[]{ttl, stale};
+    this.maxBytes = maxBytes;
+    this.refresher = refresher;
+    this.vary = vary.clone();
+  }
+
+  private static ExecutorService daemonPool() {
+    return Executors.newCachedThreadPool(run -> {
+      Thread t = new Thread(run, "cache refresh");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Gives the paths matching a regex their own times, the first matching
+   * route added wins. A ttl of 0 keeps the route out of the cache.
+   * @return this handler
+   */
+  public CachingHandler route(String regex, long ttl, long stale) {
+    routes.add(Pattern.compile(regex));
+    routeTimes.add(new long[]{ttl, stale});
+    return this;
+  }
+
+  @Override
+  public Response handle(Request req) throws SocketException {
+    if (req.method != Method.GET || req.headers.containsKey("Authorization") || req.contentLength() != 0) {
+      return rh.handle(req);
+    }
+    String key = key(req);
+    long now = System.currentTimeMillis();
+    Entry e;
+    boolean refresh = false;
+    synchronized (this) {
+      e = entries.get(key);
+      if (e != null && now >= e.staleUntil) {
+        remove(key, e);
+        e = null;
+      }
+      if (e != null) {
+        hits++;
+        if (now >= e.expires && !e.refreshing) {
+          e.refreshing = refresh = true;
+        }
+      } else {
+        misses++;
+      }
+    }
+    if (e == null) {
+      return coalesce(key, req, now);
+    }
+    if (refresh) {
+      Entry stale = e;
+      try {
+        // The handler may still be using req, the refresh gets its own.
+        Request copy = req.reparse();
+        refresher.execute(() -> refresh(key, copy, stale));
+      } catch (IOException | RuntimeException ex) {
+        log.warning(ex.toString());
+        synchronized (this) {
+          stale.refreshing = false;
+        }
+      }
+    }
+    return e.response;
+  }
+
+  private void refresh(String key, Request req, Entry stale) {
+    try {
+      coalesce(key, req, System.currentTimeMillis());
+    } catch (SocketException | RuntimeException ex) {
+      log.warning(String.format("Refreshing %s failed: %s", key, ex));
+      synchronized (this) {
+        stale.refreshing = false;
+      }
+    }
+  }
+
+  private String key(Request req) {
+    StringBuilder sb = new StringBuilder(req.path.length() + 32);
+    sb.append(req.method.name()).append(' ').append(req.path);
+    if (req.query != null) {
+      sb.append('?').append(req.query);
+    }
+    for (String h : vary) {
+      sb.append('\0').append(req.headers.get(h));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Loads the response for a key, or waits for the load of it already
+   * running. A waiting request gets the response of that load if it is
+   * sealed, and calls the handler itself otherwise, or once it has waited
+   * for as long as the response of the route stays fresh.
+   */
+  private Response coalesce(String key, Request req, long now) throws SocketException {
+    CompletableFuture<Response> running, own = null;
+    synchronized (this) {
+      running = loading.get(key);
+      if (running == null) {
+        loading.put(key, own = new CompletableFuture<>());
+      }
+    }
+    if (running != null) {
+      try {
+        Response res = running.get(times(req.path)[0], TimeUnit.MILLISECONDS);
+        if (res.isSealed()) {
+          return res;
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException | TimeoutException ex) {
+        // Tried below with this request.
+      }
+      return rh.handle(req);
+    }
+    try {
+      Response res = load(key, req, now);
+      own.complete(res);
+      return res;
+    } catch (SocketException | RuntimeException | Error ex) {
+      own.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      synchronized (this) {
+        loading.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Calls the handler and stores its response if it can be.
+   */
+  private Response load(String key, Request req, long now) throws SocketException {
+    Response res = rh.handle(req);
+    long[] times = times(req.path);
+    long fresh = times[0], staleFor = times[1];
+    if (!(res instanceof RawResponse) || res.status != Status.SUCCESS || res.header("Set-Cookie") != null
+            || !varies(res)) {
+      fresh = 0;
+    }
+    String cacheControl = res.header("Cache-Control");
+    if (cacheControl != null && fresh > 0) {
+      long maxAge = -1, sharedMaxAge = -1;
+      for (String directive : cacheControl.split(",")) {
+        String d = directive.trim().toLowerCase();
+        if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")) {
+          fresh = 0;
+          break;
+        } else if (d.startsWith("max-age=")) {
+          maxAge = seconds(d, 8);
+        } else if (d.startsWith("s-maxage=")) {
+          sharedMaxAge = seconds(d, 9);
+        } else if (d.startsWith("stale-while-revalidate=")) {
+          staleFor = Math.max(0, seconds(d, 23));
+        }
+      }
+      if (fresh > 0 && (sharedMaxAge >= 0 || maxAge >= 0)) {
+        fresh = sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+      }
+    }
+    if (fresh <= 0) {
+      synchronized (this) {
+        Entry old = entries.get(key);
+        if (old != null) {
+          remove(key, old);
+        }
+      }
+      return res;
+    }
+    RawResponse raw = (RawResponse) res;
+    if (!raw.isSealed()) {
+      raw = copy(raw);
+      raw.seal();
+    }
+    Entry e = new Entry(raw, key.length() * 2L + raw.data.length + ENTRY_OVERHEAD, now + fresh, now + fresh + staleFor);
+    synchronized (this) {
+      Entry old = entries.put(key, e);
+      if (old != null) {
+        bytes -= old.size;
+      }
+      bytes += e.size;
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        bytes -= it.next().getValue().size;
+        it.remove();
+        evictions++;
+      }
+    }
+    return raw;
+  }
+
+  /**
+   * @return the number of milliseconds in a directive like "max-age=10",
+   * or -1 if it isn't a number
+   */
+  private static long seconds(String directive, int start) {
+    try {
+      return Long.parseLong(directive.substring(start).trim()) * 1000;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private long[] times(String path) {
+    for (int i = 0; i < routes.size(); ++i) {
+      if (routes.get(i).matcher(path).matches()) {
+        return routeTimes.get(i);
+      }
+    }
+    return times;
+  }
+
+  /**
+   * @return whether the key covers every header the response varies by
+   */
+  private boolean varies(Response res) {
+    for (int i = 0; i < res.headerCount(); ++i) {
+      if (!res.headerName(i).equalsIgnoreCase("Vary")) {
+        continue;
+      }
+      for (String name : res.headerValue(i).split(",")) {
+        name = name.trim();
+        boolean covered = false;
+        for (String h : vary) {
+          covered |= h.equalsIgnoreCase(name);
+        }
+        if (!covered) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a response with the headers and body of res and an ETag, which
+   * can be sealed without touching the one the handler returned
+   */
+  private static RawResponse copy(RawResponse res) {
+    RawResponse c = new RawResponse(res.data, null);
+    for (int i = 0; i < res.headerCount(); ++i) {
+      if (!res.headerName(i).equalsIgnoreCase("Content-Length")) {
+        c.addHeader(res.headerName(i), res.headerValue(i));
+      }
+    }
+    if (c.header("ETag") == null) {
+      // Tagged once here instead of hashed for every conditional request.
+      c.addHeader("ETag", Conditional.etag(c.data));
+    }
+    return c;
+  }
+
+  private void remove(String key, Entry e) {
+    if (entries.remove(key, e)) {
+      bytes -= e.size;
+    }
+  }
+
+  /**
+   * Drops all cached responses.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  /**
+   * @return the number of bytes used by the cached responses
+   */
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static class Entry {
+
+    final Response response;
+    final long size;
+    /**
+     * When the entry stops being fresh and when it can't be served at all.
+     */
+    final long expires, staleUntil;
+    /**
+     * Set while a refresh is running, guarded by the handler.
+     */
+    boolean refreshing;
+
+    Entry(RawResponse response, long size, long expires, long staleUntil) {
+      this.response = response;
+      this.size = size;
+      this.expires = expires;
+      this.staleUntil = staleUntil;
+    }
+  }
+}
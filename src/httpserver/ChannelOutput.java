@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Collects the bytes of responses in a buffer which is reused for every
+ * response on a connection, and hands them to the connection in as few writes
+ * as possible.
+ */
+abstract class ChannelOutput extends OutputStream {
+
+  static final int BUFFER_SIZE = 1 << 14;
+  static final int TRANSFER_BUFFER_SIZE = 1 << 17;
+
+  protected final ByteBuffer buf;
+  private final ByteBuffer[] single = new ByteBuffer[1];
+  private final ByteBuffer[] pair = new ByteBuffer[2];
+  /**
+   * The number of bytes written to the output.
+   */
+  long written = 0;
+
+  ChannelOutput(ByteBuffer buf) {
+    this.buf = buf;
+  }
+
+  /**
+   * Writes all remaining bytes of the buffers, in order.
+   */
+  protected abstract void writeFully(ByteBuffer[] srcs) throws IOException;
+
+  @Override
+  public void write(int b) throws IOException {
+    ++written;
+    if (!buf.hasRemaining()) {
+      flush();
+    }
+    buf.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len > buf.remaining()) {
+      write(ByteBuffer.wrap(b, off, len));
+      return;
+    }
+    written += len;
+    buf.put(b, off, len);
+  }
+
+  /**
+   * Writes the buffered bytes together with src, using a single gathering
+   * write when src doesn't fit in the buffer.
+   */
+  void write(ByteBuffer src) throws IOException {
+    written += src.remaining();
+    if (src.remaining() <= buf.remaining()) {
+      buf.put(src);
+      return;
+    }
+    buf.flip();
+    pair[0] = buf;
+    pair[1] = src;
+    try {
+      writeFully(pair);
+    } finally {
+      pair[1] = null;
+      buf.clear();
+    }
+  }
+
+  /**
+   * Writes the characters of s as single bytes without encoding them first,
+   * which is all header names and values may contain.
+   */
+  void writeAscii(String s) throws IOException {
+    int n = s.length();
+    written += n;
+    for (int i = 0; i < n; ++i) {
+      if (!buf.hasRemaining()) {
+        flush();
+      }
+      buf.put((byte) s.charAt(i));
+    }
+  }
+
+  /**
+   * Writes count bytes of a file starting at position. Small files are read
+   * into the buffer so they go out with the header, larger ones are sent
+   * by transfer.
+   */
+  final void transferFrom(FileChannel file, long position, long count) throws IOException {
+    written += count;
+    if (count <= buf.remaining()) {
+      int limit = buf.limit();
+      buf.limit(buf.position() + (int) count);
+      try {
+        while (buf.hasRemaining()) {
+          int n = file.read(buf, position);
+          if (n < 0) {
+            throw new EOFException("File ended before the expected length.");
+          }
+          position += n;
+        }
+      } finally {
+        buf.limit(limit);
+      }
+      return;
+    }
+    flush();
+    transfer(file, position, count);
+  }
+
+  /**
+   * Copies the file through a large buffer, outputs with a channel override
+   * this to let the kernel send it directly.
+   */
+  protected void transfer(FileChannel file, long position, long count) throws IOException {
+    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(count, TRANSFER_BUFFER_SIZE));
+    single[0] = chunk;
+    try {
+      while (count > 0) {
+        chunk.clear();
+        if (chunk.remaining() > count) {
+          chunk.limit((int) count);
+        }
+        int n = file.read(chunk, position);
+        if (n < 0) {
+          throw new EOFException("File ended before the expected length.");
+        }
+        chunk.flip();
+        writeFully(single);
+        position += n;
+        count -= n;
+      }
+    } finally {
+      single[0] = null;
+    }
+  }
+
+  /**
+   * Sends the file with FileChannel.transferTo, which uses sendfile where the
+   * platform has it.
+   * @param awaitWritable called when a non-blocking channel can't take more
+   */
+  static void transferTo(FileChannel file, long position, long count, WritableByteChannel ch, Await awaitWritable) throws IOException {
+    while (count > 0) {
+      long n = file.transferTo(position, count, ch);
+      if (n == 0) {
+        if (position >= file.size()) {
+          throw new EOFException("File ended before the expected length.");
+        }
+        awaitWritable.await();
+      }
+      position += n;
+      count -= n;
+    }
+  }
+
+  interface Await {
+    void await() throws IOException;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (buf.position() == 0) {
+      return;
+    }
+    buf.flip();
+    single[0] = buf;
+    try {
+      writeFully(single);
+    } finally {
+      buf.clear();
+    }
+  }
+
+  /**
+   * @return an output writing to the channel of s if it has one, and to its
+   * stream otherwise
+   */
+  static ChannelOutput of(Socket s) throws IOException {
+    SocketChannel ch = s.getChannel();
+    if (ch != null) {
+      return new ChannelOutput(ByteBuffer.allocate(BUFFER_SIZE)) {
+        @Override
+        protected void writeFully(ByteBuffer[] srcs) throws IOException {
+          ByteBuffer last = srcs[srcs.length - 1];
+          while (last.hasRemaining()) {
+            ch.write(srcs);
+          }
+        }
+
+        @Override
+        protected void transfer(FileChannel file, long position, long count) throws IOException {
+          transferTo(file, position, count, ch, Thread::yield);
+        }
+      };
+    }
+    return of(s.getOutputStream());
+  }
+
+  /**
+   * @return an output writing to a stream
+   */
+  static ChannelOutput of(OutputStream out) {
+    return new ChannelOutput(ByteBuffer.allocate(BUFFER_SIZE)) {
+      @Override
+      protected void writeFully(ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer b : srcs) {
+          if (b.hasArray()) {
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            b.position(b.limit());
+          } else {
+            byte[] chunk = new byte[Math.min(b.remaining(), BUFFER_SIZE)];
+            while (b.hasRemaining()) {
+              int n = Math.min(b.remaining(), chunk.length);
+              b.get(chunk, 0, n);
+              out.write(chunk, 0, n);
+            }
+          }
+        }
+      }
+    };
+  }
+}
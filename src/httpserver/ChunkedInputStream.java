@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a request body sent with "Transfer-Encoding: chunked", stopping at
+ * the end of the body so the stream can be used for the next request.
+ */
+class ChunkedInputStream extends InputStream {
+
+  private static final int MAX_LINE = 1024;
+
+  private final InputStream in;
+  private final long maxSize;
+  private long remaining = 0;
+  /**
+   * The size of the chunks so far.
+   */
+  long total = 0;
+  private boolean first = true, done = false;
+  /**
+   * Set once the chunks have added up to more than maxSize.
+   */
+  boolean tooLarge = false;
+
+  /**
+   * @param maxSize the largest body accepted, larger bodies fail with an
+   * IOException
+   */
+  ChunkedInputStream(InputStream in, long maxSize) {
+    this.in = in;
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (remaining == 0 && !nextChunk()) {
+      return -1;
+    }
+    int n = in.read(b, off, (int) Math.min(len, remaining));
+    if (n < 0) {
+      throw new EOFException("Request body ended inside a chunk.");
+    }
+    remaining -= n;
+    return n;
+  }
+
+  /**
+   * @return false once the last chunk and the trailers have been read
+   */
+  private boolean nextChunk() throws IOException {
+    if (done) {
+      return false;
+    }
+    if (!first && !readLine().isEmpty()) {
+      throw new IOException("Chunk longer than its size.");
+    }
+    first = false;
+    String line = readLine();
+    int semi = line.indexOf(';');
+    String size = (semi < 0 ? line : line.substring(0, semi)).trim();
+    try {
+      remaining = Long.parseLong(size, 16);
+    } catch (NumberFormatException e) {
+      throw new IOException(String.format("Invalid chunk size: \"%s\"", line));
+    }
+    if (remaining < 0) {
+      throw new IOException(String.format("Invalid chunk size: \"%s\"", line));
+    }
+    if (remaining == 0) {
+      int trailers = 0;
+      for (String t = readLine(); !t.isEmpty(); t = readLine()) {
+        trailers += t.length();
+        if (trailers > Request.MAX_HEADER_SIZE) {
+          throw new IOException("Request trailers too large.");
+        }
+      }
+      done = true;
+      return false;
+    }
+    total += remaining;
+    if (total > maxSize) {
+      tooLarge = true;
+      throw new IOException("Request body too large.");
+    }
+    return true;
+  }
+
+  private String readLine() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int c = in.read();
+      if (c < 0) {
+        throw new EOFException("Request body ended inside a chunk header.");
+      }
+      if (c == '\n' && sb.length() > 0 && sb.charAt(sb.length() - 1) == '\r') {
+        sb.setLength(sb.length() - 1);
+        return sb.toString();
+      }
+      if (sb.length() == MAX_LINE) {
+        throw new IOException("Chunk header too long.");
+      }
+      sb.append((char) c);
+    }
+  }
+}
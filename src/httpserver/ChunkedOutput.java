@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Frames the bytes written to it as chunks of a response with
+ * "Transfer-Encoding: chunked". Every full chunk is sent right away, so the
+ * client gets the start of the body while the rest is produced.
+ */
+class ChunkedOutput extends OutputStream {
+
+  static final int CHUNK_SIZE = 1 << 13;
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+  private final ChannelOutput out;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private int count = 0;
+
+  ChunkedOutput(ChannelOutput out) {
+    this.out = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == chunk.length) {
+      flush();
+    }
+    chunk[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == chunk.length) {
+        flush();
+      }
+      int n = Math.min(len, chunk.length - count);
+      System.arraycopy(b, off, chunk, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Sends the bytes written so far as a chunk.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (count == 0) {
+      return;
+    }
+    out.writeAscii(Integer.toHexString(count));
+    out.write(Response.LN);
+    out.write(chunk, 0, count);
+    out.write(Response.LN);
+    out.flush();
+    count = 0;
+  }
+
+  /**
+   * Sends the remaining bytes and the empty chunk which ends the body. Not
+   * done by close, so a body which fails halfway isn't taken as complete.
+   */
+  void finish() throws IOException {
+    flush();
+    out.write(LAST_CHUNK);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+/**
+ * Tells a standing queue in front of the pool from a burst, the way CoDel
+ * does: the pool is overloaded once the time tasks wait for a thread has
+ * stayed above a target for a whole interval, which a burst the pool works
+ * off quickly never does. While it is overloaded every task which waited
+ * longer than the target is shed, as answering it with 503 right away is
+ * better than making every client behind it wait too.
+ */
+class CoDel {
+
+  private final long target, interval;
+  /**
+   * When the waits, above the target since an interval before, make the pool
+   * overloaded, or 0 while they are below the target.
+   */
+  private volatile long overloadedAt = 0;
+
+  /**
+   * @param target the longest wait for a thread which is fine, in nanoseconds
+   * @param interval how long waits have to stay above the target before
+   * tasks are shed, in nanoseconds
+   */
+  CoDel(long target, long interval) {
+    this.target = target;
+    this.interval = interval;
+  }
+
+  /**
+   * @param waited how long the task waited for a thread, in nanoseconds
+   * @param now the current System.nanoTime
+   * @return whether the task should be shed
+   */
+  boolean shed(long waited, long now) {
+    if (waited < target) {
+      if (overloadedAt != 0) {
+        overloadedAt = 0;
+      }
+      return false;
+    }
+    long at = overloadedAt;
+    if (at == 0) {
+      overloadedAt = now + interval;
+      return false;
+    }
+    return now - at >= 0;
+  }
+}
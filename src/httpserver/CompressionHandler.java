@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import httpserver.Http.Status;
+import httpserver.Responses.FileResponse;
+import httpserver.Responses.RawResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the responses of another handler with gzip or deflate when the
+ * client accepts it and the content type is compressible.
+ *
+ * Files are compressed once per version and kept in a bounded cache, and a
+ * file with an up to date ".gz" sibling is served from the sibling instead.
+ * Shared responses, like the ones from a FileCache, get their compressed
+ * variants cached as well.
+ */
+public class CompressionHandler implements RequestHandler {
+
+  private static final Logger log = Logger.getLogger(CompressionHandler.class.getName());
+
+  public static final int DEFAULT_MIN_SIZE = 1024;
+  public static final long DEFAULT_CACHE_SIZE = 16 << 20;
+  public static final long DEFAULT_MAX_FILE_SIZE = 8 << 20;
+  static final String GZIP = "gzip", DEFLATE = "deflate";
+
+  private final RequestHandler rh;
+  private final int minSize;
+  private final long cacheSize, maxFileSize;
+  private final LinkedHashMap<Object, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  public CompressionHandler(RequestHandler rh) {
+    this(rh, DEFAULT_MIN_SIZE, DEFAULT_CACHE_SIZE, DEFAULT_MAX_FILE_SIZE);
+  }
+
+  /**
+   * @param rh the handler whose responses are compressed
+   * @param minSize bodies smaller than this are sent as they are
+   * @param cacheSize the total size of the cached compressed variants
+   * @param maxFileSize larger files without a ".gz" sibling are sent
+   * uncompressed
+   */
+  public CompressionHandler(RequestHandler rh, int minSize, long cacheSize, long maxFileSize) {
+    this.rh = rh;
+    this.minSize = minSize;
+    this.cacheSize = cacheSize;
+    this.maxFileSize = maxFileSize;
+  }
+
+  @Override
+  public Response handle(Request req) throws SocketException {
+    Response res = rh.handle(req);
+    if (res.status != Status.SUCCESS || res.header("Content-Encoding") != null
+            || !MimeType.compressible(res.header("Content-Type"))) {
+      return res;
+    }
+    if (res instanceof FileResponse) {
+      return file(req, (FileResponse) res);
+    }
+    if (res instanceof RawResponse) {
+      return raw(req, (RawResponse) res);
+    }
+    return res;
+  }
+
+  private Response raw(Request req, RawResponse res) {
+    if (res.data.length < minSize) {
+      return res;
+    }
+    String encoding = negotiate(req.headers.get("Accept-Encoding"));
+    if (res.isSealed()) {
+      // Shared responses never change, so their variants can be cached by
+      // identity.
+      Object key = encoding == null ? res : new VariantKey(res, encoding);
+      Response cached = cached(key);
+      if (cached == null) {
+        byte[] data = encoding == null ? res.data : compress(res.data, encoding);
+        cached = variant(res, data, encoding).seal();
+        cache(key, cached, (data == res.data ? 0 : data.length) + res.data.length);
+      }
+      return cached;
+    }
+    if (encoding == null) {
+      // A copy, the handler may return the same response again.
+      return variant(res, res.data, null);
+    }
+    return variant(res, compress(res.data, encoding), encoding);
+  }
+
+  private Response file(Request req, FileResponse res) {
+    if (res.length < minSize) {
+      return res;
+    }
+    String encoding = negotiate(req.headers.get("Accept-Encoding"));
+    if (encoding == null) {
+      return vary(res);
+    }
+    File f = res.f;
+    long modified = f.lastModified();
+    try {
+      if (encoding.equals(GZIP)) {
+        File gz = new File(f.getPath() + ".gz");
+        if (gz.isFile() && gz.lastModified() >= modified) {
+          return new FileResponse(gz, res.header("Content-Type"), modified)
+                  .addHeader("Content-Encoding", GZIP)
+                  .addHeader("Vary", "Accept-Encoding");
+        }
+      }
+      if (res.length > maxFileSize) {
+        return vary(res);
+      }
+      String key = f.getPath() + '\0' + modified + '\0' + res.length + '\0' + encoding;
+      Response cached = cached(key);
+      if (cached == null) {
+        byte[] data = Files.readAllBytes(f.toPath());
+        cached = variant(res, compress(data, encoding), encoding).seal();
+        cache(key, cached, ((RawResponse) cached).data.length);
+      }
+      return cached;
+    } catch (IOException e) {
+      log.warning(e.toString());
+      return vary(res);
+    }
+  }
+
+  /**
+   * @return a copy of res with Vary, leaving the response of the handler as
+   * it is in case it is returned again
+   */
+  private static Response vary(FileResponse res) {
+    return new FileResponse(res).addHeader("Vary", "Accept-Encoding");
+  }
+
+  /**
+   * @return a copy of res with a new body and Content-Encoding
+   */
+  private static RawResponse variant(Response res, byte[] data, String encoding) {
+    RawResponse v = new RawResponse(data, null);
+    for (int i = 0; i < res.headerCount(); ++i) {
+      String name = res.headerName(i);
+      if (name.equalsIgnoreCase("ETag") && encoding != null) {
+        // The encoded bytes differ, so the tag only holds for the meaning.
+        v.addHeader(name, Conditional.weak(res.headerValue(i)));
+      } else if (!name.equalsIgnoreCase("Content-Length")) {
+        v.addHeader(name, res.headerValue(i));
+      }
+    }
+    if (encoding != null) {
+      v.addHeader("Content-Encoding", encoding);
+    }
+    v.addHeader("Vary", "Accept-Encoding");
+    return v;
+  }
+
+  static byte[] compress(byte[] data, String encoding) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+    try (OutputStream out = encoding.equals(GZIP) ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+      out.write(data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Picks the encoding with the highest quality in an Accept-Encoding header.
+   * @return "gzip", "deflate" or null if the client accepts neither
+   */
+  static String negotiate(String accept) {
+    if (accept == null) {
+      return null;
+    }
+    double gzip = -1, deflate = -1, any = -1;
+    for (String part : accept.split(",")) {
+      int semi = part.indexOf(';');
+      String name = (semi < 0 ? part : part.substring(0, semi)).trim();
+      double q = 1;
+      if (semi >= 0) {
+        String param = part.substring(semi + 1).trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase("x-gzip")) {
+        gzip = q;
+      } else if (name.equalsIgnoreCase(DEFLATE)) {
+        deflate = q;
+      } else if (name.equals("*")) {
+        any = q;
+      }
+    }
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  private synchronized Response cached(Object key) {
+    Variant v = variants.get(key);
+    return v == null ? null : v.response;
+  }
+
+  private synchronized void cache(Object key, Response r, long size) {
+    Variant old = variants.put(key, new Variant(r, size));
+    if (old != null) {
+      bytes -= old.size;
+    }
+    bytes += size;
+    Iterator<Map.Entry<Object, Variant>> it = variants.entrySet().iterator();
+    while (bytes > cacheSize && it.hasNext()) {
+      bytes -= it.next().getValue().size;
+      it.remove();
+    }
+  }
+
+  private static class Variant {
+
+    final Response response;
+    final long size;
+
+    Variant(Response response, long size) {
+      this.response = response;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Identifies an encoded variant of a shared response.
+   */
+  private static class VariantKey {
+
+    final Response source;
+    final String encoding;
+
+    VariantKey(Response source, String encoding) {
+      this.source = source;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof VariantKey && ((VariantKey) o).source == source
+              && ((VariantKey) o).encoding.equals(encoding);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(source) * 31 + encoding.hashCode();
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import httpserver.Http.Method;
+import httpserver.Http.Status;
+import httpserver.Responses.RawResponse;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * Entity tags, HTTP dates and the evaluation of conditional requests, so
+ * handlers don't have to look at If-None-Match or If-Modified-Since
+ * themselves.
+ */
+final class Conditional {
+
+  private Conditional() {
+  }
+
+  private static final Response PRECONDITION_FAILED = new Response(Status.PRECONDITION_FAILED).seal();
+  /**
+   * The headers a 304 response repeats from the response it replaces.
+   */
+  private static final String[] KEPT = {"ETag", "Last-Modified", "Cache-Control", "Expires", "Vary", "Content-Location"};
+
+  private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+          .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+  /**
+   * The preferred format, but also taking other zones than GMT and days
+   * without a leading zero.
+   */
+  private static final DateTimeFormatter RFC_1123 = DateTimeFormatter
+          .ofPattern("EEE, d MMM yyyy HH:mm:ss zzz", Locale.US);
+  private static final DateTimeFormatter RFC_850 = new DateTimeFormatterBuilder()
+          .appendPattern("EEEE, dd-MMM-")
+          .appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+          .appendPattern(" HH:mm:ss zzz")
+          .toFormatter(Locale.US);
+  private static final DateTimeFormatter ASCTIME = DateTimeFormatter
+          .ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+
+  /**
+   * @return a date like "Sun, 06 Nov 1994 08:49:37 GMT"
+   */
+  static String formatDate(long millis) {
+    return IMF_FIXDATE.format(Instant.ofEpochMilli(millis));
+  }
+
+  /**
+   * Parses a date in any of the three formats HTTP allows.
+   * @return the date in milliseconds, or -1 if it isn't a valid date
+   */
+  static long parseDate(String date) {
+    for (DateTimeFormatter f : new DateTimeFormatter[]{RFC_1123, RFC_850, ASCTIME}) {
+      try {
+        return ZonedDateTime.parse(date.trim(), f).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+        // Try the next format.
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return a strong tag from the size and modification time of a file
+   */
+  static String etag(long length, long lastModified) {
+    return '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(length) + '"';
+  }
+
+  /**
+   * @return a strong tag from the length and CRC32C checksum of a body
+   */
+  static String etag(byte[] data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return '"' + Integer.toHexString(data.length) + '-' + Long.toHexString(crc.getValue()) + '"';
+  }
+
+  /**
+   * @return the tag as a weak tag, for a representation which only has the
+   * same meaning, like a compressed one
+   */
+  static String weak(String etag) {
+    return etag.startsWith("W/") ? etag : "W/" + etag;
+  }
+
+  /**
+   * Answers the validators of a successful GET. A body without a tag is
+   * compared by its hash, which is only computed when the request has an
+   * If-Match or If-None-Match. Handlers which know a tag before building the
+   * body can answer with Responses.notModified instead.
+   * @return a 304 or 412 response, or res, which is never changed
+   */
+  static Response evaluate(Request req, Response res) {
+    if (req.method != Method.GET || res.status != Status.SUCCESS) {
+      return res;
+    }
+    String etag = res.header("ETag");
+    boolean hashed = false;
+    if (etag == null && res instanceof RawResponse
+            && (req.headers.containsKey("If-None-Match") || req.headers.containsKey("If-Match"))) {
+      etag = etag(((RawResponse) res).data);
+      hashed = true;
+    }
+    String modified = res.header("Last-Modified");
+    Status s = check(req, etag, modified == null ? -1 : parseDate(modified));
+    if (s == Status.PRECONDITION_FAILED) {
+      return PRECONDITION_FAILED;
+    }
+    if (s != Status.NOT_MODIFIED) {
+      return res;
+    }
+    Response r = notModified(res);
+    return hashed ? r.addHeader("ETag", etag) : r;
+  }
+
+  /**
+   * Evaluates the preconditions of a GET in the order of RFC 9110, section
+   * 13.2.2. If-None-Match takes precedence over If-Modified-Since, and a
+   * date the resource was modified at or before counts as unmodified.
+   * @param etag the tag of the current representation, or null
+   * @param lastModified when it was last modified in milliseconds, or -1
+   * @return NOT_MODIFIED, PRECONDITION_FAILED or null to send it
+   */
+  static Status check(Request req, String etag, long lastModified) {
+    long modified = lastModified < 0 ? -1 : lastModified / 1000 * 1000;
+    String ifMatch = req.headers.get("If-Match");
+    if (ifMatch != null) {
+      if (!matches(ifMatch, etag, true)) {
+        return Status.PRECONDITION_FAILED;
+      }
+    } else {
+      long since = date(req.headers.get("If-Unmodified-Since"));
+      if (since >= 0 && modified > since) {
+        return Status.PRECONDITION_FAILED;
+      }
+    }
+    String ifNoneMatch = req.headers.get("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, etag, false) ? Status.NOT_MODIFIED : null;
+    }
+    long since = date(req.headers.get("If-Modified-Since"));
+    if (since >= 0 && modified >= 0 && modified <= since) {
+      return Status.NOT_MODIFIED;
+    }
+    return null;
+  }
+
+  private static long date(String header) {
+    return header == null ? -1 : parseDate(header);
+  }
+
+  /**
+   * @param header a list of entity tags or "*"
+   * @param etag the tag of the current representation, or null if it has
+   * none
+   * @param strong whether weak tags never match, as for If-Match and
+   * If-Range
+   */
+  static boolean matches(String header, String etag, boolean strong) {
+    if (etag == null) {
+      return false;
+    }
+    if (header.trim().equals("*")) {
+      return true;
+    }
+    boolean weakTag = etag.startsWith("W/");
+    if (strong && weakTag) {
+      return false;
+    }
+    String opaque = weakTag ? etag.substring(2) : etag;
+    int i = 0, n = header.length();
+    while (i < n) {
+      char c = header.charAt(i);
+      if (c == ' ' || c == '\t' || c == ',') {
+        ++i;
+        continue;
+      }
+      boolean weak = header.startsWith("W/", i);
+      if (weak) {
+        i += 2;
+      }
+      if (i == n || header.charAt(i) != '"') {
+        return false;
+      }
+      int end = header.indexOf('"', i + 1);
+      if (end < 0) {
+        return false;
+      }
+      if (!(strong && weak) && header.regionMatches(i, opaque, 0, opaque.length()) && end + 1 - i == opaque.length()) {
+        return true;
+      }
+      i = end + 1;
+    }
+    return false;
+  }
+
+  /**
+   * @return a 304 response with the validators and caching headers of res
+   */
+  static Response notModified(Response res) {
+    Response r = new Response(Status.NOT_MODIFIED);
+    for (int i = 0; i < res.headerCount(); ++i) {
+      String name = res.headerName(i);
+      for (String kept : KEPT) {
+        if (name.equalsIgnoreCase(kept)) {
+          r.addHeader(name, res.headerValue(i));
+          break;
+        }
+      }
+    }
+    return r;
+  }
+}
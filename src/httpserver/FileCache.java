@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Keeps small files in memory together with their serialized headers, so
+ * serving them touches the file system only when they are revalidated.
+ *
+ * The least recently used files are evicted when the total size exceeds the
+ * budget, and a cached file is checked against the disk at most once per
+ * revalidation interval. Files too large to cache are remembered the same
+ * way, so they are sent from disk without being looked up again.
+ */
+public class FileCache {
+
+  private static final Logger log = Logger.getLogger(FileCache.class.getName());
+
+  public static final long DEFAULT_MAX_FILE_SIZE = 1 << 20;
+  public static final long DEFAULT_REVALIDATE_INTERVAL = 1000;
+  /**
+   * Approximate size of the headers and bookkeeping of an entry.
+   */
+  static final int ENTRY_OVERHEAD = 256;
+
+  private final long maxBytes, maxFileSize, revalidateInterval;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+  /**
+   * @param maxBytes the total size of the cached files
+   */
+  public FileCache(long maxBytes) {
+    this(maxBytes, DEFAULT_MAX_FILE_SIZE, DEFAULT_REVALIDATE_INTERVAL);
+  }
+
+  /**
+   * @param maxBytes the total size of the cached files
+   * @param maxFileSize larger files are sent from disk and never cached
+   * @param revalidateInterval the number of milliseconds a cached file is
+   * served before it is compared to the file on disk again
+   */
+  public FileCache(long maxBytes, long maxFileSize, long revalidateInterval) {
+    this.maxBytes = maxBytes;
+    this.maxFileSize = Math.min(maxFileSize, maxBytes);
+    this.revalidateInterval = revalidateInterval;
+  }
+
+  /**
+   * Responds with the content of a file, the type will be deduced from its
+   * filename.
+   * @param input the file to send
+   * @return A response object which will send the data
+   */
+  public Response respond(File input) {
+    return respond(input, null);
+  }
+
+  /**
+   * Responds with the content of a file, the type will be deduced from its
+   * filename.
+   * @param input the file to send
+   * @param cacheDate the date of the cached version, or null
+   * @return A response object which will send the data
+   */
+  public Response respond(File input, Date cacheDate) {
+    Entry e = lookup(input);
+    if (e == null || e.response == null) {
+      if (e == null && !input.isFile()) {
+        return Responses.notFound();
+      }
+      try {
+        if (cacheDate != null && input.lastModified() / 1000 * 1000 <= cacheDate.getTime()) {
+          return Responses.notModified();
+        }
+        return new Responses.FileResponse(input);
+      } catch (IOException ex) {
+        return Responses.serverError();
+      }
+    }
+    if (cacheDate != null && e.lastModified / 1000 * 1000 <= cacheDate.getTime()) {
+      return Responses.notModified();
+    }
+    return e.response;
+  }
+
+  private Entry lookup(File f) {
+    String key = f.getPath();
+    Entry e;
+    synchronized (this) {
+      e = entries.get(key);
+    }
+    long now = System.currentTimeMillis();
+    if (e != null) {
+      if (now - e.checked < revalidateInterval
+              || (f.lastModified() == e.lastModified && f.length() == e.length)) {
+        e.checked = now;
+        if (e.response != null) {
+          hits.increment();
+        }
+        return e;
+      }
+      synchronized (this) {
+        if (entries.remove(key, e)) {
+          bytes -= e.size();
+        }
+      }
+    }
+    misses.increment();
+    return load(key, f, now);
+  }
+
+  private Entry load(String key, File f, long now) {
+    long modified = f.lastModified();
+    long length = f.length();
+    if (!f.isFile()) {
+      return null;
+    }
+    if (length > maxFileSize) {
+      return store(key, new Entry(null, modified, length, now));
+    }
+    byte[] data;
+    try {
+      data = Files.readAllBytes(f.toPath());
+    } catch (IOException ex) {
+      log.warning(ex.toString());
+      return null;
+    }
+    MimeType type = MimeType.fromFileName(f.getName());
+    Response r = new Responses.RawResponse(data, type == null ? null : type.name)
+            .addHeader("Last-Modified", Conditional.formatDate(modified))
+            .addHeader("ETag", Conditional.etag(data.length, modified))
+            .addHeader("Cache-Control", "Public")
+            .addHeader("Accept-Ranges", "bytes")
+            .seal();
+    return store(key, new Entry(r, modified, data.length, now));
+  }
+
+  private Entry store(String key, Entry e) {
+    synchronized (this) {
+      Entry old = entries.put(key, e);
+      if (old != null) {
+        bytes -= old.size();
+      }
+      bytes += e.size();
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        Entry eldest = it.next().getValue();
+        it.remove();
+        bytes -= eldest.size();
+        evictions.increment();
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Drops all cached files.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the number of bytes used by the cached files
+   */
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of files cached or remembered as too large
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static class Entry {
+
+    /**
+     * The cached response, or null for a file sent from disk.
+     */
+    final Response response;
+    final long lastModified, length;
+    volatile long checked;
+
+    Entry(Response response, long lastModified, long length, long checked) {
+      this.response = response;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.checked = checked;
+    }
+
+    long size() {
+      return response == null ? ENTRY_OVERHEAD : length + ENTRY_OVERHEAD;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets of a few percent width each, like
+ * HdrHistogram: values below 16 get a bucket each and every power of two
+ * above is split into 16 buckets. Recording is a couple of atomic increments
+ * and never allocates.
+ */
+public class Histogram {
+
+  private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB + SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder(), sum = new LongAdder();
+
+  /**
+   * @param value a duration in nanoseconds, or any other non-negative amount
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucket(value));
+    count.increment();
+    sum.add(value);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long sum() {
+    return sum.sum();
+  }
+
+  /**
+   * @param quantiles fractions between 0 and 1, in increasing order
+   * @return the largest value of the bucket holding each quantile, 0 if
+   * nothing has been recorded
+   */
+  public long[] quantiles(double... quantiles) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long[] res = new long[quantiles.length];
+    if (total == 0) {
+      return res;
+    }
+    long seen = 0;
+    int b = 0;
+    for (int q = 0; q < quantiles.length; ++q) {
+      long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+      while (seen + snapshot[b] < rank && b < BUCKETS - 1) {
+        seen += snapshot[b++];
+      }
+      res[q] = highest(b);
+    }
+    return res;
+  }
+
+  static int bucket(long value) {
+    if (value < SUB) {
+      return (int) value;
+    }
+    int e = 63 - Long.numberOfLeadingZeros(value);
+    return (e - SUB_BITS + 1) * SUB + (int) ((value >>> (e - SUB_BITS)) & (SUB - 1));
+  }
+
+  /**
+   * @return the largest value counted in bucket b
+   */
+  static long highest(int b) {
+    if (b < SUB) {
+      return b;
+    }
+    int shift = b / SUB - 1;
+    long lowest = (long) (SUB + b % SUB) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,436 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). A Decoder keeps the dynamic
+ * table of the header blocks a client sends on one connection. Responses are
+ * encoded without the dynamic table or Huffman coding, so any stream can write
+ * its headers without coordinating with the others.
+ */
+final class Hpack {
+
+  private Hpack() {
+  }
+
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  /**
+   * The name and value of each entry of the static table, entry i at 2(i - 1).
+   */
+  static final String[] STATIC_TABLE = {
+    ":authority", "",
+    ":method", "GET",
+    ":method", "POST",
+    ":path", "/",
+    ":path", "/index.html",
+    ":scheme", "http",
+    ":scheme", "https",
+    ":status", "200",
+    ":status", "204",
+    ":status", "206",
+    ":status", "304",
+    ":status", "400",
+    ":status", "404",
+    ":status", "500",
+    "accept-charset", "",
+    "accept-encoding", "gzip, deflate",
+    "accept-language", "",
+    "accept-ranges", "",
+    "accept", "",
+    "access-control-allow-origin", "",
+    "age", "",
+    "allow", "",
+    "authorization", "",
+    "cache-control", "",
+    "content-disposition", "",
+    "content-encoding", "",
+    "content-language", "",
+    "content-length", "",
+    "content-location", "",
+    "content-range", "",
+    "content-type", "",
+    "cookie", "",
+    "date", "",
+    "etag", "",
+    "expect", "",
+    "expires", "",
+    "from", "",
+    "host", "",
+    "if-match", "",
+    "if-modified-since", "",
+    "if-none-match", "",
+    "if-range", "",
+    "if-unmodified-since", "",
+    "last-modified", "",
+    "link", "",
+    "location", "",
+    "max-forwards", "",
+    "proxy-authenticate", "",
+    "proxy-authorization", "",
+    "range", "",
+    "referer", "",
+    "refresh", "",
+    "retry-after", "",
+    "server", "",
+    "set-cookie", "",
+    "strict-transport-security", "",
+    "transfer-encoding", "",
+    "user-agent", "",
+    "vary", "",
+    "via", "",
+    "www-authenticate", ""
+  };
+  private static final int STATIC_ENTRIES = STATIC_TABLE.length / 2;
+  /**
+   * The index of the first entry with each name of the static table.
+   */
+  private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+  /**
+   * The Huffman code of each byte and of EOS, right aligned.
+   */
+  private static final int[] CODES = {
+    0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+    0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+    0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+    0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+    0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+    0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+    0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+    0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+    0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+    0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+    0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+    0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+    0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+    0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+    0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+    0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+    0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+    0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+    0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+    0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+    0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+    0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+    0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+    0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+    0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+    0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+    0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+    0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+    0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+    0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+    0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+    0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    0x3fffffff
+  };
+  private static final byte[] LENGTHS = {
+    13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+    28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+    6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+    5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+    13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+    7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+    15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+    6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+    20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+    24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+    22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+    21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+    26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+    19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+    20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+    26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    30
+  };
+  private static final int EOS = 256;
+  /**
+   * The Huffman codes as a tree, two children per node with the symbols as
+   * negative leaves, -1 for the symbol 0.
+   */
+  private static final int[] TREE = new int[2 * EOS];
+
+  static {
+    for (int i = STATIC_ENTRIES; i > 0; --i) {
+      STATIC_NAMES.put(STATIC_TABLE[2 * (i - 1)], i);
+    }
+    int nodes = 1;
+    for (int sym = 0; sym <= EOS; ++sym) {
+      int node = 0;
+      for (int bit = LENGTHS[sym] - 1; bit > 0; --bit) {
+        int child = 2 * node + (CODES[sym] >>> bit & 1);
+        if (TREE[child] == 0) {
+          TREE[child] = nodes++;
+        }
+        node = TREE[child];
+      }
+      TREE[2 * node + (CODES[sym] & 1)] = -sym - 1;
+    }
+  }
+
+  /**
+   * Decodes the header blocks of one connection, in the order they were sent.
+   */
+  static class Decoder {
+
+    private final int maxTableSize;
+    private int capacity;
+    /**
+     * The dynamic table as a ring, the newest entry at first.
+     */
+    private final String[] names, values;
+    private int first = 0, count = 0, size = 0;
+    private byte[] b;
+    private int pos, end;
+
+    /**
+     * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE sent to the client
+     */
+    Decoder(int maxTableSize) {
+      this.maxTableSize = maxTableSize;
+      this.capacity = maxTableSize;
+      names = new String[maxTableSize / 32 + 1];
+      values = new String[names.length];
+    }
+
+    /**
+     * @param fields receives the name and value of each header, in order
+     * @throws IOException if the block can't be decoded, the connection can't
+     * be used after that
+     */
+    void decode(byte[] block, int off, int len, List<String> fields) throws IOException {
+      b = block;
+      pos = off;
+      end = off + len;
+      boolean headers = false;
+      try {
+        while (pos < end) {
+          int c = b[pos] & 0xff;
+          if (c >= 0x80) {
+            int i = integer(7);
+            if (i == 0) {
+              throw new IOException("Header index 0.");
+            }
+            fields.add(name(i));
+            fields.add(value(i));
+          } else if (c >= 0x40) {
+            literal(6, fields, true);
+          } else if (c >= 0x20) {
+            if (headers) {
+              throw new IOException("Table size update after a header.");
+            }
+            int s = integer(5);
+            if (s > maxTableSize) {
+              throw new IOException(String.format("Table size %d above the limit %d.", s, maxTableSize));
+            }
+            capacity = s;
+            evict(0);
+            continue;
+          } else {
+            literal(4, fields, false);
+          }
+          headers = true;
+        }
+      } finally {
+        b = null;
+      }
+    }
+
+    private void literal(int prefix, List<String> fields, boolean index) throws IOException {
+      int i = integer(prefix);
+      String name = i == 0 ? string() : name(i);
+      String value = string();
+      fields.add(name);
+      fields.add(value);
+      if (index) {
+        add(name, value);
+      }
+    }
+
+    private int integer(int prefix) throws IOException {
+      int mask = (1 << prefix) - 1;
+      int v = b[pos++] & mask;
+      if (v < mask) {
+        return v;
+      }
+      for (int shift = 0; shift < 28; shift += 7) {
+        if (pos == end) {
+          throw new IOException("Truncated integer.");
+        }
+        int c = b[pos++] & 0xff;
+        v += (c & 0x7f) << shift;
+        if (c < 0x80) {
+          return v;
+        }
+      }
+      throw new IOException("Integer too large.");
+    }
+
+    private String string() throws IOException {
+      if (pos == end) {
+        throw new IOException("Truncated string.");
+      }
+      boolean huffman = b[pos] < 0;
+      int n = integer(7);
+      if (n > end - pos) {
+        throw new IOException("Truncated string.");
+      }
+      String s = huffman ? huffman(b, pos, n) : new String(b, pos, n, StandardCharsets.ISO_8859_1);
+      pos += n;
+      return s;
+    }
+
+    private String name(int i) throws IOException {
+      return i <= STATIC_ENTRIES ? STATIC_TABLE[2 * (i - 1)] : names[slot(i)];
+    }
+
+    private String value(int i) throws IOException {
+      return i <= STATIC_ENTRIES ? STATIC_TABLE[2 * i - 1] : values[slot(i)];
+    }
+
+    private int slot(int i) throws IOException {
+      int j = i - STATIC_ENTRIES - 1;
+      if (j >= count) {
+        throw new IOException(String.format("Header index %d out of range.", i));
+      }
+      return (first + j) % names.length;
+    }
+
+    private void add(String name, String value) {
+      int entry = name.length() + value.length() + 32;
+      evict(entry);
+      if (entry > capacity) {
+        return;
+      }
+      first = (first + names.length - 1) % names.length;
+      names[first] = name;
+      values[first] = value;
+      ++count;
+      size += entry;
+    }
+
+    /**
+     * Drops the oldest entries until there is room for an entry of the size.
+     */
+    private void evict(int entry) {
+      while (count > 0 && size + entry > capacity) {
+        int last = (first + count - 1) % names.length;
+        size -= names[last].length() + values[last].length() + 32;
+        names[last] = null;
+        values[last] = null;
+        --count;
+      }
+    }
+  }
+
+  static String huffman(byte[] b, int off, int len) throws IOException {
+    StringBuilder sb = new StringBuilder(len + len / 2);
+    int node = 0, bits = 0;
+    boolean ones = true;
+    for (int i = off; i < off + len; ++i) {
+      int c = b[i];
+      for (int j = 7; j >= 0; --j) {
+        int bit = c >>> j & 1;
+        node = TREE[2 * node + bit];
+        ++bits;
+        ones &= bit == 1;
+        if (node < 0) {
+          if (node == -EOS - 1) {
+            throw new IOException("Huffman coded EOS.");
+          }
+          sb.append((char) (-node - 1));
+          node = 0;
+          bits = 0;
+          ones = true;
+        }
+      }
+    }
+    if (bits > 7 || !ones) {
+      throw new IOException("Invalid Huffman padding.");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the :status pseudo header.
+   */
+  static void encodeStatus(ByteArrayOutputStream out, int status) {
+    String s = Integer.toString(status);
+    for (int i = 8; i <= 14; ++i) {
+      if (STATIC_TABLE[2 * i - 1].equals(s)) {
+        integer(out, 0x80, 7, i);
+        return;
+      }
+    }
+    integer(out, 0, 4, 8);
+    string(out, s);
+  }
+
+  /**
+   * Writes a header as a literal which isn't indexed, naming it by the static
+   * table if it has the name.
+   * @param name the name of the header in lower case
+   */
+  static void encode(ByteArrayOutputStream out, String name, String value) {
+    Integer i = STATIC_NAMES.get(name);
+    if (i != null) {
+      integer(out, 0, 4, i);
+    } else {
+      out.write(0);
+      string(out, name);
+    }
+    string(out, value);
+  }
+
+  static void integer(ByteArrayOutputStream out, int flags, int prefix, int v) {
+    int mask = (1 << prefix) - 1;
+    if (v < mask) {
+      out.write(flags | v);
+      return;
+    }
+    out.write(flags | mask);
+    v -= mask;
+    while (v >= 0x80) {
+      out.write(v & 0x7f | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static void string(ByteArrayOutputStream out, String s) {
+    int n = s.length();
+    integer(out, 0, 7, n);
+    for (int i = 0; i < n; ++i) {
+      out.write(s.charAt(i));
+    }
+  }
+}
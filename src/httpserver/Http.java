@@ -33,12 +33,17 @@ public class Http {
     }
     public enum Status {
         SUCCESS(200, "Success"),
+        PARTIAL_CONTENT(206, "Partial Content"),
         MOVED_PERMANENTLY(301, "Moved Permanently"),
         MOVED_TEMPORARILY(302, "Moved Temporarily"),
         NOT_MODIFIED(304, "Not Modified"),
         FAIL(400, "Fail"),
         NOT_FOUND(404, "Not Found"),
+        PRECONDITION_FAILED(412, "Precondition Failed"),
+        PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+        RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable"),
         SERVER_ERROR(500, "Internal Server Error"),
+        SERVICE_UNAVAILABLE(503, "Service Unavailable"),
         ;
         
         public final int id;
@@ -0,0 +1,1062 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.lang.String.format;
+
+/**
+ * Serves a connection speaking HTTP/2 in cleartext (h2c), started with the
+ * connection preface or by upgrading an HTTP/1.1 request. The thread calling
+ * serve reads the frames, the request of each stream is handled on the server
+ * pool once it has been received, and the responses are written as their
+ * handlers finish, interleaved as flow control allows.
+ *
+ * Requests and responses are the same as for HTTP/1.1: the headers of a stream
+ * are turned into a Request, and a Response is sent as a HEADERS frame and
+ * DATA frames with its body.
+ */
+class Http2Connection {
+
+  private static final Logger log = Logger.getLogger(Http2Connection.class.getName());
+
+  static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+  static final byte[] SWITCHING_PROTOCOLS
+          = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes();
+
+  static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5,
+          PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+  static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+  static final int ENABLE_PUSH = 2, MAX_CONCURRENT_STREAMS = 3, INITIAL_WINDOW_SIZE = 4, MAX_FRAME_SIZE = 5;
+  static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3,
+          STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, COMPRESSION_ERROR = 9,
+          ENHANCE_YOUR_CALM = 11;
+  static final int DEFAULT_WINDOW = 65535, FRAME_SIZE = 1 << 14, MAX_FRAME = (1 << 24) - 1;
+  static final long MAX_WINDOW = Integer.MAX_VALUE;
+  /**
+   * The window for request bodies given to the connection and to each
+   * stream, replenished when half of it has been used.
+   */
+  static final int RECEIVE_WINDOW = 1 << 20;
+  /**
+   * The largest compressed header block accepted.
+   */
+  static final int MAX_HEADER_BLOCK = 1 << 16;
+
+  private final Server server;
+  private final RequestHandler rh;
+  private final InetAddress remote;
+  private final InputStream in;
+  private final ChannelOutput out;
+
+  // Only touched by the thread reading the frames.
+  private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+  private final byte[] head = new byte[9];
+  private final byte[] payload = new byte[FRAME_SIZE];
+  private byte[] block = new byte[1 << 10];
+  private int blockLength = 0, blockStream = 0, blockFlags = 0;
+  private int lastStreamId = 0;
+  private int received = 0;
+  private boolean goingAway = false;
+
+  // Guarded by this, which is held while writing frames.
+  private final Map<Integer, Stream> streams = new HashMap<>();
+  private final byte[] frameHead = new byte[9];
+  private byte[] scratch;
+  private long sendWindow = DEFAULT_WINDOW;
+  private long initialWindow = DEFAULT_WINDOW;
+  private int maxFrameSize = FRAME_SIZE;
+  private boolean goAwaySent = false, closed = false;
+
+  /**
+   * @param in the input of the socket, which may have buffered the preface
+   */
+  Http2Connection(Server server, RequestHandler rh, Socket sock, InputStream in) throws IOException {
+    this.server = server;
+    this.rh = rh;
+    this.remote = sock.getInetAddress();
+    this.in = in;
+    this.out = ChannelOutput.of(sock);
+  }
+
+  /**
+   * Checks for the connection preface without consuming it, reading no
+   * further than the first byte which doesn't match.
+   */
+  static boolean hasPreface(InputStream in) throws IOException {
+    in.mark(PREFACE.length);
+    try {
+      for (byte b : PREFACE) {
+        if (in.read() != b) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      in.reset();
+    }
+  }
+
+  /**
+   * @return 1 if the first len bytes of b start with the connection preface,
+   * 0 if they could and -1 if they don't
+   */
+  static int preface(byte[] b, int len) {
+    for (int i = 0; i < Math.min(len, PREFACE.length); ++i) {
+      if (b[i] != PREFACE[i]) {
+        return -1;
+      }
+    }
+    return len < PREFACE.length ? 0 : 1;
+  }
+
+  /**
+   * @return whether the request asks to continue the connection as h2c,
+   * requests with a body are left on HTTP/1.1
+   */
+  static boolean upgradable(Request rq) {
+    String upgrade = rq.headers.get("Upgrade");
+    if (upgrade == null || rq.headers.get("HTTP2-Settings") == null || rq.contentLength() != 0) {
+      return false;
+    }
+    for (String token : upgrade.split(",")) {
+      if (token.trim().equalsIgnoreCase("h2c")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Serves the connection until the client closes it or goes away, or it has
+   * no streams open when the idle timeout passes or the server stops.
+   * @param upgraded the HTTP/1.1 request which asked for the upgrade, answered
+   * on stream 1, or null if the client started with the preface
+   */
+  void serve(Request upgraded) throws IOException {
+    synchronized (this) {
+      byte[] settings = new byte[12];
+      setting(settings, 0, MAX_CONCURRENT_STREAMS, server.maxConcurrentStreams);
+      setting(settings, 6, INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+      writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+      writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+      out.flush();
+    }
+    int error = NO_ERROR;
+    try {
+      byte[] preface = new byte[PREFACE.length];
+      readFully(preface, preface.length, false);
+      if (!Arrays.equals(preface, PREFACE)) {
+        throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface.");
+      }
+      if (upgraded != null) {
+        byte[] settings;
+        try {
+          settings = Base64.getUrlDecoder().decode(upgraded.headers.get("HTTP2-Settings").trim());
+        } catch (IllegalArgumentException e) {
+          throw new Http2Exception(PROTOCOL_ERROR, "Invalid HTTP2-Settings.");
+        }
+        applySettings(settings, settings.length - settings.length % 6);
+        Stream s = new Stream(1, initialWindow);
+        s.remoteClosed = true;
+        lastStreamId = 1;
+        synchronized (this) {
+          streams.put(1, s);
+        }
+        dispatch(s, upgraded);
+      }
+      read();
+    } catch (Http2Exception e) {
+      log.fine(format("[%s] %s", remote.getHostAddress(), e.getMessage()));
+      error = e.error;
+    } catch (EOFException e) {
+      close();
+      return;
+    } catch (IOException | RuntimeException | Error e) {
+      close();
+      throw e;
+    }
+    synchronized (this) {
+      if (!goAwaySent) {
+        writeGoAway(error);
+      }
+      out.flush();
+    }
+    close();
+  }
+
+  private synchronized void close() {
+    closed = true;
+    for (Stream s : streams.values()) {
+      if (!s.dispatched) {
+        s.release(server);
+      }
+    }
+    notifyAll();
+  }
+
+  private synchronized boolean idle() {
+    return streams.isEmpty();
+  }
+
+  /**
+   * Reads frames until the connection ends.
+   */
+  private void read() throws IOException {
+    boolean first = true;
+    while (true) {
+      if (!server.running && !goingAway) {
+        goingAway = true;
+        synchronized (this) {
+          writeGoAway(NO_ERROR);
+          out.flush();
+        }
+      }
+      if (goingAway && idle()) {
+        return;
+      }
+      if (!readFully(head, head.length, true)) {
+        return;
+      }
+      int length = (head[0] & 0xff) << 16 | (head[1] & 0xff) << 8 | head[2] & 0xff;
+      int type = head[3] & 0xff, flags = head[4] & 0xff;
+      int id = int32(head, 5) & Integer.MAX_VALUE;
+      if (length > FRAME_SIZE) {
+        throw new Http2Exception(FRAME_SIZE_ERROR, format("Frame of %d bytes.", length));
+      }
+      readFully(payload, length, false);
+      if (first && type != SETTINGS) {
+        throw new Http2Exception(PROTOCOL_ERROR, "The preface wasn't followed by SETTINGS.");
+      }
+      first = false;
+      if ((blockStream != 0) != (type == CONTINUATION) || type == CONTINUATION && id != blockStream) {
+        throw new Http2Exception(PROTOCOL_ERROR, "Interrupted header block.");
+      }
+      switch (type) {
+        case DATA:
+          data(id, flags, length);
+          break;
+        case HEADERS:
+          headers(id, flags, length);
+          break;
+        case CONTINUATION:
+          appendBlock(0, length, flags);
+          break;
+        case PRIORITY:
+          if (id == 0 || length != 5) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid PRIORITY.");
+          }
+          break;
+        case RST_STREAM:
+          resetReceived(id, length);
+          break;
+        case SETTINGS:
+          settings(id, flags, length);
+          break;
+        case PING:
+          if (id != 0 || length != 8) {
+            throw new Http2Exception(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "Invalid PING.");
+          }
+          if ((flags & ACK) == 0) {
+            synchronized (this) {
+              writeFrame(PING, ACK, 0, payload, 0, 8);
+              out.flush();
+            }
+          }
+          break;
+        case GOAWAY:
+          if (id != 0 || length < 8) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid GOAWAY.");
+          }
+          goingAway = true;
+          break;
+        case WINDOW_UPDATE:
+          windowUpdate(id, length);
+          break;
+        case PUSH_PROMISE:
+          throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from a client.");
+        default:
+          // Unknown frame types are ignored.
+      }
+    }
+  }
+
+  /**
+   * Reads n bytes into b, a timeout before the first byte of a frame ends
+   * the connection if it has no open streams and is ignored otherwise.
+   * @return false if the connection has been idle for too long
+   */
+  private boolean readFully(byte[] b, int n, boolean frameStart) throws IOException {
+    int pos = 0;
+    while (pos < n) {
+      int r;
+      try {
+        r = in.read(b, pos, n - pos);
+      } catch (SocketTimeoutException e) {
+        if (!frameStart || pos > 0) {
+          throw e;
+        }
+        if (idle()) {
+          return false;
+        }
+        continue;
+      }
+      if (r < 0) {
+        throw new EOFException();
+      }
+      pos += r;
+    }
+    return true;
+  }
+
+  private void data(int id, int flags, int length) throws IOException {
+    if (id == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0.");
+    }
+    int off = padding(flags, length);
+    received += length;
+    if (received >= RECEIVE_WINDOW / 2) {
+      synchronized (this) {
+        writeWindowUpdate(0, received);
+        out.flush();
+      }
+      received = 0;
+    }
+    Stream s = stream(id);
+    if (s == null) {
+      if (id > lastStreamId) {
+        throw new Http2Exception(PROTOCOL_ERROR, format("DATA on idle stream %d.", id));
+      }
+      // The stream has been answered or reset already.
+      return;
+    }
+    if (s.remoteClosed) {
+      reset(s.id, STREAM_CLOSED);
+      return;
+    }
+    if (!s.dispatched) {
+      int pad = off > 0 ? payload[0] & 0xff : 0;
+      if (!s.receive(server, payload, off, length - off - pad)) {
+        server.metrics.rejected(Metrics.Rejection.BODY_MEMORY);
+      }
+    }
+    if ((flags & END_STREAM) != 0) {
+      s.remoteClosed = true;
+    } else if (!s.tooLarge) {
+      s.unacked += length;
+      if (s.unacked >= RECEIVE_WINDOW / 2) {
+        synchronized (this) {
+          writeWindowUpdate(s.id, s.unacked);
+          out.flush();
+        }
+        s.unacked = 0;
+      }
+    }
+    if ((s.remoteClosed || s.tooLarge) && !s.dispatched) {
+      dispatch(s, null);
+    }
+  }
+
+  /**
+   * @return the offset of the data in a frame which may be padded
+   */
+  private int padding(int flags, int length) throws Http2Exception {
+    if ((flags & PADDED) == 0) {
+      return 0;
+    }
+    if (length == 0 || (payload[0] & 0xff) >= length) {
+      throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding.");
+    }
+    return 1;
+  }
+
+  private void headers(int id, int flags, int length) throws IOException {
+    if (id == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0.");
+    }
+    int off = padding(flags, length);
+    int end = length - (off > 0 ? payload[0] & 0xff : 0);
+    if ((flags & PRIORITY_FLAG) != 0) {
+      off += 5;
+    }
+    if (off > end) {
+      throw new Http2Exception(PROTOCOL_ERROR, "Invalid HEADERS.");
+    }
+    blockStream = id;
+    blockFlags = flags;
+    blockLength = 0;
+    appendBlock(off, end - off, flags);
+  }
+
+  private void appendBlock(int off, int n, int flags) throws IOException {
+    if (blockLength + n > MAX_HEADER_BLOCK) {
+      throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block too large.");
+    }
+    if (blockLength + n > block.length) {
+      block = Arrays.copyOf(block, Math.max(blockLength + n, 2 * block.length));
+    }
+    System.arraycopy(payload, off, block, blockLength, n);
+    blockLength += n;
+    if ((flags & END_HEADERS) != 0) {
+      endHeaders();
+    }
+  }
+
+  /**
+   * Opens a stream, or ends it if the headers are trailers, once its header
+   * block has been received.
+   */
+  private void endHeaders() throws IOException {
+    int id = blockStream;
+    boolean end = (blockFlags & END_STREAM) != 0;
+    blockStream = 0;
+    List<String> fields = new ArrayList<>();
+    try {
+      decoder.decode(block, 0, blockLength, fields);
+    } catch (IOException e) {
+      throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+    }
+    Stream s = stream(id);
+    if (s != null) {
+      if (s.remoteClosed) {
+        reset(id, STREAM_CLOSED);
+      } else if (!end) {
+        throw new Http2Exception(PROTOCOL_ERROR, "Trailers without END_STREAM.");
+      } else {
+        s.remoteClosed = true;
+        if (!s.dispatched) {
+          dispatch(s, null);
+        }
+      }
+      return;
+    }
+    if ((id & 1) == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, format("Client opened even stream %d.", id));
+    }
+    if (id <= lastStreamId) {
+      // Trailers of a stream which has been answered or reset already.
+      return;
+    }
+    lastStreamId = id;
+    synchronized (this) {
+      if (goingAway || streams.size() >= server.maxConcurrentStreams) {
+        s = null;
+      } else {
+        s = new Stream(id, initialWindow);
+        streams.put(id, s);
+      }
+    }
+    if (s == null) {
+      reset(id, REFUSED_STREAM);
+      return;
+    }
+    s.fields = fields;
+    if (end) {
+      s.remoteClosed = true;
+      dispatch(s, null);
+    }
+  }
+
+  private void resetReceived(int id, int length) throws IOException {
+    if (id == 0 || length != 4 || id > lastStreamId) {
+      throw new Http2Exception(length != 4 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "Invalid RST_STREAM.");
+    }
+    synchronized (this) {
+      Stream s = streams.get(id);
+      if (s != null) {
+        s.reset = true;
+        if (!s.dispatched) {
+          streams.remove(id);
+          s.release(server);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private void settings(int id, int flags, int length) throws IOException {
+    if (id != 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream.");
+    }
+    if ((flags & ACK) != 0) {
+      if (length != 0) {
+        throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with a payload.");
+      }
+      return;
+    }
+    if (length % 6 != 0) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS.");
+    }
+    applySettings(payload, length);
+    synchronized (this) {
+      writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+      out.flush();
+    }
+  }
+
+  private synchronized void applySettings(byte[] p, int length) throws Http2Exception {
+    for (int i = 0; i < length; i += 6) {
+      int key = (p[i] & 0xff) << 8 | p[i + 1] & 0xff;
+      long value = int32(p, i + 2) & 0xffffffffL;
+      switch (key) {
+        case ENABLE_PUSH:
+          if (value > 1) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH.");
+          }
+          break;
+        case INITIAL_WINDOW_SIZE:
+          if (value > MAX_WINDOW) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE.");
+          }
+          for (Stream s : streams.values()) {
+            s.sendWindow += value - initialWindow;
+            if (s.sendWindow > MAX_WINDOW) {
+              throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow.");
+            }
+          }
+          initialWindow = value;
+          break;
+        case MAX_FRAME_SIZE:
+          if (value < FRAME_SIZE || value > MAX_FRAME) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE.");
+          }
+          maxFrameSize = (int) value;
+          break;
+        default:
+          // The table size doesn't matter as responses aren't indexed.
+      }
+    }
+    notifyAll();
+  }
+
+  private void windowUpdate(int id, int length) throws IOException {
+    if (length != 4) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE.");
+    }
+    int increment = int32(payload, 0) & Integer.MAX_VALUE;
+    if (id == 0) {
+      synchronized (this) {
+        sendWindow += increment;
+        notifyAll();
+        if (increment == 0 || sendWindow > MAX_WINDOW) {
+          throw new Http2Exception(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR, "Invalid connection WINDOW_UPDATE.");
+        }
+      }
+      return;
+    }
+    boolean overflow;
+    synchronized (this) {
+      Stream s = streams.get(id);
+      if (s == null) {
+        return;
+      }
+      s.sendWindow += increment;
+      overflow = s.sendWindow > MAX_WINDOW;
+      notifyAll();
+    }
+    if (increment == 0 || overflow) {
+      reset(id, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+  }
+
+  private synchronized Stream stream(int id) {
+    return streams.get(id);
+  }
+
+  /**
+   * Handles the request of a stream on the pool.
+   * @param rq the request if it has been parsed already
+   */
+  private void dispatch(Stream s, Request rq) throws IOException {
+    s.dispatched = true;
+    s.queued = System.nanoTime();
+    ExecutorService pool = server.pool;
+    try {
+      if (pool == null) {
+        throw new RejectedExecutionException();
+      }
+      pool.execute(() -> respond(s, rq));
+    } catch (RejectedExecutionException e) {
+      reset(s.id, REFUSED_STREAM);
+      synchronized (this) {
+        streams.remove(s.id);
+      }
+      s.release(server);
+    }
+  }
+
+  private void respond(Stream s, Request rq) {
+    long start = System.nanoTime();
+    try {
+      if (rq == null) {
+        rq = s.request(server.maxBodySize);
+      }
+      Response resp = server.shed(s.queued) ? server.unavailable : server.handle(rh, rq);
+      long sent = send(s, resp);
+      server.record(rq, resp, remote, sent, start);
+    } catch (IOException e) {
+      log.fine(format("[%s] stream %d: %s", remote.getHostAddress(), s.id, e.toString()));
+      resetQuietly(s, e instanceof Http2Exception ? ((Http2Exception) e).error : INTERNAL_ERROR);
+    } catch (RuntimeException | Error e) {
+      log.log(Level.SEVERE, Server.describe(rq), e);
+      resetQuietly(s, INTERNAL_ERROR);
+    } finally {
+      if (rq != null) {
+        rq.release();
+      }
+      s.release(server);
+      synchronized (this) {
+        streams.remove(s.id);
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Sends a response as a HEADERS frame followed by DATA frames if it has a
+   * body.
+   * @return the bytes of the header block and the body
+   */
+  private long send(Stream s, Response resp) throws IOException {
+    ByteArrayOutputStream fields = new ByteArrayOutputStream(256);
+    Hpack.encodeStatus(fields, resp.status.id);
+    for (int i = 0; i < resp.headerCount(); ++i) {
+      String name = resp.headerName(i).toLowerCase(Locale.ROOT);
+      if (!connectionHeader(name)) {
+        Hpack.encode(fields, name, resp.headerValue(i));
+      }
+    }
+    byte[] b = fields.toByteArray();
+    boolean body = resp.hasBody();
+    writeHeaders(s, b, !body);
+    long sent = b.length;
+    if (body) {
+      if (resp instanceof Responses.StreamingResponse) {
+        // DATA frames delimit the body already.
+        ((Responses.StreamingResponse) resp).chunked = false;
+      }
+      DataOutput data = new DataOutput(s);
+      resp.sendBody(data);
+      data.finish();
+      sent += data.written;
+    }
+    if (!s.remoteClosed) {
+      // Answered before the body was received, the rest isn't wanted.
+      resetQuietly(s, NO_ERROR);
+    }
+    return sent;
+  }
+
+  private static boolean connectionHeader(String name) {
+    switch (name) {
+      case "connection":
+      case "keep-alive":
+      case "proxy-connection":
+      case "transfer-encoding":
+      case "upgrade":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void writeHeaders(Stream s, byte[] b, boolean end) throws IOException {
+    synchronized (this) {
+      check(s);
+      int off = 0, type = HEADERS;
+      do {
+        int n = Math.min(b.length - off, maxFrameSize);
+        int flags = (off + n == b.length ? END_HEADERS : 0) | (end && type == HEADERS ? END_STREAM : 0);
+        writeFrame(type, flags, s.id, b, off, n);
+        type = CONTINUATION;
+        off += n;
+      } while (off < b.length);
+      if (end) {
+        out.flush();
+      }
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of src as DATA frames, waiting for the client
+   * to open the flow control windows when they are used up.
+   * @param end whether the last frame ends the stream
+   */
+  private void sendData(Stream s, ByteBuffer src, boolean end) throws IOException {
+    if (!src.hasRemaining() && !end) {
+      return;
+    }
+    synchronized (this) {
+      do {
+        check(s);
+        int n = (int) Math.min(src.remaining(), Math.min(maxFrameSize, Math.min(sendWindow, s.sendWindow)));
+        if (n <= 0 && src.hasRemaining()) {
+          out.flush();
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+          continue;
+        }
+        int flags = end && n == src.remaining() ? END_STREAM : 0;
+        if (src.hasArray()) {
+          writeFrame(DATA, flags, s.id, src.array(), src.arrayOffset() + src.position(), n);
+          src.position(src.position() + n);
+        } else {
+          if (scratch == null || scratch.length < n) {
+            scratch = new byte[n];
+          }
+          src.get(scratch, 0, n);
+          writeFrame(DATA, flags, s.id, scratch, 0, n);
+        }
+        sendWindow -= n;
+        s.sendWindow -= n;
+      } while (src.hasRemaining());
+      out.flush();
+    }
+  }
+
+  /**
+   * @throws IOException if the stream can't be written to anymore
+   */
+  private void check(Stream s) throws IOException {
+    if (closed) {
+      throw new IOException("Connection closed.");
+    }
+    if (s.reset) {
+      throw new IOException(format("Stream %d reset.", s.id));
+    }
+  }
+
+  private void reset(int id, int error) throws IOException {
+    synchronized (this) {
+      Stream s = streams.get(id);
+      if (s != null) {
+        s.reset = true;
+        notifyAll();
+      }
+      if (closed) {
+        return;
+      }
+      byte[] p = new byte[4];
+      putInt32(p, 0, error);
+      writeFrame(RST_STREAM, 0, id, p, 0, 4);
+      out.flush();
+    }
+  }
+
+  private void resetQuietly(Stream s, int error) {
+    synchronized (this) {
+      if (s.reset || closed) {
+        return;
+      }
+    }
+    try {
+      reset(s.id, error);
+    } catch (IOException e) {
+      log.fine(e.toString());
+    }
+  }
+
+  private void writeGoAway(int error) throws IOException {
+    byte[] p = new byte[8];
+    putInt32(p, 0, lastStreamId);
+    putInt32(p, 4, error);
+    writeFrame(GOAWAY, 0, 0, p, 0, 8);
+    goAwaySent = true;
+  }
+
+  private void writeWindowUpdate(int id, int increment) throws IOException {
+    byte[] p = new byte[4];
+    putInt32(p, 0, increment);
+    writeFrame(WINDOW_UPDATE, 0, id, p, 0, 4);
+  }
+
+  /**
+   * Writes a frame without flushing, the caller holds the lock.
+   */
+  private void writeFrame(int type, int flags, int id, byte[] b, int off, int n) throws IOException {
+    frameHead[0] = (byte) (n >>> 16);
+    frameHead[1] = (byte) (n >>> 8);
+    frameHead[2] = (byte) n;
+    frameHead[3] = (byte) type;
+    frameHead[4] = (byte) flags;
+    putInt32(frameHead, 5, id);
+    out.write(frameHead, 0, frameHead.length);
+    out.write(b, off, n);
+  }
+
+  private static void setting(byte[] b, int off, int key, int value) {
+    b[off] = (byte) (key >>> 8);
+    b[off + 1] = (byte) key;
+    putInt32(b, off + 2, value);
+  }
+
+  static int int32(byte[] b, int off) {
+    return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | b[off + 3] & 0xff;
+  }
+
+  static void putInt32(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  /**
+   * Sends what a response writes as DATA frames of its stream.
+   */
+  private class DataOutput extends ChannelOutput {
+
+    private final Stream stream;
+
+    DataOutput(Stream stream) {
+      super(ByteBuffer.allocate(FRAME_SIZE));
+      this.stream = stream;
+    }
+
+    @Override
+    protected void writeFully(ByteBuffer[] srcs) throws IOException {
+      for (ByteBuffer src : srcs) {
+        sendData(stream, src, false);
+      }
+    }
+
+    /**
+     * Sends what is left in the buffer and ends the stream.
+     */
+    void finish() throws IOException {
+      buf.flip();
+      try {
+        sendData(stream, buf, true);
+      } finally {
+        buf.clear();
+      }
+    }
+  }
+
+  /**
+   * A violation of the protocol with its error code, which ends the connection
+   * when it is found in the frames and the stream when it is found in a
+   * request.
+   */
+  static class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int error;
+
+    Http2Exception(int error, String message) {
+      super(message);
+      this.error = error;
+    }
+  }
+
+  private static class Stream {
+
+    final int id;
+    // Written by the reading thread before the stream is handed to the pool.
+    List<String> fields;
+    ByteArrayOutputStream body;
+    long length = 0;
+    // The part of the server's body memory held by the body.
+    long reserved = 0;
+    boolean tooLarge = false;
+    boolean dispatched = false;
+    long queued;
+    int unacked = 0;
+    volatile boolean remoteClosed = false;
+    // Guarded by the connection.
+    long sendWindow;
+    boolean reset = false;
+
+    Stream(int id, long window) {
+      this.id = id;
+      this.sendWindow = window;
+    }
+
+    /**
+     * Buffers part of the body, which is dropped once it is larger than the
+     * server allows or there is no memory left for it, to be answered with 413.
+     * @return false if there was no memory left for the body
+     */
+    boolean receive(Server server, byte[] b, int off, int n) {
+      if (n == 0) {
+        return true;
+      }
+      length += n;
+      if (length > server.maxBodySize) {
+        drop(server);
+        return true;
+      }
+      if (!server.reserveBody(n)) {
+        drop(server);
+        return false;
+      }
+      reserved += n;
+      if (body == null) {
+        body = new ByteArrayOutputStream(Math.max(n, 1 << 10));
+      }
+      body.write(b, off, n);
+      return true;
+    }
+
+    private void drop(Server server) {
+      tooLarge = true;
+      body = null;
+      release(server);
+    }
+
+    void release(Server server) {
+      server.releaseBody(reserved);
+      reserved = 0;
+    }
+
+    /**
+     * Turns the headers and body into the HTTP/1.1 form Request parses, a body
+     * too large is announced with its length and left out.
+     * @throws Http2Exception if the request is malformed
+     */
+    Request request(long maxBodySize) throws IOException {
+      String method = null, path = null, authority = null;
+      StringBuilder cookies = null;
+      StringBuilder fieldLines = new StringBuilder(256);
+      boolean host = false;
+      for (int i = 0; i < fields.size(); i += 2) {
+        String name = fields.get(i), value = fields.get(i + 1);
+        if (!validName(name) || !validValue(value)) {
+          throw malformed(format("Invalid header \"%s\".", name));
+        }
+        if (name.charAt(0) == ':') {
+          if (fieldLines.length() > 0 || cookies != null) {
+            throw malformed("Pseudo header after a header.");
+          }
+          switch (name) {
+            case ":method":
+              method = value;
+              break;
+            case ":path":
+              path = value;
+              break;
+            case ":authority":
+              authority = value;
+              break;
+            case ":scheme":
+              break;
+            default:
+              throw malformed(format("Unknown pseudo header %s.", name));
+          }
+        } else if (name.equals("cookie")) {
+          cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+        } else if (connectionHeader(name) || name.equals("content-length")) {
+          if (!name.equals("content-length")) {
+            throw malformed(format("Connection header %s.", name));
+          }
+        } else {
+          host |= name.equals("host");
+          fieldLines.append(name).append(": ").append(value).append("\r\n");
+        }
+      }
+      if (method == null || path == null || path.isEmpty() || path.indexOf(' ') >= 0 || method.indexOf(' ') >= 0) {
+        throw malformed("Missing or invalid :method or :path.");
+      }
+      StringBuilder h = new StringBuilder(fieldLines.length() + 64);
+      h.append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+      if (!host && authority != null) {
+        h.append("Host: ").append(authority).append("\r\n");
+      }
+      h.append(fieldLines);
+      if (cookies != null) {
+        h.append("Cookie: ").append(cookies).append("\r\n");
+      }
+      if (length > 0) {
+        h.append("Content-Length: ").append(length).append("\r\n");
+      }
+      h.append("\r\n");
+      byte[] b = h.toString().getBytes(StandardCharsets.ISO_8859_1);
+      if (body != null) {
+        int headLength = b.length;
+        b = Arrays.copyOf(b, headLength + body.size());
+        System.arraycopy(body.toByteArray(), 0, b, headLength, body.size());
+        body = null;
+      }
+      try {
+        // A dropped body is too large for the request whatever its length.
+        return new Request(new ByteArrayInputStream(b), tooLarge ? 0 : maxBodySize, null);
+      } catch (IOException e) {
+        throw malformed(e.getMessage());
+      }
+    }
+
+    private static Http2Exception malformed(String message) {
+      return new Http2Exception(PROTOCOL_ERROR, message);
+    }
+
+    private static boolean validName(String name) {
+      if (name.isEmpty()) {
+        return false;
+      }
+      for (int i = 0; i < name.length(); ++i) {
+        char c = name.charAt(i);
+        if (c <= ' ' || c >= 0x7f || (c >= 'A' && c <= 'Z') || (c == ':' && i > 0)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean validValue(String value) {
+      for (int i = 0; i < value.length(); ++i) {
+        char c = value.charAt(i);
+        if (c == '\r' || c == '\n' || c == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
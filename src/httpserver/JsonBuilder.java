@@ -36,14 +36,7 @@ public class JsonBuilder {
     }
     
     public JsonBuilder append(Object val) {
-        if (val instanceof String)
-            sb.append('"').append(val).append('"');
-        else if (val instanceof List)
-            append((List)val);
-        else if(val instanceof Map)
-            append((Map)val);
-        else
-            sb.append(val);
+        sb.append(JsonWriter.toJson(val));
         return this;
     }
     public JsonBuilder append(Object key, Object val) {
@@ -53,28 +46,10 @@ public class JsonBuilder {
         return this;
     }
     public JsonBuilder append(List val) {
-        sb.append('[');
-        boolean added = false;
-        for (Object o : val) {
-            if (added)
-                sb.append(',');
-            append(o);
-            added = true;
-        }
-        sb.append(']');
-        return this;
+        return append((Object) val);
     }
     public JsonBuilder append(Map<Object, Object> val) {
-        sb.append('{');
-        boolean added = false;
-        for (Map.Entry o : val.entrySet()) {
-            if (added)
-                sb.append(',');
-            append(o.getKey(), o.getValue());
-            added = true;
-        }
-        sb.append('}');
-        return this;
+        return append((Object) val);
     }
     
     @Override
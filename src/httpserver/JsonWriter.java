@@ -0,0 +1,539 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes json as UTF-8 bytes, either into a buffer which grows as needed or
+ * through a fixed size buffer to an OutputStream.
+ *
+ * Strings are escaped, numbers are written without going through String where
+ * possible, and commas are inserted between the values of arrays and objects.
+ * A JsonBuilder is written as the json it holds. Types the writer doesn't
+ * know are written by a registered Serializer, or as the escaped string of
+ * their toString method. Failures of the stream are thrown as
+ * UncheckedIOException.
+ */
+public class JsonWriter {
+
+  static final int BUFFER_SIZE = 1 << 13;
+  private static final byte[] NULL = "null".getBytes(), TRUE = "true".getBytes(), FALSE = "false".getBytes();
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final Map<Class<?>, Serializer<?>> serializers = new ConcurrentHashMap<>();
+  /**
+   * The serializer found for each class, replaced when one is registered.
+   */
+  private static volatile ClassValue<Serializer<?>> lookup = lookup();
+
+  /**
+   * Writes values of a type the writer doesn't know.
+   */
+  public interface Serializer<T> {
+    void write(T value, JsonWriter out);
+  }
+
+  /**
+   * Registers how values of a type and its subtypes are written, replacing the
+   * built in handling of the type. Strings, boxed numbers and booleans are
+   * always written by the writer itself.
+   */
+  public static <T> void register(Class<T> type, Serializer<? super T> serializer) {
+    serializers.put(type, serializer);
+    lookup = lookup();
+  }
+
+  private static ClassValue<Serializer<?>> lookup() {
+    return new ClassValue<Serializer<?>>() {
+      @Override
+      protected Serializer<?> computeValue(Class<?> type) {
+        Serializer<?> s = serializers.get(type);
+        if (s == null) {
+          for (Map.Entry<Class<?>, Serializer<?>> e : serializers.entrySet()) {
+            if (e.getKey().isAssignableFrom(type)) {
+              return e.getValue();
+            }
+          }
+        }
+        return s;
+      }
+    };
+  }
+
+  /**
+   * @return the json of a value
+   */
+  public static String toJson(Object value) {
+    return new JsonWriter().value(value).toString();
+  }
+
+  private final OutputStream out;
+  private byte[] buf;
+  private int count = 0;
+  /**
+   * Whether the array or object at each depth is still empty.
+   */
+  private boolean[] empty = new boolean[16];
+  private int depth = 0;
+  private boolean named = false;
+
+  /**
+   * Writes into memory, the result is read with toByteArray or toString.
+   */
+  public JsonWriter() {
+    this.out = null;
+    this.buf = new byte[256];
+  }
+
+  /**
+   * Writes to a stream, call flush when done.
+   */
+  public JsonWriter(OutputStream out) {
+    this.out = out;
+    this.buf = new byte[BUFFER_SIZE];
+  }
+
+  public JsonWriter beginObject() {
+    separate();
+    put('{');
+    push();
+    return this;
+  }
+
+  public JsonWriter endObject() {
+    --depth;
+    put('}');
+    return this;
+  }
+
+  public JsonWriter beginArray() {
+    separate();
+    put('[');
+    push();
+    return this;
+  }
+
+  public JsonWriter endArray() {
+    --depth;
+    put(']');
+    return this;
+  }
+
+  /**
+   * Writes the name of the next member of an object.
+   */
+  public JsonWriter name(CharSequence name) {
+    separate();
+    string(name);
+    put(':');
+    named = true;
+    return this;
+  }
+
+  public JsonWriter nullValue() {
+    separate();
+    put(NULL);
+    return this;
+  }
+
+  public JsonWriter value(boolean b) {
+    separate();
+    put(b ? TRUE : FALSE);
+    return this;
+  }
+
+  public JsonWriter value(long n) {
+    separate();
+    number(n);
+    return this;
+  }
+
+  /**
+   * Writes a number, infinities and NaN have no json form and are written as
+   * null.
+   */
+  public JsonWriter value(double d) {
+    separate();
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      put(NULL);
+    } else if (d == (long) d && Math.abs(d) < 1e15 && (d != 0 || 1 / d > 0)) {
+      number((long) d);
+      put('.');
+      put('0');
+    } else {
+      ascii(Double.toString(d));
+    }
+    return this;
+  }
+
+  public JsonWriter value(CharSequence s) {
+    if (s == null) {
+      return nullValue();
+    }
+    separate();
+    string(s);
+    return this;
+  }
+
+  /**
+   * Writes json as it is, for values which already hold json.
+   */
+  public JsonWriter rawValue(CharSequence json) {
+    separate();
+    put(json.toString().getBytes(StandardCharsets.UTF_8));
+    return this;
+  }
+
+  /**
+   * Writes any value: strings, numbers, booleans, maps, iterables, arrays,
+   * java.time and java.util.Date values as ISO-8601 strings, byte arrays as
+   * base64 strings, a JsonBuilder as its json, and other types with a
+   * registered Serializer. Any other type is written as the escaped string of
+   * its toString method.
+   */
+  @SuppressWarnings("unchecked")
+  public JsonWriter value(Object o) {
+    if (o == null) {
+      return nullValue();
+    }
+    if (o instanceof String) {
+      return value((CharSequence) o);
+    }
+    if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+      return value(((Number) o).longValue());
+    }
+    if (o instanceof Double) {
+      return value(((Double) o).doubleValue());
+    }
+    if (o instanceof Boolean) {
+      return value(((Boolean) o).booleanValue());
+    }
+    if (!serializers.isEmpty()) {
+      Serializer<Object> s = (Serializer<Object>) lookup.get(o.getClass());
+      if (s != null) {
+        s.write(o, this);
+        return this;
+      }
+    }
+    if (o instanceof CharSequence) {
+      return value((CharSequence) o);
+    }
+    if (o instanceof Float) {
+      float f = (Float) o;
+      if (Float.isNaN(f) || Float.isInfinite(f)) {
+        return nullValue();
+      }
+      separate();
+      ascii(Float.toString(f));
+      return this;
+    }
+    if (o instanceof BigDecimal || o instanceof BigInteger) {
+      separate();
+      ascii(o.toString());
+      return this;
+    }
+    if (o instanceof Map) {
+      beginObject();
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        name(String.valueOf(e.getKey()));
+        value(e.getValue());
+      }
+      return endObject();
+    }
+    if (o instanceof Iterable) {
+      beginArray();
+      for (Object v : (Iterable<?>) o) {
+        value(v);
+      }
+      return endArray();
+    }
+    if (o instanceof byte[]) {
+      separate();
+      put('"');
+      put(Base64.getEncoder().encode((byte[]) o));
+      put('"');
+      return this;
+    }
+    if (o.getClass().isArray()) {
+      beginArray();
+      if (o instanceof Object[]) {
+        for (Object v : (Object[]) o) {
+          value(v);
+        }
+      } else {
+        for (int i = 0, n = Array.getLength(o); i < n; ++i) {
+          value(Array.get(o, i));
+        }
+      }
+      return endArray();
+    }
+    if (o instanceof java.sql.Timestamp) {
+      return value(((java.sql.Timestamp) o).toLocalDateTime().toString());
+    }
+    if (o instanceof java.sql.Date) {
+      return value(((java.sql.Date) o).toLocalDate().toString());
+    }
+    if (o instanceof java.sql.Time) {
+      return value(((java.sql.Time) o).toLocalTime().toString());
+    }
+    if (o instanceof java.util.Date) {
+      return value(((java.util.Date) o).toInstant().toString());
+    }
+    if (o instanceof TemporalAccessor || o instanceof Character || o instanceof java.util.UUID) {
+      return value(o.toString());
+    }
+    if (o instanceof Enum) {
+      return value(((Enum<?>) o).name());
+    }
+    if (o instanceof JsonBuilder) {
+      return rawValue(o.toString());
+    }
+    return value(o.toString());
+  }
+
+  public JsonWriter value(int[] a) {
+    beginArray();
+    for (int v : a) {
+      value(v);
+    }
+    return endArray();
+  }
+
+  public JsonWriter value(long[] a) {
+    beginArray();
+    for (long v : a) {
+      value(v);
+    }
+    return endArray();
+  }
+
+  public JsonWriter value(double[] a) {
+    beginArray();
+    for (double v : a) {
+      value(v);
+    }
+    return endArray();
+  }
+
+  /**
+   * Writes the buffered bytes to the stream.
+   */
+  public void flush() {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.write(buf, 0, count);
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    count = 0;
+  }
+
+  /**
+   * @return the bytes written to a writer without a stream
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, count);
+  }
+
+  /**
+   * Empties a writer without a stream so its buffer can be reused.
+   */
+  public void reset() {
+    count = 0;
+    depth = 0;
+    named = false;
+  }
+
+  @Override
+  public String toString() {
+    return new String(buf, 0, count, StandardCharsets.UTF_8);
+  }
+
+  private void separate() {
+    if (named) {
+      named = false;
+    } else if (depth > 0) {
+      if (empty[depth - 1]) {
+        empty[depth - 1] = false;
+      } else {
+        put(',');
+      }
+    }
+  }
+
+  private void push() {
+    if (depth == empty.length) {
+      empty = Arrays.copyOf(empty, depth * 2);
+    }
+    empty[depth++] = true;
+  }
+
+  private void string(CharSequence s) {
+    put('"');
+    for (int i = 0, n = s.length(); i < n; ++i) {
+      char c = s.charAt(i);
+      if (count + 6 > buf.length) {
+        make(6);
+      }
+      if (c < 0x80) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+          buf[count++] = (byte) c;
+        } else {
+          escape(c);
+        }
+      } else if (c < 0x800) {
+        buf[count++] = (byte) (0xc0 | c >> 6);
+        buf[count++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+        int cp = Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))
+                ? Character.toCodePoint(c, s.charAt(++i)) : '?';
+        if (cp == '?') {
+          buf[count++] = '?';
+        } else {
+          buf[count++] = (byte) (0xf0 | cp >> 18);
+          buf[count++] = (byte) (0x80 | cp >> 12 & 0x3f);
+          buf[count++] = (byte) (0x80 | cp >> 6 & 0x3f);
+          buf[count++] = (byte) (0x80 | cp & 0x3f);
+        }
+      } else {
+        buf[count++] = (byte) (0xe0 | c >> 12);
+        buf[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+        buf[count++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    put('"');
+  }
+
+  private void escape(char c) {
+    buf[count++] = '\\';
+    switch (c) {
+      case '"':
+      case '\\':
+        buf[count++] = (byte) c;
+        break;
+      case '\n':
+        buf[count++] = 'n';
+        break;
+      case '\r':
+        buf[count++] = 'r';
+        break;
+      case '\t':
+        buf[count++] = 't';
+        break;
+      case '\b':
+        buf[count++] = 'b';
+        break;
+      case '\f':
+        buf[count++] = 'f';
+        break;
+      default:
+        buf[count++] = 'u';
+        buf[count++] = '0';
+        buf[count++] = '0';
+        buf[count++] = HEX[c >> 4];
+        buf[count++] = HEX[c & 0xf];
+    }
+  }
+
+  private void number(long n) {
+    if (count + 20 > buf.length) {
+      make(20);
+    }
+    if (n == Long.MIN_VALUE) {
+      ascii(Long.toString(n));
+      return;
+    }
+    if (n < 0) {
+      buf[count++] = '-';
+      n = -n;
+    }
+    int digits = 1;
+    for (long m = n; m >= 10; m /= 10) {
+      ++digits;
+    }
+    for (int i = count + digits - 1; i >= count; --i) {
+      buf[i] = (byte) ('0' + n % 10);
+      n /= 10;
+    }
+    count += digits;
+  }
+
+  private void ascii(String s) {
+    int n = s.length();
+    if (count + n > buf.length) {
+      make(n);
+    }
+    for (int i = 0; i < n; ++i) {
+      buf[count++] = (byte) s.charAt(i);
+    }
+  }
+
+  private void put(char c) {
+    if (count == buf.length) {
+      make(1);
+    }
+    buf[count++] = (byte) c;
+  }
+
+  private void put(byte[] b) {
+    if (count + b.length > buf.length) {
+      make(b.length);
+    }
+    System.arraycopy(b, 0, buf, count, b.length);
+    count += b.length;
+  }
+
+  /**
+   * Makes room for n more bytes, by emptying the buffer into the stream or by
+   * growing it.
+   */
+  private void make(int n) {
+    if (out != null) {
+      try {
+        out.write(buf, 0, count);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      count = 0;
+      if (n <= buf.length) {
+        return;
+      }
+    }
+    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+  }
+}
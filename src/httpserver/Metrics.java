@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the requests of a server and how long they take, per route and per
+ * status. The counters are cheap enough to always be on, they are read through
+ * JMX or rendered in the Prometheus text format by handler().
+ */
+public class Metrics {
+
+  private static final Logger log = Logger.getLogger(Metrics.class.getName());
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String UNROUTED = "unrouted";
+
+  final LongAdder requests = new LongAdder();
+  final LongAdder bytesIn = new LongAdder(), bytesOut = new LongAdder();
+  final AtomicInteger inFlight = new AtomicInteger(), connections = new AtomicInteger();
+  final LongAdder headerTimeouts = new LongAdder(), bodyTimeouts = new LongAdder();
+  private final LongAdder[] rejections = new LongAdder[Rejection.values().length];
+  private final Histogram[] statuses = new Histogram[Http.Status.values().length];
+  private final Map<String, Histogram> routes = new ConcurrentHashMap<>();
+  private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+  private final Map<String, Summary> summaries = new ConcurrentSkipListMap<>();
+  private ObjectName name;
+
+  private static class Gauge {
+
+    final String help;
+    final LongSupplier value;
+
+    Gauge(String help, LongSupplier value) {
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  private static class Summary {
+
+    final String help;
+    final Histogram histogram;
+
+    Summary(String help, Histogram histogram) {
+      this.help = help;
+      this.histogram = histogram;
+    }
+  }
+
+  /**
+   * Why a connection or request was answered with 503 instead of being
+   * served.
+   */
+  enum Rejection {
+    /**
+     * The queue of the pool was full.
+     */
+    QUEUE_FULL,
+    /**
+     * It waited in the queue while the pool was overloaded.
+     */
+    QUEUE_DELAY,
+    /**
+     * The server had as many connections open as allowed.
+     */
+    MAX_CONNECTIONS,
+    /**
+     * There was no memory left for its body.
+     */
+    BODY_MEMORY
+  }
+
+  Metrics() {
+    for (int i = 0; i < statuses.length; ++i) {
+      statuses[i] = new Histogram();
+    }
+    for (int i = 0; i < rejections.length; ++i) {
+      rejections[i] = new LongAdder();
+    }
+  }
+
+  void rejected(Rejection reason) {
+    rejections[reason.ordinal()].increment();
+  }
+
+  /**
+   * Adds a value read when the metrics are exported.
+   * @param name a Prometheus metric name
+   */
+  public void gauge(String name, String help, LongSupplier value) {
+    gauges.put(name, new Gauge(help, value));
+  }
+
+  /**
+   * Adds a histogram of durations in nanoseconds, exported as a summary in
+   * seconds.
+   * @param name a Prometheus metric name
+   */
+  public void summary(String name, String help, Histogram histogram) {
+    summaries.put(name, new Summary(help, histogram));
+  }
+
+  /**
+   * Records a served request.
+   * @param route the regex of the route that handled it, or null
+   */
+  void record(String route, Http.Status status, long nanos, long in, long out) {
+    requests.increment();
+    bytesIn.add(in);
+    bytesOut.add(out);
+    statuses[status.ordinal()].record(nanos);
+    String r = route == null ? UNROUTED : route;
+    Histogram h = routes.get(r);
+    if (h == null) {
+      h = routes.computeIfAbsent(r, k -> new Histogram());
+    }
+    h.record(nanos);
+  }
+
+  private interface Visitor {
+
+    void family(String name, String type, String help);
+
+    void sample(String name, String labels, double value);
+  }
+
+  private void visit(Visitor v) {
+    v.family("httpserver_requests_total", "counter", "Requests served.");
+    v.sample("httpserver_requests_total", "", requests.sum());
+    v.family("httpserver_requests_in_flight", "gauge", "Requests being handled.");
+    v.sample("httpserver_requests_in_flight", "", inFlight.get());
+    v.family("httpserver_connections_open", "gauge", "Open client connections.");
+    v.sample("httpserver_connections_open", "", connections.get());
+    v.family("httpserver_received_bytes_total", "counter", "Bytes of requests read.");
+    v.sample("httpserver_received_bytes_total", "", bytesIn.sum());
+    v.family("httpserver_sent_bytes_total", "counter", "Bytes of responses written.");
+    v.sample("httpserver_sent_bytes_total", "", bytesOut.sum());
+    v.family("httpserver_rejected_total", "counter", "Connections and requests answered with 503 instead of being served.");
+    for (Rejection r : Rejection.values()) {
+      v.sample("httpserver_rejected_total", "reason=\"" + r.name().toLowerCase() + "\"", rejections[r.ordinal()].sum());
+    }
+    v.family("httpserver_timeouts_total", "counter", "Requests whose header or body wasn't received in time.");
+    v.sample("httpserver_timeouts_total", "phase=\"header\"", headerTimeouts.sum());
+    v.sample("httpserver_timeouts_total", "phase=\"body\"", bodyTimeouts.sum());
+    v.family("httpserver_route_duration_seconds", "summary", "Time to handle and write a request, per route.");
+    for (Map.Entry<String, Histogram> e : new TreeMap<>(routes).entrySet()) {
+      summary(v, "httpserver_route_duration_seconds", "route=\"" + escape(e.getKey()) + "\"", e.getValue());
+    }
+    v.family("httpserver_status_duration_seconds", "summary", "Time to handle and write a request, per status.");
+    for (Http.Status s : Http.Status.values()) {
+      if (statuses[s.ordinal()].count() > 0) {
+        summary(v, "httpserver_status_duration_seconds", "status=\"" + s.id + "\"", statuses[s.ordinal()]);
+      }
+    }
+    for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+      v.family(e.getKey(), "gauge", e.getValue().help);
+      v.sample(e.getKey(), "", e.getValue().value.getAsLong());
+    }
+    for (Map.Entry<String, Summary> e : summaries.entrySet()) {
+      v.family(e.getKey(), "summary", e.getValue().help);
+      summary(v, e.getKey(), "", e.getValue().histogram);
+    }
+  }
+
+  private static void summary(Visitor v, String name, String labels, Histogram h) {
+    long[] q = h.quantiles(QUANTILES);
+    String sep = labels.isEmpty() ? "" : labels + ",";
+    for (int i = 0; i < q.length; ++i) {
+      v.sample(name, sep + "quantile=\"" + QUANTILES[i] + "\"", q[i] / 1e9);
+    }
+    v.sample(name + "_sum", labels, h.sum() / 1e9);
+    v.sample(name + "_count", labels, h.count());
+  }
+
+  private static String escape(String label) {
+    return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /**
+   * @return the metrics in the Prometheus text format
+   */
+  public String prometheus() {
+    StringBuilder sb = new StringBuilder(4096);
+    visit(new Visitor() {
+      @Override
+      public void family(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      }
+
+      @Override
+      public void sample(String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+          sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == (long) value) {
+          sb.append((long) value);
+        } else {
+          sb.append(value);
+        }
+        sb.append('\n');
+      }
+    });
+    return sb.toString();
+  }
+
+  /**
+   * @return a handler answering with the metrics in the Prometheus text
+   * format, to be added as a route
+   */
+  public RequestHandler handler() {
+    return req -> new Responses.RawResponse(prometheus().getBytes(StandardCharsets.UTF_8),
+            "text/plain; version=0.0.4; charset=utf-8");
+  }
+
+  /**
+   * @return every sample by its name and labels
+   */
+  public Map<String, Double> values() {
+    Map<String, Double> res = new TreeMap<>();
+    visit(new Visitor() {
+      @Override
+      public void family(String name, String type, String help) {
+      }
+
+      @Override
+      public void sample(String name, String labels, double value) {
+        res.put(labels.isEmpty() ? name : name + "{" + labels + "}", value);
+      }
+    });
+    return res;
+  }
+
+  /**
+   * Makes the metrics readable through JMX as the attributes of one bean.
+   */
+  void register(String objectName) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      name = new ObjectName(objectName);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(new Bean(), name);
+      }
+    } catch (JMException e) {
+      log.warning(String.format("Failed registering metrics as '%s': %s", objectName, e));
+      name = null;
+    }
+  }
+
+  void unregister() {
+    if (name == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      log.warning(e.toString());
+    }
+    name = null;
+  }
+
+  private class Bean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Double v = values().get(attribute);
+      if (v == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return v;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read only.");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Double> values = values();
+      AttributeList res = new AttributeList();
+      for (String a : attributes) {
+        Double v = values.get(a);
+        if (v != null) {
+          res.add(new Attribute(a, v));
+        }
+      }
+      return res;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Double> values = values();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+      int i = 0;
+      for (String a : values.keySet()) {
+        attributes[i++] = new MBeanAttributeInfo(a, "java.lang.Double", a, true, false, false);
+      }
+      return new MBeanInfo(Metrics.class.getName(), "Request metrics of the server.", attributes, null, null, null);
+    }
+  }
+}
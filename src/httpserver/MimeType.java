@@ -29,19 +29,40 @@ import java.util.logging.Logger;
 
 
 public enum MimeType {
-    JPG("image/jpg", "jpg"),
-    PNG("image/png", "png"),
-    ICO("image/x-icon", "ico"),
-    CSS("text/css", "css"),
-    JS("application/js", "js"),
-    HTML("text/html", "html"),
+    JPG("image/jpg", "jpg", false),
+    PNG("image/png", "png", false),
+    ICO("image/x-icon", "ico", true),
+    CSS("text/css", "css", true),
+    JS("application/js", "js", true),
+    HTML("text/html", "html", true),
     ;
     private static final Logger log = Logger.getLogger(MimeType.class.getName());
     
     public final String name, ext;
-    MimeType(String name, String extension) {
+    /**
+     * Whether content of the type gets smaller when compressed.
+     */
+    public final boolean compressible;
+    MimeType(String name, String extension, boolean compressible) {
         this.name = name;
         this.ext = extension;
+        this.compressible = compressible;
+    }
+    
+    /**
+     * @param contentType the value of a Content-Type header, may be null
+     * @return true if content of the type is worth compressing
+     */
+    public static boolean compressible(String contentType) {
+        if (contentType == null)
+            return false;
+        int end = contentType.indexOf(';');
+        String type = (end < 0 ? contentType : contentType.substring(0, end)).trim();
+        MimeType known = byName.get(type);
+        if (known != null)
+            return known.compressible;
+        return type.startsWith("text/") || type.endsWith("json") || type.endsWith("xml")
+                || type.endsWith("javascript");
     }
     
     public static MimeType fromFileName(String name) {
@@ -57,8 +78,11 @@ public enum MimeType {
     }
     
     private final static HashMap<String, MimeType> index = new HashMap<>();
+    private final static HashMap<String, MimeType> byName = new HashMap<>();
     static {
-        for (MimeType t : MimeType.values())
+        for (MimeType t : MimeType.values()) {
             index.put(t.ext, t);
+            byName.put(t.name, t);
+        }
     }
 }
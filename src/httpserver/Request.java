@@ -27,24 +27,48 @@ import java.util.List;
 import java.util.ArrayList;
 import java.io.*;
 import static httpserver.Http.*;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import util.HttpHeaders;
-import util.io.CappedInputStream;
-import util.io.Streams;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Request {
-  public final int MAX_HEADER_SIZE = 1 << 13;
+  public static final int MAX_HEADER_SIZE = 1 << 13;
 
-  public final String path, protocol, host;
-  public final Map<String, String> cookies = new HashMap<>(), headers;
+  /**
+   * The path of the request target, without the query string.
+   */
+  public final String path;
+  /**
+   * The query string after the '?' of the request target, or null.
+   */
+  public final String query;
+  public final String protocol, host;
+  /**
+   * The headers and cookies are parsed from the raw header bytes when they
+   * are first used, header names ignore case.
+   */
+  public final Map<String, String> cookies = new Cookies(), headers = new Headers();
   public final List<String> params = new ArrayList<>();
   public final Method method;
+  /**
+   * The body if it was small enough to be read before the request was handled,
+   * otherwise empty and the body is read from body().
+   */
   public final byte[] data;
+  /**
+   * The regex of the Aggregate route that handled the request, for metrics.
+   */
+  String route;
 
-  private void parseCookies(String val) {
+  private static void parseCookies(Map<String, String> cookies, String val) {
     if (val == null)
       return;
     int cur = 0;
@@ -68,26 +92,141 @@ public class Request {
     }
   }
 
+  private static final byte[][] METHODS = new byte[Method.values().length][];
+  private static final String HTTP10 = "HTTP/1.0", HTTP11 = "HTTP/1.1";
+  private static final byte[] HTTP10_BYTES = HTTP10.getBytes(), HTTP11_BYTES = HTTP11.getBytes();
+  static {
+    for (Method m : Method.values()) {
+      METHODS[m.ordinal()] = m.name().getBytes();
+    }
+  }
+  /**
+   * Scratch space for reading the header, only the bytes of the header are
+   * kept. Buffers are pooled rather than kept per thread, which would cost a
+   * buffer per virtual thread.
+   */
+  private static final ConcurrentLinkedQueue<byte[]> SCRATCH = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger scratchCount = new AtomicInteger();
+  static final int MAX_SCRATCH_BUFFERS = 64;
+
+  private static byte[] scratch() {
+    byte[] b = SCRATCH.poll();
+    if (b == null) {
+      return new byte[MAX_HEADER_SIZE];
+    }
+    scratchCount.decrementAndGet();
+    return b;
+  }
+
+  private static void release(byte[] b) {
+    if (scratchCount.incrementAndGet() <= MAX_SCRATCH_BUFFERS) {
+      SCRATCH.offer(b);
+    } else {
+      scratchCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * A request whose framing can't be trusted, answered with 400 before the
+   * connection is closed.
+   */
+  static class BadRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    BadRequestException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * The request line and headers, up to and including the empty line.
+   */
+  private final byte[] head;
+  /**
+   * The name start, name end, value start and value end of each header line.
+   */
+  private int[] fields = new int[32];
+  private int fieldCount = 0;
+
+  /**
+   * Bodies up to this size are read into data before the request is handled.
+   */
+  public static final int BUFFERED_BODY_SIZE = 1 << 16;
+  private static final byte[] EMPTY = new byte[0];
+
+  /**
+   * The length of the body, -1 if it is chunked.
+   */
+  private final long contentLength;
+  private InputStream body;
+  /**
+   * Set if the body is larger than allowed, it is then left unread.
+   */
+  final boolean bodyTooLarge;
+  private final Server budget;
+  private long reserved = 0;
+
   Request(InputStream req) throws IOException {
-    InputStream s = new CappedInputStream(req, MAX_HEADER_SIZE);
-    String protocolLine = Streams.readWindowsLine(s);
-    String[] protocols = protocolLine.split(" ");
-    if (protocols.length != 3) {
-      throw new IOException(String.format("Invalid protocol header: \"%s\"", protocolLine));
+    this(req, Server.DEFAULT_MAX_BODY_SIZE, null);
+  }
+
+  /**
+   * @param maxBodySize the largest body accepted
+   * @param budget the server whose memory budget buffered bodies count
+   * against, or null if the body is in memory already
+   */
+  Request(InputStream req, long maxBodySize, Server budget) throws IOException {
+    this.budget = budget;
+    head = readHead(req);
+    int lineEnd = indexOf(head, 0, '\r');
+    int sp1 = indexOf(head, 0, ' ');
+    int sp2 = sp1 < 0 ? -1 : indexOf(head, sp1 + 1, ' ');
+    int sp3 = sp2 < 0 ? -1 : indexOf(head, sp2 + 1, ' ');
+    if (sp1 < 0 || sp2 < 0 || sp2 > lineEnd || (sp3 >= 0 && sp3 < lineEnd)) {
+      throw new IOException(String.format("Invalid protocol header: \"%s\"", latin1(0, lineEnd)));
     }
-    try {
-      method = Method.valueOf(protocols[0]);
-    } catch (IllegalArgumentException e) {
-      throw new IOException(String.format("Invalid method: %s.", protocols[0]));
-    }
-    path = protocols[1];
-    protocol = protocols[2];
-    headers = HttpHeaders.parseHeaders(s);
-    host = headers.get("Host");
-    
-    String length = headers.get("Content-Length");
-    data = new byte[length == null? 0: Integer.parseInt(length)];
-    {
+    method = method(sp1);
+    int q = sp1 + 1;
+    while (q < sp2 && head[q] != '?') {
+      ++q;
+    }
+    path = latin1(sp1 + 1, q);
+    query = q < sp2 ? latin1(q + 1, sp2) : null;
+    protocol = matches(sp2 + 1, lineEnd, HTTP11_BYTES) ? HTTP11
+            : matches(sp2 + 1, lineEnd, HTTP10_BYTES) ? HTTP10 : latin1(sp2 + 1, lineEnd);
+    indexHeaders(lineEnd + 2);
+    int hostField = field("Host");
+    host = hostField < 0 ? null : value(hostField);
+
+    int lengthField = field("Content-Length");
+    int encodingField = field("Transfer-Encoding");
+    boolean chunked = encodingField >= 0 && value(encodingField).toLowerCase().endsWith("chunked");
+    if (encodingField >= 0 && !chunked) {
+      throw new IOException(String.format("Unsupported Transfer-Encoding: %s.", value(encodingField)));
+    }
+    if (chunked && lengthField >= 0) {
+      throw new BadRequestException("Both Content-Length and Transfer-Encoding given.");
+    }
+    contentLength = chunked ? -1 : lengthField < 0 ? 0 : contentLength(lengthField);
+    if (lengthField >= 0) {
+      // Differing lengths would let a proxy and this server see different
+      // requests in the same bytes.
+      for (int f = lengthField - 4; f >= 0; f -= 4) {
+        if (isField(f, "Content-Length") && contentLength(f) != contentLength) {
+          throw new BadRequestException("Conflicting Content-Length headers.");
+        }
+      }
+    }
+    bodyTooLarge = contentLength > maxBodySize;
+    if (bodyTooLarge || contentLength == 0) {
+      data = EMPTY;
+      body = new ByteArrayInputStream(EMPTY);
+    } else if (chunked) {
+      data = EMPTY;
+      body = new ChunkedInputStream(req, maxBodySize);
+    } else if (contentLength <= BUFFERED_BODY_SIZE && reserve(contentLength)) {
+      data = new byte[(int) contentLength];
       int tot = 0;
       while (tot < data.length) {
         int c = req.read(data, tot, data.length - tot);
@@ -95,15 +234,469 @@ public class Request {
           throw new IOException("Unexpected end of stream.");
         tot += c;
       }
-        
+      body = new ByteArrayInputStream(data);
+    } else {
+      data = EMPTY;
+      body = new BoundedInputStream(req, contentLength);
+    }
+  }
+
+  private boolean reserve(long n) {
+    if (budget == null) {
+      return true;
+    }
+    if (!budget.reserveBody(n)) {
+      return false;
+    }
+    reserved = n;
+    return true;
+  }
+
+  /**
+   * Parses the request line and headers of a request without a body again,
+   * giving a request with the params and route of this one, which later
+   * handlers can add to without touching this one.
+   */
+  Request reparse() throws IOException {
+    Request r = new Request(new ByteArrayInputStream(head));
+    r.params.addAll(params);
+    r.route = route;
+    return r;
+  }
+
+  /**
+   * Returns the memory used by the buffered body to the budget of the server.
+   */
+  void release() {
+    if (reserved > 0) {
+      budget.releaseBody(reserved);
+      reserved = 0;
+    }
+  }
+
+  /**
+   * The body of the request, read as it arrives unless it was small enough to
+   * be read into data. Whatever the handler leaves unread is skipped before
+   * the next request on the connection, or the connection is closed if too
+   * much is left.
+   * @return the body, which throws an IOException if a chunked body grows
+   * larger than allowed
+   */
+  public InputStream body() {
+    return body;
+  }
+
+  /**
+   * @return the length of the body, or -1 if it is sent in chunks of unknown
+   * total size
+   */
+  public long contentLength() {
+    return contentLength;
+  }
+
+  /**
+   * @return whether the body turned out to be larger than allowed while it
+   * was read
+   */
+  boolean bodyOverflowed() {
+    return bodyTooLarge || body instanceof ChunkedInputStream && ((ChunkedInputStream) body).tooLarge;
+  }
+
+  /**
+   * @return the bytes of the header and the body read so far
+   */
+  long bytesIn() {
+    if (body instanceof ChunkedInputStream) {
+      return head.length + ((ChunkedInputStream) body).total;
+    }
+    return head.length + (bodyTooLarge ? 0 : contentLength);
+  }
+
+  /**
+   * Skips what the handler left of the body.
+   * @return false if more than BUFFERED_BODY_SIZE bytes were left or the body
+   * couldn't be read, then the connection can't be reused
+   */
+  boolean discardBody() {
+    if (bodyTooLarge) {
+      return false;
+    }
+    try {
+      byte[] skip = scratch();
+      try {
+        long left = BUFFERED_BODY_SIZE;
+        int n;
+        while ((n = body.read(skip, 0, (int) Math.min(skip.length, left + 1))) > 0) {
+          left -= n;
+          if (left < 0) {
+            return false;
+          }
+        }
+        return true;
+      } finally {
+        release(skip);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The body of a request with a Content-Length, ending where the next request
+   * starts.
+   */
+  private static class BoundedInputStream extends InputStream {
+
+    private final InputStream in;
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int c = in.read();
+      if (c < 0) {
+        throw new EOFException("Unexpected end of stream.");
+      }
+      --remaining;
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0) {
+        throw new EOFException("Unexpected end of stream.");
+      }
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+  }
+
+  /**
+   * Reads up to and including the empty line ending the header, but not
+   * further, so the body and any following request stay in the stream.
+   */
+  private static byte[] readHead(InputStream in) throws IOException {
+    byte[] buf = scratch();
+    try {
+      return readHead(in, buf);
+    } finally {
+      release(buf);
+    }
+  }
+
+  private static byte[] readHead(InputStream in, byte[] buf) throws IOException {
+    int n = 0;
+    if (in.markSupported()) {
+      in.mark(MAX_HEADER_SIZE);
+      int end = -1;
+      while (end < 0) {
+        if (n == buf.length) {
+          throw new IOException("Request header too large.");
+        }
+        int r = in.read(buf, n, buf.length - n);
+        if (r < 0) {
+          throw new EOFException("Unexpected end of stream.");
+        }
+        int from = Math.max(0, n - 3);
+        n += r;
+        end = headEnd(buf, from, n);
+      }
+      in.reset();
+      for (long skip = end; skip > 0;) {
+        skip -= in.skip(skip);
+      }
+      return Arrays.copyOf(buf, end);
+    }
+    while (n < 4 || buf[n - 1] != '\n' || buf[n - 2] != '\r' || buf[n - 3] != '\n' || buf[n - 4] != '\r') {
+      if (n == buf.length) {
+        throw new IOException("Request header too large.");
+      }
+      int c = in.read();
+      if (c < 0) {
+        throw new EOFException("Unexpected end of stream.");
+      }
+      buf[n++] = (byte) c;
+    }
+    return Arrays.copyOf(buf, n);
+  }
+
+  /**
+   * @return the index after the first "\r\n\r\n" ending at or after from, or -1
+   */
+  private static int headEnd(byte[] b, int from, int to) {
+    for (int i = from; i + 3 < to; ++i) {
+      if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') {
+        return i + 4;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(byte[] b, int from, char c) {
+    for (int i = from; i < b.length; ++i) {
+      if (b[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private Method method(int end) throws IOException {
+    for (Method m : Method.values()) {
+      if (matches(0, end, METHODS[m.ordinal()])) {
+        return m;
+      }
+    }
+    throw new IOException(String.format("Invalid method: %s.", latin1(0, end)));
+  }
+
+  private boolean matches(int from, int to, byte[] expected) {
+    if (to - from != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; ++i) {
+      if (head[from + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String latin1(int from, int to) {
+    return new String(head, from, to - from, StandardCharsets.ISO_8859_1);
+  }
+
+  private void indexHeaders(int pos) throws IOException {
+    int end = head.length - 2;
+    while (pos < end) {
+      int lineEnd = indexOf(head, pos, '\r');
+      int colon = pos;
+      while (colon < lineEnd && head[colon] != ':') {
+        ++colon;
+      }
+      if (colon == lineEnd || colon == pos) {
+        throw new IOException(String.format("Invalid header: \"%s\"", latin1(pos, lineEnd)));
+      }
+      int valueStart = colon + 1, valueEnd = lineEnd;
+      while (valueStart < valueEnd && (head[valueStart] == ' ' || head[valueStart] == '\t')) {
+        ++valueStart;
+      }
+      while (valueEnd > valueStart && (head[valueEnd - 1] == ' ' || head[valueEnd - 1] == '\t')) {
+        --valueEnd;
+      }
+      if (fieldCount == fields.length) {
+        fields = Arrays.copyOf(fields, fieldCount * 2);
+      }
+      fields[fieldCount++] = pos;
+      fields[fieldCount++] = colon;
+      fields[fieldCount++] = valueStart;
+      fields[fieldCount++] = valueEnd;
+      pos = lineEnd + 2;
+    }
+  }
+
+  /**
+   * @return the index in fields of the last header with the name, ignoring
+   * case, or -1
+   */
+  private int field(String name) {
+    for (int f = fieldCount - 4; f >= 0; f -= 4) {
+      if (isField(f, name)) {
+        return f;
+      }
+    }
+    return -1;
+  }
+
+  private boolean isField(int f, String name) {
+    int from = fields[f];
+    if (fields[f + 1] - from != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); ++i) {
+      if (lower(head[from + i]) != Character.toLowerCase(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int lower(byte b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+
+  private String value(int f) {
+    return latin1(fields[f + 2], fields[f + 3]);
+  }
+
+  private long contentLength(int f) throws IOException {
+    long n = 0;
+    for (int i = fields[f + 2]; i < fields[f + 3]; ++i) {
+      int d = head[i] - '0';
+      if (d < 0 || d > 9 || n > Long.MAX_VALUE / 10 - 1) {
+        throw new BadRequestException(String.format("Invalid Content-Length: %s.", value(f)));
+      }
+      n = n * 10 + d;
+    }
+    if (fields[f + 2] == fields[f + 3]) {
+      throw new BadRequestException(String.format("Invalid Content-Length: %s.", value(f)));
+    }
+    return n;
+  }
+
+  /**
+   * Looks headers up in the raw bytes, the map is only built if it is
+   * iterated or modified.
+   */
+  private class Headers extends AbstractMap<String, String> {
+
+    private Map<String, String> map;
+
+    private Map<String, String> map() {
+      if (map == null) {
+        map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int f = 0; f < fieldCount; f += 4) {
+          map.put(latin1(fields[f], fields[f + 1]), value(f));
+        }
+      }
+      return map;
+    }
+
+    @Override
+    public String get(Object key) {
+      if (!(key instanceof String)) {
+        return null;
+      }
+      if (map != null) {
+        return map.get(key);
+      }
+      int f = field((String) key);
+      return f < 0 ? null : value(f);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+      return map().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+      return map().remove(key);
+    }
+
+    @Override
+    public int size() {
+      return map == null ? fieldCount / 4 : map.size();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      return map().entrySet();
+    }
+  }
+
+  /**
+   * Parses the Cookie header when the cookies are first used.
+   */
+  private class Cookies extends AbstractMap<String, String> {
+
+    private Map<String, String> map;
+
+    private Map<String, String> map() {
+      if (map == null) {
+        map = new HashMap<>();
+        parseCookies(map, headers.get("Cookie"));
+      }
+      return map;
+    }
+
+    @Override
+    public String get(Object key) {
+      return map().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return map().containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+      return map().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+      return map().remove(key);
+    }
+
+    @Override
+    public int size() {
+      return map().size();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      return map().entrySet();
     }
-    parseCookies(headers.get("Cookie"));
   }
   
+  /**
+   * Checks whether the client wants to keep the connection open after this
+   * request, HTTP/1.1 connections are persistent unless they ask to close while
+   * HTTP/1.0 ones have to ask for keep-alive.
+   * @return true if the connection may be reused for another request
+   */
+  public boolean keepAlive() {
+    String connection = headers.get("Connection");
+    if (connection != null) {
+      for (String token : connection.split(",")) {
+        token = token.trim();
+        if (token.equalsIgnoreCase("close"))
+          return false;
+        if (token.equalsIgnoreCase("keep-alive"))
+          return true;
+      }
+    }
+    return !protocol.equals("HTTP/1.0");
+  }
+
+  /**
+   * @return whether the client understands "Transfer-Encoding: chunked"
+   */
+  public boolean acceptsChunked() {
+    return !protocol.equals("HTTP/1.0");
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append(method.toString()).append(" ").append(protocol).append(" ").append(path).append("\r\n");
+    sb.append(method.toString()).append(" ").append(protocol).append(" ").append(path);
+    if (query != null) {
+      sb.append('?').append(query);
+    }
+    sb.append("\r\n");
     for (Entry<String, String> e : headers.entrySet())
       sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
     sb.append("\r\n");
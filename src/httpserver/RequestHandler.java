@@ -28,7 +28,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 import static httpserver.Http.Method;
-import java.util.regex.Matcher;
 
 
 public interface RequestHandler {
@@ -58,49 +57,43 @@ public interface RequestHandler {
     
   }
   
+  /**
+   * Dispatches requests to the handler of the first route whose method and
+   * regex match the path. The regex groups are added to the params of the
+   * request.
+   */
   public static class Aggregate implements RequestHandler {
 
     @Override
     public Response handle(Request req) throws SocketException {
-      for (int i = 0; i < patterns.length; ++i) {
-        if (req.method == methods[i]) {
-          Matcher m = patterns[i].matcher(req.path);
-          if (m.matches()) {
-            int e = m.groupCount();
-            for (int j = 1; j <= e; ++j)
-              req.params.add(m.group(j));
-            return handlers[i].handle(req);
-          }
-        }
-      }
-      return Responses.notFound();
+      RequestHandler h = routes.route(req);
+      return h == null ? Responses.notFound() : h.handle(req);
     }
-    private RequestHandler[] handlers;
-    private Pattern[] patterns;
-    private Method[] methods;
-
-    private Aggregate() {
+    private final RouteTable routes;
 
+    private Aggregate(RouteTable routes) {
+      this.routes = routes;
     }
 
     public static class Builder {
 
       private final List<RequestHandler> handlers = new ArrayList<>();
       private final List<Method> methods = new ArrayList<>();
-      private final List<Pattern> patterns = new ArrayList<>();
+      private final List<String> patterns = new ArrayList<>();
 
       public void add(Method method, String regex, RequestHandler handler) {
+        Pattern.compile(regex);
         handlers.add(handler);
         methods.add(method);
-        patterns.add(Pattern.compile(regex));
+        patterns.add(regex);
       }
 
       public Aggregate build() {
-        Aggregate res = new Aggregate();
-        res.handlers = handlers.toArray(new RequestHandler[handlers.size()]);
-        res.methods = methods.toArray(new Method[methods.size()]);
-        res.patterns = patterns.toArray(new Pattern[patterns.size()]);
-        return res;
+        RouteTable routes = new RouteTable();
+        for (int i = 0; i < handlers.size(); ++i) {
+          routes.add(methods.get(i), patterns.get(i), handlers.get(i));
+        }
+        return new Aggregate(routes);
       }
     }
   }
@@ -35,34 +35,146 @@ public class Response {
     this(Status.SUCCESS);
   }
 
+  /**
+   * @param status the status of the response
+   * @param headers complete header lines, like "Location: /index.html"
+   */
   public Response(Status status, String... headers) {
     this.status = status;
-    this.headers = new ArrayList<>(Arrays.asList(headers));
+    for (String h : headers) {
+      int colon = h.indexOf(':');
+      if (colon < 0) {
+        throw new IllegalArgumentException(String.format("Invalid header: \"%s\"", h));
+      }
+      addHeader(h.substring(0, colon), h.substring(colon + 1).trim());
+    }
   }
 
-  void send(OutputStream out) throws IOException {
-    out.write(String.format("%s %d %s\r\n", DEFAULT_VERSION, status.id, status.msg).getBytes());
-    for (String s : headers) {
-      out.write(s.getBytes());
-      out.write(LN);
+  /**
+   * Writes the response to the client.
+   * @param out the connection to write to
+   * @param keepAlive whether the connection will be kept open afterwards
+   */
+  void send(ChannelOutput out, boolean keepAlive) throws IOException {
+    if (head != null) {
+      out.write(head);
+    } else {
+      writeHead(out);
     }
+    out.write(keepAlive ? KEEP_ALIVE : CLOSE);
     out.write(LN);
+    sendBody(out);
+  }
+
+  void writeHead(ChannelOutput out) throws IOException {
+    out.write(STATUS_LINES[status.ordinal()]);
+    for (int i = 0; i < headerCount; i += 2) {
+      out.writeAscii(headers[i]);
+      out.write(SEPARATOR);
+      out.writeAscii(headers[i + 1]);
+      out.write(LN);
+    }
+    if (!hasBody() && status != Status.NOT_MODIFIED) {
+      out.write(EMPTY_BODY);
+    }
+  }
+
+  /**
+   * @return true if the response sets its own Content-Length and writes a body.
+   */
+  boolean hasBody() {
+    return false;
+  }
+
+  void sendBody(ChannelOutput out) throws IOException {
+  }
+
+  /**
+   * Serializes the status and headers once so the response can be shared and
+   * sent without any work, they can't be modified afterwards.
+   * @return this response
+   */
+  final Response seal() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ChannelOutput out = ChannelOutput.of(bytes);
+    try {
+      writeHead(out);
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    head = bytes.toByteArray();
+    return this;
   }
 
   public final Response addHeader(String headerName, String headerValue) {
-    headers.add(headerName + ": " + headerValue);
+    if (head != null) {
+      throw new UnsupportedOperationException("The response is shared and can't be modified.");
+    }
+    if (headerCount == headers.length) {
+      headers = Arrays.copyOf(headers, headerCount * 2);
+    }
+    headers[headerCount++] = headerName;
+    headers[headerCount++] = headerValue;
     return this;
   }
 
   public final Response setCookie(String key, String value, int durationSeconds) {
     Calendar end = Calendar.getInstance();
     end.add(Calendar.SECOND, durationSeconds);
-    headers.add("Set-Cookie: " + key + '=' + value + "; Path=/; Expires=" + Strings.fromDate(end.getTime()));
-    return this;
+    return addHeader("Set-Cookie", key + '=' + value + "; Path=/; Expires=" + Strings.fromDate(end.getTime()));
+  }
+
+  /**
+   * @param headerName the name of the header, ignoring case
+   * @return the value of the first header with the name or null if there is
+   * none
+   */
+  public final String header(String headerName) {
+    for (int i = 0; i < headerCount; i += 2) {
+      if (headers[i].equalsIgnoreCase(headerName)) {
+        return headers[i + 1];
+      }
+    }
+    return null;
+  }
+
+  final boolean isSealed() {
+    return head != null;
+  }
+
+  final int headerCount() {
+    return headerCount / 2;
+  }
+
+  final String headerName(int i) {
+    return headers[2 * i];
+  }
+
+  final String headerValue(int i) {
+    return headers[2 * i + 1];
   }
 
   protected Status status;
-  protected List<String> headers = new ArrayList<>();
+  /**
+   * Alternating header names and values.
+   */
+  private String[] headers = new String[16];
+  private int headerCount = 0;
+  /**
+   * The serialized status line and headers of a sealed response.
+   */
+  private byte[] head;
   static final String DEFAULT_VERSION = "HTTP/1.1";
   static final byte[] LN = new byte[]{'\r', '\n'};
+  static final byte[] SEPARATOR = new byte[]{':', ' '};
+  static final byte[] EMPTY_BODY = "Content-Length: 0\r\n".getBytes();
+  static final byte[] KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes();
+  static final byte[] CLOSE = "Connection: close\r\n".getBytes();
+  private static final byte[][] STATUS_LINES = new byte[Status.values().length][];
+  static {
+    for (Status s : Status.values()) {
+      STATUS_LINES[s.ordinal()] = String.format("%s %d %s\r\n", DEFAULT_VERSION, s.id, s.msg).getBytes();
+    }
+  }
 }
@@ -25,33 +25,86 @@ package httpserver;
 
 import httpserver.Http.Status;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.time.Instant;
-import static java.time.temporal.ChronoField.INSTANT_SECONDS;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
-import util.Strings;
 
 
 public class Responses {
 
   private static final Logger log = Logger.getLogger(Responses.class.getName());
   
+  private static final Response NOT_FOUND = new Response(Status.NOT_FOUND).seal();
+  private static final Response BAD_REQUEST = new Response(Status.FAIL).seal();
+  private static final Response NOT_MODIFIED = new Response(Status.NOT_MODIFIED).seal();
+  private static final Response SERVER_ERROR = new Response(Status.SERVER_ERROR).seal();
+  private static final Response PAYLOAD_TOO_LARGE = new Response(Status.PAYLOAD_TOO_LARGE).seal();
+  private static final Response SERVICE_UNAVAILABLE = new Response(Status.SERVICE_UNAVAILABLE).seal();
+
+  /**
+   * The constant responses are shared and can't be modified.
+   * @return a pre-serialized 404 response
+   */
   public static final Response notFound() {
-      return new Response(Status.NOT_FOUND);
+      return NOT_FOUND;
   }
   public static final Response notModified() {
-      return new Response(Status.NOT_MODIFIED);
+      return NOT_MODIFIED;
+  }
+  public static final Response badRequest() {
+      return BAD_REQUEST;
+  }
+
+  /**
+   * Lets a handler answer a conditional GET before building a body the client
+   * already has. Responses are checked after the handler anyway, this only
+   * saves the work.
+   * @param etag the ETag the response would have, or null
+   * @param lastModified when the content last changed in milliseconds, or -1
+   * @return a 304 or 412 response with the validators, or null if the
+   * response has to be sent
+   */
+  public static Response notModified(Request req, String etag, long lastModified) {
+    Status s = Conditional.check(req, etag, lastModified);
+    if (s == null) {
+      return null;
+    }
+    Response res = new Response(s);
+    if (etag != null) {
+      res.addHeader("ETag", etag);
+    }
+    if (lastModified >= 0) {
+      res.addHeader("Last-Modified", Conditional.formatDate(lastModified));
+    }
+    return res;
+  }
+
+  /**
+   * @return whether the file was modified at or before the date, which has
+   * a precision of seconds
+   */
+  private static boolean unmodified(File f, Date cacheDate) {
+    return cacheDate != null && f.lastModified() / 1000 * 1000 <= cacheDate.getTime();
   }
   public static final Response serverError() {
-      return new Response(Status.SERVER_ERROR);
+      return SERVER_ERROR;
+  }
+  public static final Response payloadTooLarge() {
+      return PAYLOAD_TOO_LARGE;
+  }
+  public static final Response serviceUnavailable() {
+      return SERVICE_UNAVAILABLE;
   }
   
   /**
    * Responds with the content of a file.
    * @param input the file to send
    * @param mimetype the type of the file
-   * @param cacheDate the date of the cached version
+   * @param cacheDate the date of the cached version, or null
    * @return A response object which will send the data
    */
   public static Response respond(File input, String mimetype, Date cacheDate) {
@@ -59,9 +112,9 @@ public class Responses {
       return notFound();
     }
     try {
-      long l = input.lastModified();
-      if (cacheDate.getTime() == Instant.ofEpochMilli(l).getLong(INSTANT_SECONDS)*1000)
+      if (unmodified(input, cacheDate)) {
         return notModified();
+      }
       Response res = new FileResponse(input, mimetype);
       return res;
     } catch (IOException e) {
@@ -69,21 +122,36 @@ public class Responses {
     }
   }
   
+  private static volatile FileCache fileCache;
+
+  /**
+   * Makes respond(File) and respond(File, Date) serve small files from
+   * memory.
+   * @param cache the cache to use, or null to always read from disk
+   */
+  public static void setFileCache(FileCache cache) {
+    fileCache = cache;
+  }
+
   /**
    * Responds with the content of a file, the type will be deduced from its
    * filename.
    * @param input the file to send
-   * @param cacheDate the date of the cached version
+   * @param cacheDate the date of the cached version, or null
    * @return A response object which will send the data
    */
   public static Response respond(File input, Date cacheDate) {
+    FileCache cache = fileCache;
+    if (cache != null) {
+      return cache.respond(input, cacheDate);
+    }
     if (!input.isFile()) {
       return notFound();
     }
     try {
-      long l = input.lastModified();
-      if (cacheDate.getTime() == Instant.ofEpochMilli(l).getLong(INSTANT_SECONDS)*1000)
+      if (unmodified(input, cacheDate)) {
         return notModified();
+      }
       Response res = new FileResponse(input);
       return res;
     } catch (IOException e) {
@@ -99,6 +167,10 @@ public class Responses {
    * @return A response object which will send the data
    */
   public static Response respond(File input) {
+    FileCache cache = fileCache;
+    if (cache != null) {
+      return cache.respond(input);
+    }
     if (!input.isFile()) {
       return notFound();
     }
@@ -147,6 +219,15 @@ public class Responses {
     return new RawResponse(json.toString(), "application/json");
   }
 
+  /**
+   * Responds with the json written to a JsonWriter without a stream.
+   * @param json the writer holding the json
+   * @return A response object which will send the data
+   */
+  public static Response json(JsonWriter json) {
+    return new RawResponse(json.toByteArray(), "application/json");
+  }
+
   /**
    * Responds by just setting a cookie.
    * @param name The name of the cookie
@@ -155,47 +236,64 @@ public class Responses {
    * @return A response object which will send the data
    */
   public static Response cookie(String name, String value, int durationSeconds) {
-    Response r = new Response();
-    Calendar end = Calendar.getInstance();
-    end.add(Calendar.SECOND, durationSeconds);
-    r.headers.add("Set-Cookie: " + name + '=' + value + "; Path=/; Expires=" + Strings.fromDate(end.getTime()));
-    return r;
+    return new Response().setCookie(name, value, durationSeconds);
   }
 
 
   static class FileResponse extends Response {
 
     File f;
+    long length;
 
     FileResponse(File f) throws IOException {
-      this.f = f;
-      MimeType type = MimeType.fromFileName(f.getName());
-      if (type != null) {
-        headers.add("Content-Type: " + type.name);
-      }
-      headers.add("Content-Length: " + Files.size(f.toPath()));
-      headers.add("Last-Modified: " + Strings.fromDate(new Date(f.lastModified())));
-      headers.add("Cache-Control: Public");
+      this(f, typeOf(f));
     }
     FileResponse(File f, String type) throws IOException {
+      this(f, type, f.lastModified());
+    }
+    /**
+     * @param lastModified the modification date to report, which differs from
+     * the one of f when f holds an encoded version of another file
+     */
+    FileResponse(File f, String type, long lastModified) throws IOException {
       this.f = f;
+      this.length = Files.size(f.toPath());
       if (type != null) {
-        headers.add("Content-Type: " + type);
+        addHeader("Content-Type", type);
+      }
+      addHeader("Content-Length", Long.toString(length));
+      addHeader("Last-Modified", Conditional.formatDate(lastModified));
+      addHeader("ETag", Conditional.etag(length, lastModified));
+      addHeader("Cache-Control", "Public");
+      addHeader("Accept-Ranges", "bytes");
+    }
+
+    /**
+     * Copies the file, status and headers of another file response.
+     */
+    FileResponse(FileResponse src) {
+      super(src.status);
+      this.f = src.f;
+      this.length = src.length;
+      for (int i = 0; i < src.headerCount(); ++i) {
+        addHeader(src.headerName(i), src.headerValue(i));
       }
-      headers.add("Content-Length: " + Files.size(f.toPath()));
-      headers.add("Last-Modified: " + Strings.fromDate(new Date(f.lastModified())));
-      headers.add("Cache-Control: Public");
+    }
+
+    private static String typeOf(File f) {
+      MimeType type = MimeType.fromFileName(f.getName());
+      return type == null ? null : type.name;
     }
 
     @Override
-    void send(OutputStream out) throws IOException {
-      super.send(out);
-      try (InputStream in = new FileInputStream(f)) {
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = in.read(buffer)) > 0) {
-          out.write(buffer, 0, read);
-        }
+    boolean hasBody() {
+      return true;
+    }
+
+    @Override
+    void sendBody(ChannelOutput out) throws IOException {
+      try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+        out.transferFrom(in, 0, length);
       }
     }
 
@@ -212,14 +310,204 @@ public class Responses {
     }
   }
 
+  /**
+   * Sends parts of a file or of an in-memory body for a Range request,
+   * several ranges are sent as multipart/byteranges.
+   */
+  static class PartialResponse extends Response {
+
+    final File f;
+    final byte[] data;
+    final long[] ranges;
+    byte[][] partHeads;
+    byte[] end;
+
+    /**
+     * @param full the response with the whole body, a FileResponse or a
+     * RawResponse
+     */
+    PartialResponse(Response full, long length, long[] ranges) {
+      super(Status.PARTIAL_CONTENT);
+      this.f = full instanceof FileResponse ? ((FileResponse) full).f : null;
+      this.data = full instanceof RawResponse ? ((RawResponse) full).data : null;
+      this.ranges = ranges;
+      String type = full.header("Content-Type");
+      for (int i = 0; i < full.headerCount(); ++i) {
+        String name = full.headerName(i);
+        if (!name.equalsIgnoreCase("Content-Length") && (ranges.length == 2 || !name.equalsIgnoreCase("Content-Type"))) {
+          addHeader(name, full.headerValue(i));
+        }
+      }
+      if (ranges.length == 2) {
+        addHeader("Content-Range", contentRange(ranges[0], ranges[1], length));
+        addHeader("Content-Length", Long.toString(ranges[1] - ranges[0] + 1));
+        return;
+      }
+      String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      addHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+      partHeads = new byte[ranges.length / 2][];
+      long total = 0;
+      for (int i = 0; i < ranges.length; i += 2) {
+        partHeads[i / 2] = ("\r\n--" + boundary + "\r\n"
+                + (type == null ? "" : "Content-Type: " + type + "\r\n")
+                + "Content-Range: " + contentRange(ranges[i], ranges[i + 1], length) + "\r\n\r\n").getBytes();
+        total += partHeads[i / 2].length + ranges[i + 1] - ranges[i] + 1;
+      }
+      end = ("\r\n--" + boundary + "--\r\n").getBytes();
+      addHeader("Content-Length", Long.toString(total + end.length));
+    }
+
+    private static String contentRange(long first, long last, long length) {
+      return "bytes " + first + '-' + last + '/' + length;
+    }
+
+    @Override
+    boolean hasBody() {
+      return true;
+    }
+
+    @Override
+    void sendBody(ChannelOutput out) throws IOException {
+      if (data != null) {
+        sendParts(out, null);
+        return;
+      }
+      try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+        sendParts(out, in);
+      }
+    }
+
+    private void sendParts(ChannelOutput out, FileChannel in) throws IOException {
+      for (int i = 0; i < ranges.length; i += 2) {
+        if (partHeads != null) {
+          out.write(partHeads[i / 2]);
+        }
+        long count = ranges[i + 1] - ranges[i] + 1;
+        if (in != null) {
+          out.transferFrom(in, ranges[i], count);
+        } else {
+          out.write(ByteBuffer.wrap(data, (int) ranges[i], (int) count));
+        }
+      }
+      if (end != null) {
+        out.write(end);
+      }
+    }
+  }
+
+  static final int MAX_RANGES = 16;
+
+  /**
+   * Answers a Range request for a file, or for an in-memory body which
+   * advertises "Accept-Ranges: bytes" like the files of a FileCache, with the
+   * requested parts.
+   * @return the partial response, or res if the request has no usable Range
+   */
+  static Response ranges(Request req, Response res) {
+    if (res.status != Status.SUCCESS || req.method != Http.Method.GET) {
+      return res;
+    }
+    long length;
+    if (res instanceof FileResponse) {
+      length = ((FileResponse) res).length;
+    } else if (res instanceof RawResponse && "bytes".equals(res.header("Accept-Ranges"))) {
+      length = ((RawResponse) res).data.length;
+    } else {
+      return res;
+    }
+    String range = req.headers.get("Range");
+    if (range == null) {
+      return res;
+    }
+    String ifRange = req.headers.get("If-Range");
+    if (ifRange != null && !unchanged(ifRange, res)) {
+      return res;
+    }
+    long[] ranges = parseRanges(range, length);
+    if (ranges == null) {
+      return res;
+    }
+    if (ranges.length == 0) {
+      return new Response(Status.RANGE_NOT_SATISFIABLE, "Content-Range: bytes */" + length);
+    }
+    return new PartialResponse(res, length, ranges);
+  }
+
+  /**
+   * @param ifRange an entity tag, compared strongly, or a date which has to
+   * be the exact modification date
+   */
+  private static boolean unchanged(String ifRange, Response res) {
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return Conditional.matches(ifRange, res.header("ETag"), true);
+    }
+    long date = Conditional.parseDate(ifRange);
+    String modified = res.header("Last-Modified");
+    return date >= 0 && modified != null && date == Conditional.parseDate(modified);
+  }
+
+  /**
+   * @return the first and last byte of each satisfiable range, an empty array
+   * if none is satisfiable or null if the header should be ignored
+   */
+  static long[] parseRanges(String header, long length) {
+    if (!header.startsWith("bytes=")) {
+      return null;
+    }
+    String[] specs = header.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    long[] res = new long[specs.length * 2];
+    int n = 0;
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first, last;
+      try {
+        if (dash == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix < 0) {
+            return null;
+          }
+          if (suffix == 0 || length == 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+          if (first < 0 || last < first) {
+            return null;
+          }
+          if (first >= length) {
+            continue;
+          }
+          last = Math.min(last, length - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      res[n++] = first;
+      res[n++] = last;
+    }
+    return Arrays.copyOf(res, n);
+  }
+
   public static class RawResponse extends Response {
 
     byte[] data;
 
     public RawResponse(byte[] data, String type) {
       this.data = data;
-      headers.add("Content-Type: " + type);
-      headers.add("Content-Length: " + data.length);
+      if (type != null) {
+        addHeader("Content-Type", type);
+      }
+      addHeader("Content-Length", Integer.toString(data.length));
     }
 
     public RawResponse(String data, String type) {
@@ -227,9 +515,61 @@ public class Responses {
     }
 
     @Override
-    void send(OutputStream out) throws IOException {
-      super.send(out);
-      out.write(data);
+    boolean hasBody() {
+      return true;
+    }
+
+    @Override
+    void sendBody(ChannelOutput out) throws IOException {
+      out.write(ByteBuffer.wrap(data));
+    }
+  }
+
+  /**
+   * A response whose body is written while it is sent, so it never has to be
+   * held in memory. The body is sent with "Transfer-Encoding: chunked", or
+   * delimited by closing the connection for HTTP/1.0 clients.
+   */
+  public abstract static class StreamingResponse extends Response {
+
+    static final byte[] CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes();
+
+    boolean chunked = true;
+
+    public StreamingResponse(String type) {
+      if (type != null) {
+        addHeader("Content-Type", type);
+      }
+    }
+
+    /**
+     * Writes the body. An exception aborts the response and closes the
+     * connection.
+     */
+    protected abstract void writeBody(OutputStream out) throws IOException;
+
+    @Override
+    boolean hasBody() {
+      return true;
+    }
+
+    @Override
+    void writeHead(ChannelOutput out) throws IOException {
+      super.writeHead(out);
+      if (chunked) {
+        out.write(CHUNKED);
+      }
+    }
+
+    @Override
+    void sendBody(ChannelOutput out) throws IOException {
+      if (!chunked) {
+        writeBody(out);
+        return;
+      }
+      ChunkedOutput chunks = new ChunkedOutput(out);
+      writeBody(chunks);
+      chunks.finish();
     }
   }
 
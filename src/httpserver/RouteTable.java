@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import static httpserver.Http.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routes given as regular expressions over the path, compiled into a tree of
+ * path segments per method. Literal segments are looked up in a map, segments
+ * like "([^/]+)" are captured without a regex, and only other dynamic
+ * segments are matched with a regex of their own.
+ *
+ * A route whose regex can't be split at its slashes, because a part of it
+ * could match a slash or refer across slashes, is matched with the whole
+ * regex. Either way the route added first among those matching wins, as if
+ * they were all tried in order.
+ */
+class RouteTable {
+
+  private final List<RequestHandler> handlers = new ArrayList<>();
+  private final List<String> regexes = new ArrayList<>();
+  private final Map<Method, Node> roots = new EnumMap<>(Method.class);
+  private final List<Fallback> fallbacks = new ArrayList<>();
+
+  void add(Method method, String regex, RequestHandler handler) {
+    Pattern pattern = Pattern.compile(regex);
+    int index = handlers.size();
+    handlers.add(handler);
+    regexes.add(regex);
+    List<String> segments = segments(regex);
+    if (segments == null) {
+      fallbacks.add(new Fallback(index, method, pattern));
+      return;
+    }
+    Node n = roots.computeIfAbsent(method, m -> new Node());
+    n.min = Math.min(n.min, index);
+    for (String segment : segments) {
+      n = n.child(segment);
+      n.min = Math.min(n.min, index);
+    }
+    if (n.route < 0) {
+      n.route = index;
+    }
+  }
+
+  /**
+   * Finds the route of a request and adds its captured groups to the params of
+   * the request.
+   * @return the handler of the route, or null if no route matches
+   */
+  RequestHandler route(Request req) {
+    Search s = null;
+    int best = Integer.MAX_VALUE;
+    Node root = roots.get(req.method);
+    if (root != null) {
+      s = new Search(split(req.path));
+      s.find(root, 0);
+      best = s.best;
+    }
+    for (Fallback f : fallbacks) {
+      if (f.index >= best) {
+        break;
+      }
+      if (f.method == req.method) {
+        Matcher m = f.pattern.matcher(req.path);
+        if (m.matches()) {
+          for (int j = 1; j <= m.groupCount(); ++j) {
+            req.params.add(m.group(j));
+          }
+          req.route = regexes.get(f.index);
+          return handlers.get(f.index);
+        }
+      }
+    }
+    if (s == null || s.captures == null) {
+      return null;
+    }
+    for (String c : s.captures) {
+      req.params.add(c);
+    }
+    req.route = regexes.get(best);
+    return handlers.get(best);
+  }
+
+  private static String[] split(String path) {
+    int n = 1;
+    for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+      ++n;
+    }
+    String[] res = new String[n];
+    int start = 0;
+    for (int i = 0; i < n - 1; ++i) {
+      int end = path.indexOf('/', start);
+      res[i] = path.substring(start, end);
+      start = end + 1;
+    }
+    res[n - 1] = path.substring(start);
+    return res;
+  }
+
+  /**
+   * Splits a regex at the slashes outside of groups and classes.
+   * @return the parts, or null if some part could match a slash or depends on
+   * the other parts
+   */
+  static List<String> segments(String regex) {
+    if (regex.startsWith("^")) {
+      regex = regex.substring(1);
+    }
+    if (regex.endsWith("$") && !regex.endsWith("\\$")) {
+      regex = regex.substring(0, regex.length() - 1);
+    }
+    List<String> res = new ArrayList<>();
+    int depth = 0, start = 0, n = regex.length();
+    for (int i = 0; i < n; ++i) {
+      char c = regex.charAt(i);
+      switch (c) {
+        case '\\':
+          if (i + 1 == n || !safeEscape(regex.charAt(i + 1))) {
+            return null;
+          }
+          ++i;
+          break;
+        case '[':
+          i = skipClass(regex, i);
+          if (i < 0) {
+            return null;
+          }
+          break;
+        case '(':
+          if (i + 1 < n && regex.charAt(i + 1) == '?') {
+            // Only non-capturing and named groups stay within their part.
+            boolean named = regex.startsWith("?<", i + 1) && i + 3 < n && Character.isLetter(regex.charAt(i + 3));
+            if (!regex.startsWith("?:", i + 1) && !named) {
+              return null;
+            }
+          }
+          ++depth;
+          break;
+        case ')':
+          --depth;
+          break;
+        case '/':
+          if (depth > 0 || (i + 1 < n && "?*+{".indexOf(regex.charAt(i + 1)) >= 0)) {
+            return null;
+          }
+          res.add(regex.substring(start, i));
+          start = i + 1;
+          break;
+        case '.':
+        case '|':
+        case '^':
+        case '$':
+          // '|' inside a group is fine as long as the group has no slash.
+          if (c != '|' || depth == 0) {
+            return null;
+          }
+          break;
+        default:
+      }
+    }
+    res.add(regex.substring(start));
+    return res;
+  }
+
+  /**
+   * @return whether an escape sequence matches a single character other than a
+   * slash
+   */
+  private static boolean safeEscape(char e) {
+    if (Character.isLetterOrDigit(e)) {
+      return "dswhvtnrfae".indexOf(e) >= 0;
+    }
+    return e != '/';
+  }
+
+  /**
+   * @return the index of the ']' closing the class starting at i, or -1 if the
+   * class could match a slash
+   */
+  private static int skipClass(String regex, int i) {
+    int n = regex.length();
+    int j = i + 1;
+    boolean negated = j < n && regex.charAt(j) == '^';
+    if (negated) {
+      ++j;
+    }
+    boolean slash = false, first = true;
+    char prev = 0;
+    for (; j < n; ++j) {
+      char c = regex.charAt(j);
+      if (c == ']' && !first) {
+        return negated == slash ? j : -1;
+      }
+      first = false;
+      if (c == '[' || regex.startsWith("&&", j)) {
+        return -1;
+      }
+      if (c == '\\') {
+        if (j + 1 == n || (!safeEscape(regex.charAt(j + 1)) && regex.charAt(j + 1) != '/')) {
+          return -1;
+        }
+        c = regex.charAt(++j);
+        if (Character.isLetterOrDigit(c)) {
+          prev = 0;
+          continue;
+        }
+      } else if (c == '-' && prev != 0 && j + 1 < n && regex.charAt(j + 1) != ']') {
+        char to = regex.charAt(++j);
+        if (to == '\\' || (prev <= '/' && '/' <= to)) {
+          // A range over the slash, or to an escape which isn't worth parsing.
+          return -1;
+        }
+        prev = 0;
+        continue;
+      }
+      slash |= c == '/';
+      prev = c;
+    }
+    return -1;
+  }
+
+  /**
+   * @return the text a segment matches if it has no regex syntax, or null
+   */
+  private static String literal(String segment) {
+    StringBuilder sb = new StringBuilder(segment.length());
+    for (int i = 0; i < segment.length(); ++i) {
+      char c = segment.charAt(i);
+      if (c == '\\') {
+        c = segment.charAt(++i);
+        if (Character.isLetterOrDigit(c)) {
+          return null;
+        }
+      } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+        return null;
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static class Node {
+
+    final Map<String, Node> literals = new HashMap<>();
+    final List<Dynamic> dynamics = new ArrayList<>(2);
+    /**
+     * The route ending here and the first route ending anywhere below.
+     */
+    int route = -1, min = Integer.MAX_VALUE;
+
+    Node child(String segment) {
+      String literal = literal(segment);
+      if (literal != null) {
+        return literals.computeIfAbsent(literal, l -> new Node());
+      }
+      for (Dynamic d : dynamics) {
+        if (d.source.equals(segment)) {
+          return d.next;
+        }
+      }
+      Dynamic d = new Dynamic(segment);
+      dynamics.add(d);
+      return d.next;
+    }
+  }
+
+  /**
+   * A segment which isn't a literal, either any segment or one matching a
+   * regex.
+   */
+  private static class Dynamic {
+
+    final String source;
+    final Node next = new Node();
+    final Pattern pattern;
+    final boolean capture, empty;
+
+    Dynamic(String source) {
+      this.source = source;
+      boolean any = source.equals("([^/]+)") || source.equals("([^/]*)")
+              || source.equals("[^/]+") || source.equals("[^/]*");
+      this.pattern = any ? null : Pattern.compile(source);
+      this.capture = source.startsWith("(");
+      this.empty = source.endsWith("*)") || source.endsWith("*");
+    }
+
+    boolean match(String segment, List<String> captures) {
+      if (pattern == null) {
+        if (!empty && segment.isEmpty()) {
+          return false;
+        }
+        if (capture) {
+          captures.add(segment);
+        }
+        return true;
+      }
+      Matcher m = pattern.matcher(segment);
+      if (!m.matches()) {
+        return false;
+      }
+      for (int j = 1; j <= m.groupCount(); ++j) {
+        captures.add(m.group(j));
+      }
+      return true;
+    }
+  }
+
+  private static class Fallback {
+
+    final int index;
+    final Method method;
+    final Pattern pattern;
+
+    Fallback(int index, Method method, Pattern pattern) {
+      this.index = index;
+      this.method = method;
+      this.pattern = pattern;
+    }
+  }
+
+  /**
+   * Walks the tree for one path, keeping the first route which matches.
+   */
+  private static class Search {
+
+    final String[] segments;
+    final ArrayList<String> stack = new ArrayList<>(4);
+    int best = Integer.MAX_VALUE;
+    String[] captures;
+
+    Search(String[] segments) {
+      this.segments = segments;
+    }
+
+    void find(Node n, int i) {
+      if (n.min >= best) {
+        return;
+      }
+      if (i == segments.length) {
+        if (n.route >= 0 && n.route < best) {
+          best = n.route;
+          captures = stack.toArray(new String[stack.size()]);
+        }
+        return;
+      }
+      Node literal = n.literals.get(segments[i]);
+      if (literal != null) {
+        find(literal, i + 1);
+      }
+      for (Dynamic d : n.dynamics) {
+        if (d.next.min >= best) {
+          continue;
+        }
+        int mark = stack.size();
+        if (d.match(segments[i], stack)) {
+          find(d.next, i + 1);
+        }
+        while (stack.size() > mark) {
+          stack.remove(stack.size() - 1);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,1023 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.lang.String.format;
+
+/**
+ * Serves connections from non-blocking channels. A few selector loops read
+ * until a request is complete and then hand it to the server pool, the pool
+ * thread writes the response itself and only waits on its loop when the
+ * socket buffer is full.
+ */
+class SelectorEngine {
+
+  private static final Logger log = Logger.getLogger(SelectorEngine.class.getName());
+
+  static final int READ_BUFFER_SIZE = 1 << 16;
+  static final long SWEEP_INTERVAL = 1000;
+  private static final byte[] EMPTY = new byte[0];
+  private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+  private static final byte[] TRANSFER_ENCODING = "transfer-encoding:".getBytes();
+  static final long INCOMPLETE = -1, MALFORMED = -2, TOO_LARGE = -3, UNAVAILABLE = -4;
+
+  private final Server server;
+  private final ServerSocketChannel channel;
+  private final RequestHandler rh;
+  private final IoLoop[] loops;
+  private int next = 0;
+  /**
+   * Output buffers of the connections being served, idle connections don't
+   * hold one.
+   */
+  private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+  SelectorEngine(Server server, ServerSocketChannel channel, RequestHandler rh, int threads) throws IOException {
+    this.server = server;
+    this.channel = channel;
+    this.rh = rh;
+    loops = new IoLoop[Math.max(1, threads)];
+    for (int i = 0; i < loops.length; ++i) {
+      loops[i] = new IoLoop(i);
+    }
+    channel.configureBlocking(false);
+    channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+  }
+
+  void start() {
+    for (IoLoop loop : loops) {
+      loop.start();
+    }
+  }
+
+  void stop() {
+    for (IoLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+  }
+
+  /**
+   * @return the index just after the blank line ending the header, or -1 if it
+   * has not been received yet
+   */
+  static int headerEnd(byte[] b, int len) {
+    for (int i = 3; i < len; ++i) {
+      if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the Content-Length of the header in b[0, end), 0 if there is none
+   * and -1 if it is malformed
+   */
+  static long contentLength(byte[] b, int end) {
+    long length = 0;
+    boolean found = false;
+    int i = 0;
+    while (i < end) {
+      int eol = i;
+      while (eol < end && b[eol] != '\n') {
+        eol++;
+      }
+      if (eol - i > CONTENT_LENGTH.length && startsWithIgnoreCase(b, i, CONTENT_LENGTH)) {
+        long v = 0;
+        boolean digits = false;
+        for (int j = i + CONTENT_LENGTH.length; j < eol; ++j) {
+          byte c = b[j];
+          if (c >= '0' && c <= '9') {
+            v = v * 10 + (c - '0');
+            digits = true;
+            if (v > Integer.MAX_VALUE) {
+              return -1;
+            }
+          } else if (c != ' ' && c != '\t' && c != '\r') {
+            return -1;
+          }
+        }
+        if (!digits || (found && v != length)) {
+          // Conflicting lengths are rejected like Request does.
+          return -1;
+        }
+        length = v;
+        found = true;
+      }
+      i = eol + 1;
+    }
+    return length;
+  }
+
+  /**
+   * @return whether the header in b[0, end) has a Transfer-Encoding
+   */
+  static boolean hasTransferEncoding(byte[] b, int end) {
+    for (int i = 0; i < end; ++i) {
+      if ((i == 0 || b[i - 1] == '\n') && end - i > TRANSFER_ENCODING.length
+              && startsWithIgnoreCase(b, i, TRANSFER_ENCODING)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the end of a chunked body starting at pos.
+   * @return the index just after the body, or INCOMPLETE if it has not been
+   * received yet, MALFORMED, or TOO_LARGE if the chunks add up to more than max
+   */
+  static long chunkedEnd(byte[] b, int pos, int len, long max) {
+    long total = 0;
+    while (true) {
+      int eol = lineEnd(b, pos, len);
+      if (eol < 0) {
+        return len - pos > 1024 ? MALFORMED : INCOMPLETE;
+      }
+      if (eol == pos || b[eol - 1] != '\r') {
+        return MALFORMED;
+      }
+      long size = 0;
+      boolean digits = false;
+      for (int i = pos; i < eol - 1 && b[i] != ';'; ++i) {
+        int d = Character.digit(b[i], 16);
+        if (d < 0) {
+          if (b[i] != ' ' && b[i] != '\t') {
+            return MALFORMED;
+          }
+          continue;
+        }
+        size = size * 16 + d;
+        digits = true;
+        if (total + size > max) {
+          return TOO_LARGE;
+        }
+      }
+      if (!digits) {
+        return MALFORMED;
+      }
+      pos = eol + 1;
+      if (size == 0) {
+        // Trailers up to an empty line.
+        while (true) {
+          int e = lineEnd(b, pos, len);
+          if (e < 0) {
+            return INCOMPLETE;
+          }
+          boolean empty = e == pos + 1;
+          pos = e + 1;
+          if (empty) {
+            return pos;
+          }
+        }
+      }
+      total += size;
+      if (len < pos + size + 2) {
+        return INCOMPLETE;
+      }
+      int next = (int) (pos + size);
+      if (b[next] != '\r' || b[next + 1] != '\n') {
+        return MALFORMED;
+      }
+      pos = next + 2;
+    }
+  }
+
+  private static int lineEnd(byte[] b, int pos, int len) {
+    for (int i = pos; i < len; ++i) {
+      if (b[i] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWithIgnoreCase(byte[] b, int off, byte[] lower) {
+    for (int i = 0; i < lower.length; ++i) {
+      byte c = b[off + i];
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      if (c != lower[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private class IoLoop extends Thread {
+
+    final Selector selector;
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    long lastSweep = System.currentTimeMillis();
+
+    IoLoop(int id) throws IOException {
+      super("selector-" + id);
+      selector = Selector.open();
+    }
+
+    /**
+     * Runs a task on this loop.
+     */
+    void post(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (server.running) {
+          selector.select(SWEEP_INTERVAL);
+          // Tasks posted by these tasks run after the next select.
+          for (int n = tasks.size(); n > 0; --n) {
+            tasks.poll().run();
+          }
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection c = (Connection) key.attachment();
+              if (key.isReadable()) {
+                c.read(readBuffer);
+              } else if (key.isWritable()) {
+                c.writable();
+              }
+            }
+          }
+          long now = System.currentTimeMillis();
+          if (now - lastSweep >= SWEEP_INTERVAL) {
+            sweep(now);
+            lastSweep = now;
+          }
+        }
+      } catch (IOException e) {
+        log.severe(e.toString());
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).close();
+          }
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          log.warning(e.toString());
+        }
+      }
+    }
+
+    private void accept() {
+      while (true) {
+        SocketChannel ch;
+        try {
+          ch = channel.accept();
+          if (ch == null) {
+            return;
+          }
+          ch.configureBlocking(false);
+          ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+          log.severe(e.toString());
+          return;
+        }
+        if (server.metrics.connections.get() >= server.maxConnections) {
+          if (server.tls == null) {
+            server.refuse(ch, Metrics.Rejection.MAX_CONNECTIONS);
+          } else {
+            server.metrics.rejected(Metrics.Rejection.MAX_CONNECTIONS);
+          }
+          try {
+            ch.close();
+          } catch (IOException e) {
+            log.warning(e.toString());
+          }
+          continue;
+        }
+        IoLoop target = loops[next++ % loops.length];
+        if (target == this) {
+          register(ch);
+        } else {
+          target.post(() -> target.register(ch));
+        }
+      }
+    }
+
+    void register(SocketChannel ch) {
+      try {
+        Connection c = new Connection(this, ch);
+        if (server.tls != null) {
+          c.tls = new TlsChannel(ch, server.tls.createEngine(false));
+        }
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        server.metrics.connections.incrementAndGet();
+      } catch (IOException e) {
+        log.warning(e.toString());
+        try {
+          ch.close();
+        } catch (IOException ex) {
+          log.warning(ex.toString());
+        }
+      }
+    }
+
+    /**
+     * Closes connections which have been idle for too long or are taking too
+     * long to send a request.
+     */
+    private void sweep(long now) {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          Connection c = (Connection) key.attachment();
+          if (!c.processing && c.expired(now)) {
+            c.close();
+          }
+        }
+      }
+    }
+  }
+
+  private class Connection implements Runnable {
+
+    final IoLoop loop;
+    final SocketChannel ch;
+    SelectionKey key;
+    /**
+     * The TLS session of a secure server, null otherwise.
+     */
+    TlsChannel tls;
+
+    // Only touched by the loop thread.
+    byte[] buf = EMPTY;
+    int len = 0;
+    boolean processing = false;
+    long lastActive = System.currentTimeMillis();
+    /**
+     * When the first byte of the request being received arrived and when its
+     * header was complete, 0 until then.
+     */
+    long requestStart = 0, bodyStart = 0;
+    /**
+     * Set while handshake bytes wait for the channel to be writable.
+     */
+    boolean handshakeWrite = false;
+
+    // Handed over to the pool thread.
+    byte[] request;
+    int served = 0;
+    long queued;
+    /**
+     * A response sent instead of handling the request, before closing.
+     */
+    Response rejection;
+    /**
+     * The bytes of the current body counted against the buffered body budget.
+     */
+    long reserved = 0;
+    /**
+     * The request being served, for error messages.
+     */
+    Request current;
+    /**
+     * Set once the connection has been handed to HTTP/2.
+     */
+    boolean upgraded = false;
+    private InetAddress remoteAddress;
+
+    volatile boolean writable;
+    volatile Thread writer;
+
+    Connection(IoLoop loop, SocketChannel ch) {
+      this.loop = loop;
+      this.ch = ch;
+    }
+
+    void read(ByteBuffer rb) {
+      rb.clear();
+      int n;
+      try {
+        n = ch.read(rb);
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      if (n == -1) {
+        close();
+        return;
+      }
+      rb.flip();
+      lastActive = System.currentTimeMillis();
+      if (requestStart == 0) {
+        // A TLS handshake counts against the header timeout as well.
+        requestStart = lastActive;
+      }
+      if (tls == null) {
+        append(rb);
+      } else if (!decrypt(rb)) {
+        return;
+      }
+      dispatch();
+    }
+
+    private void append(ByteBuffer src) {
+      int n = src.remaining();
+      if (len + n > buf.length) {
+        // Doubling keeps copying a large body linear in its size.
+        buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+      }
+      src.get(buf, len, n);
+      len += n;
+    }
+
+    /**
+     * Passes the bytes read through TLS, appending the plain text to the
+     * buffer.
+     * @param rb the bytes read, or null to go on with the handshake
+     * @return whether requests can be dispatched
+     */
+    private boolean decrypt(ByteBuffer rb) {
+      int state;
+      try {
+        state = tls.read(rb, this::append);
+      } catch (IOException e) {
+        log.fine(format("TLS failed: %s", e));
+        close();
+        return false;
+      }
+      if (state == TlsChannel.CLOSED) {
+        close();
+        return false;
+      }
+      if (state == TlsChannel.WRITE) {
+        handshakeWrite = true;
+        key.interestOps(SelectionKey.OP_WRITE);
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Hands the next buffered request to the pool if it is complete.
+     */
+    void dispatch() {
+      if (served == 0 && server.http2 && tls == null) {
+        int preface = Http2Connection.preface(buf, len);
+        if (preface == 0) {
+          return;
+        }
+        if (preface > 0) {
+          upgrade(null);
+          return;
+        }
+      }
+      long total = frame();
+      if (total == INCOMPLETE) {
+        return;
+      }
+      if (total == MALFORMED) {
+        reject(Responses.badRequest());
+      } else if (total == TOO_LARGE) {
+        reject(Responses.payloadTooLarge());
+      } else if (total == UNAVAILABLE) {
+        server.metrics.rejected(Metrics.Rejection.BODY_MEMORY);
+        reject(server.unavailable);
+      } else {
+        take((int) total);
+        handOff();
+      }
+    }
+
+    /**
+     * Finds the end of the request at the start of the buffer and reserves
+     * memory for its body.
+     * @return the length of the request, or INCOMPLETE, MALFORMED, TOO_LARGE
+     * or UNAVAILABLE if there is no memory left for its body
+     */
+    private long frame() {
+      int end = headerEnd(buf, len);
+      if (end < 0) {
+        return len > Request.MAX_HEADER_SIZE ? MALFORMED : INCOMPLETE;
+      }
+      if (bodyStart == 0) {
+        bodyStart = System.currentTimeMillis();
+      }
+      if (hasTransferEncoding(buf, end)) {
+        long e = chunkedEnd(buf, end, len, server.maxBodySize);
+        if (e == INCOMPLETE && !reserve(len - end)) {
+          return UNAVAILABLE;
+        }
+        return e;
+      }
+      long body = contentLength(buf, end);
+      if (body < 0) {
+        return MALFORMED;
+      }
+      if (body > server.maxBodySize) {
+        return TOO_LARGE;
+      }
+      if (!reserve(body)) {
+        return UNAVAILABLE;
+      }
+      long total = Math.min(Integer.MAX_VALUE, end + body);
+      return len < total ? INCOMPLETE : total;
+    }
+
+    /**
+     * Moves the first total bytes of the buffer to request.
+     */
+    private void take(int total) {
+      request = Arrays.copyOf(buf, total);
+      len -= total;
+      if (len == 0) {
+        buf = EMPTY;
+        requestStart = 0;
+      } else {
+        System.arraycopy(buf, total, buf, 0, len);
+        requestStart = System.currentTimeMillis();
+      }
+      bodyStart = 0;
+    }
+
+    /**
+     * Counts the request being received as timed out if it is taking too long.
+     * @return whether the connection should be closed
+     */
+    boolean expired(long now) {
+      if (requestStart > 0 && bodyStart > 0 && server.bodyTimeout > 0 && now - bodyStart > server.bodyTimeout) {
+        server.metrics.bodyTimeouts.increment();
+        return true;
+      }
+      if (requestStart > 0 && bodyStart == 0 && server.headerTimeout > 0 && now - requestStart > server.headerTimeout) {
+        server.metrics.headerTimeouts.increment();
+        return true;
+      }
+      return server.idleTimeout > 0 && now - lastActive > server.idleTimeout;
+    }
+
+    /**
+     * Takes the next request if it has been received already. Called from the
+     * pool thread, which owns the buffer while the loop isn't reading.
+     */
+    private boolean next() {
+      release();
+      long total = frame();
+      if (total <= 0) {
+        return false;
+      }
+      take((int) total);
+      return true;
+    }
+
+    /**
+     * Answers with a response without handling the request and closes the
+     * connection, what's left of the request is never read.
+     */
+    private void reject(Response r) {
+      rejection = r;
+      handOff();
+    }
+
+    private void handOff() {
+      processing = true;
+      key.interestOps(0);
+      queued = System.nanoTime();
+      try {
+        server.pool.execute(this);
+      } catch (RejectedExecutionException e) {
+        if (tls == null) {
+          server.refuse(ch, Metrics.Rejection.QUEUE_FULL);
+        } else {
+          server.metrics.rejected(Metrics.Rejection.QUEUE_FULL);
+        }
+        close();
+      }
+    }
+
+    private boolean reserve(long bytes) {
+      if (bytes <= reserved) {
+        return true;
+      }
+      if (!server.reserveBody(bytes - reserved)) {
+        return false;
+      }
+      reserved = bytes;
+      return true;
+    }
+
+    private void release() {
+      server.releaseBody(reserved);
+      reserved = 0;
+    }
+
+    @Override
+    public void run() {
+      if (rejection == null && server.shed(queued)) {
+        rejection = server.unavailable;
+      }
+      if (rejection != null) {
+        try {
+          ChannelOutput out = new Output(ByteBuffer.allocate(ChannelOutput.BUFFER_SIZE));
+          rejection.send(out, false);
+          out.flush();
+        } catch (IOException e) {
+          log.fine(e.toString());
+        }
+        loop.post(this::close);
+        return;
+      }
+      ByteBuffer b = buffers.poll();
+      ChannelOutput out = new Output(b == null ? ByteBuffer.allocate(ChannelOutput.BUFFER_SIZE) : b);
+      try {
+        boolean reuse = serveBuffered(out);
+        out.flush();
+        current = null;
+        if (reuse) {
+          loop.post(this::resume);
+        } else if (!upgraded) {
+          loop.post(this::close);
+        }
+      } catch (IOException e) {
+        log.warning(format("[%s] %s!\nRequest:\n%s\n\n", remote(), e.toString(), Server.describe(current)));
+        flushQuietly(out);
+        loop.post(this::close);
+      } catch (Exception | Error e) {
+        log.log(Level.SEVERE, Server.describe(current), e);
+        flushQuietly(out);
+        loop.post(this::close);
+      } finally {
+        if (b != null) {
+          b.clear();
+          buffers.add(b);
+        }
+      }
+    }
+
+    /**
+     * Serves the request handed over and the requests pipelined behind it
+     * that have been received already, leaving the responses for one flush.
+     * @return whether the connection should be kept open
+     */
+    private boolean serveBuffered(ChannelOutput out) throws IOException {
+      Deque<Pipelined> queue = new ArrayDeque<>();
+      queue.add(new Pipelined());
+      try {
+        while (!queue.isEmpty()) {
+          readAhead(queue);
+          Pipelined p = queue.poll();
+          current = p.request();
+          if (server.http2 && tls == null && queue.isEmpty() && Http2Connection.upgradable(current)) {
+            out.write(Http2Connection.SWITCHING_PROTOCOLS);
+            out.flush();
+            upgrade(current);
+            return false;
+          }
+          Response resp = p.task == null ? server.handle(rh, current) : p.response();
+          if (!server.send(current, resp, out, ++served, remoteAddress(), p.start)) {
+            return false;
+          }
+          if (queue.isEmpty() && next()) {
+            queue.add(new Pipelined());
+          }
+        }
+        return true;
+      } finally {
+        for (Pipelined p : queue) {
+          p.cancel();
+        }
+      }
+    }
+
+    /**
+     * Starts the handlers of received GET requests while the requests before
+     * them are handled, stopping at the first other method.
+     */
+    private void readAhead(Deque<Pipelined> queue) {
+      if (server.pipelineConcurrency <= 1) {
+        return;
+      }
+      for (Pipelined p : queue) {
+        if (p.rq == null || p.rq.method != Http.Method.GET) {
+          return;
+        }
+      }
+      while (queue.size() < server.pipelineConcurrency && next()) {
+        Pipelined p = new Pipelined();
+        queue.add(p);
+        if (p.rq == null || p.rq.method != Http.Method.GET) {
+          return;
+        }
+        p.start();
+      }
+    }
+
+    /**
+     * Takes the connection off the selector and serves it as HTTP/2 on a pool
+     * thread, starting with the bytes received so far.
+     * @param rq the request which asked for the upgrade, or null if the client
+     * started with the preface
+     */
+    private void upgrade(Request rq) {
+      processing = true;
+      upgraded = true;
+      byte[] received = Arrays.copyOf(buf, len);
+      buf = EMPTY;
+      len = 0;
+      release();
+      loop.post(() -> {
+        key.cancel();
+        // The channel can block once the next select has deregistered it.
+        loop.post(() -> {
+          try {
+            ch.configureBlocking(true);
+            server.pool.execute(() -> serveHttp2(received, rq));
+          } catch (IOException | RuntimeException e) {
+            log.fine(e.toString());
+            close();
+          }
+        });
+      });
+    }
+
+    private void serveHttp2(byte[] received, Request rq) {
+      try {
+        Socket s = ch.socket();
+        s.setSoTimeout(server.idleTimeout);
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(received), s.getInputStream());
+        new Http2Connection(server, rh, s, new BufferedInputStream(in)).serve(rq);
+      } catch (IOException e) {
+        log.warning(format("[%s] %s!", remote(), e.toString()));
+      } catch (Exception | Error e) {
+        log.log(Level.SEVERE, remote(), e);
+      } finally {
+        close();
+      }
+    }
+
+    private void flushQuietly(ChannelOutput out) {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        log.fine(e.toString());
+      }
+    }
+
+    /**
+     * A received request, and its handler if it was started early.
+     */
+    private class Pipelined {
+
+      final long start = System.nanoTime();
+      final Request rq;
+      final IOException error;
+      FutureTask<Response> task;
+
+      /**
+       * Parses the request taken from the buffer, a request which can't be
+       * parsed fails when its turn comes.
+       */
+      Pipelined() {
+        Request r = null;
+        IOException e = null;
+        try {
+          r = new Request(new ByteArrayInputStream(request), server.maxBodySize, null);
+        } catch (IOException ex) {
+          e = ex;
+        }
+        request = null;
+        rq = r;
+        error = e;
+      }
+
+      Request request() throws IOException {
+        if (error != null) {
+          throw error;
+        }
+        return rq;
+      }
+
+      void start() {
+        task = new FutureTask<>(() -> server.handle(rh, rq));
+        try {
+          server.pool.execute(task);
+        } catch (RejectedExecutionException e) {
+          // It runs on this thread when its turn comes.
+        }
+      }
+
+      /**
+       * Waits for the handler, running it on this thread if no pool thread
+       * has picked it up yet so a busy pool can't leave it waiting forever.
+       */
+      Response response() throws IOException {
+        task.run();
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+
+      void cancel() {
+        if (task != null) {
+          task.cancel(false);
+        }
+      }
+    }
+
+    /**
+     * Starts reading again once the response has been written.
+     */
+    void resume() {
+      release();
+      processing = false;
+      lastActive = System.currentTimeMillis();
+      if (key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ);
+        dispatch();
+      }
+    }
+
+    void write(ByteBuffer[] srcs) throws IOException {
+      if (tls != null) {
+        tls.write(srcs, this::awaitWritable);
+        return;
+      }
+      ByteBuffer last = srcs[srcs.length - 1];
+      while (last.hasRemaining()) {
+        if (ch.write(srcs) == 0) {
+          awaitWritable();
+        }
+      }
+    }
+
+    /**
+     * Parks the writing thread until the loop sees the channel is writable.
+     */
+    private void awaitWritable() throws IOException {
+      writable = false;
+      writer = Thread.currentThread();
+      loop.post(() -> {
+        if (key.isValid()) {
+          key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+          wake();
+        }
+      });
+      while (!writable) {
+        LockSupport.park(this);
+      }
+      writer = null;
+      if (!key.isValid()) {
+        throw new IOException("Connection closed.");
+      }
+    }
+
+    void writable() {
+      if (handshakeWrite) {
+        handshakeWrite = false;
+        key.interestOps(SelectionKey.OP_READ);
+        if (decrypt(null)) {
+          dispatch();
+        }
+        return;
+      }
+      key.interestOps(0);
+      wake();
+    }
+
+    private void wake() {
+      writable = true;
+      Thread w = writer;
+      if (w != null) {
+        LockSupport.unpark(w);
+      }
+    }
+
+    void close() {
+      release();
+      if (ch.isOpen()) {
+        server.metrics.connections.decrementAndGet();
+        if (tls != null) {
+          tls.close();
+        }
+      }
+      key.cancel();
+      try {
+        ch.close();
+      } catch (IOException e) {
+        log.warning(e.toString());
+      }
+      wake();
+    }
+
+    private class Output extends ChannelOutput {
+
+      Output(ByteBuffer buf) {
+        super(buf);
+      }
+
+      @Override
+      protected void writeFully(ByteBuffer[] srcs) throws IOException {
+        Connection.this.write(srcs);
+      }
+
+      @Override
+      protected void transfer(FileChannel file, long position, long count) throws IOException {
+        if (tls != null) {
+          // The file has to pass through the engine to be encrypted.
+          super.transfer(file, position, count);
+          return;
+        }
+        transferTo(file, position, count, ch, Connection.this::awaitWritable);
+      }
+    }
+
+    private InetAddress remoteAddress() {
+      if (remoteAddress == null) {
+        try {
+          remoteAddress = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+          return null;
+        }
+      }
+      return remoteAddress;
+    }
+
+    private String remote() {
+      try {
+        return String.valueOf(ch.getRemoteAddress());
+      } catch (IOException e) {
+        return "no connection";
+      }
+    }
+  }
+}
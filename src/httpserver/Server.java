@@ -28,47 +28,417 @@ import java.net.Socket;
 import java.io.*;
 import javax.net.ssl.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.lang.reflect.Method;
 import java.util.logging.Logger;
-import javax.net.ServerSocketFactory;
 import static java.lang.String.format;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import httpserver.Http.Status;
 
 public class Server {
 
   private static final Logger log = Logger.getLogger(Server.class.getName());
 
+  /**
+   * The way connections are read from and written to.
+   */
+  public enum Engine {
+    /**
+     * Every open connection occupies a pool thread.
+     */
+    BLOCKING,
+    /**
+     * Connections are multiplexed on a few selector threads and the pool
+     * threads only run the request handlers. A request body is not streamed:
+     * the whole of it is read into memory before the handler runs, bounded by
+     * setMaxBodySize per request and setMaxBufferedBodies in total, so large
+     * uploads are better served by the blocking engine.
+     */
+    SELECTOR
+  }
+
   private ServerSocket server;
+  private ServerSocketChannel channel;
+  private final Engine engine;
+  /**
+   * How a secure server speaks TLS, null for a plain one.
+   */
+  final TlsConfig tls;
 
-  private ExecutorService pool;
+  ExecutorService pool;
+  private ExecutorService executor;
+  private ThreadFactory threadFactory = run -> new Thread(null, run, "", 1 << 12);
+  private Method virtualThreads;
   
-  private Server(int port, boolean ssl) throws IOException {
-    server = ssl ? (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(port)
-            : ServerSocketFactory.getDefault().createServerSocket(port);
+  private Server(int port, TlsConfig tls) throws IOException {
+    this(port, tls, Engine.BLOCKING);
+  }
 
+  private Server(int port, TlsConfig tls, Engine engine) throws IOException {
+    this.engine = engine;
+    this.tls = tls;
+    setRetryAfter(DEFAULT_RETRY_AFTER);
+    if (tls != null && engine == Engine.BLOCKING) {
+      SSLServerSocket ssl = (SSLServerSocket) tls.context().getServerSocketFactory().createServerSocket(port);
+      ssl.setSSLParameters(tls.parameters(true));
+      server = ssl;
+    } else {
+      // Plain sockets are accepted from a channel so responses can be written
+      // with gathering writes.
+      channel = ServerSocketChannel.open();
+      channel.bind(new InetSocketAddress(port));
+      server = channel.socket();
+    }
   }
 
-  private volatile boolean running = false;
+  volatile boolean running = false;
   private ServerLoop loop;
+  private SelectorEngine selector;
+
+  boolean keepAlive = true;
+  int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+  long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+  private long maxBufferedBodies = DEFAULT_MAX_BUFFERED_BODIES;
+  private final AtomicLong bufferedBodies = new AtomicLong();
+  private int selectorThreads = Runtime.getRuntime().availableProcessors();
+  int pipelineConcurrency = 1;
+  boolean http2 = true;
+  int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+  private int maxQueued = DEFAULT_MAX_QUEUED;
+  int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  int headerTimeout = DEFAULT_HEADER_TIMEOUT;
+  int bodyTimeout = DEFAULT_BODY_TIMEOUT;
+  private volatile CoDel queueDelay;
+  /**
+   * The answer to work shed for overload, with a Retry-After.
+   */
+  Response unavailable;
+  private byte[] refusal;
+  private AccessLog accessLog;
+  final Metrics metrics = new Metrics();
+
+  /**
+   * @param keepAlive whether connections should be kept open between requests
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * @param millis how long a connection may stay idle waiting for its next
+   * request before it is closed, 0 waits forever
+   */
+  public void setIdleTimeout(int millis) {
+    this.idleTimeout = millis;
+  }
+
+  /**
+   * @param max the number of requests served on a connection before it is
+   * closed
+   */
+  public void setMaxRequestsPerConnection(int max) {
+    this.maxRequestsPerConnection = max;
+  }
+
+  /**
+   * @param millis how long a client may take to send the request line and
+   * headers once it has started a request, 0 waits forever. A small body sent
+   * with them counts towards it.
+   */
+  public void setHeaderTimeout(int millis) {
+    this.headerTimeout = millis;
+  }
+
+  /**
+   * @param millis how long a client may take to send the body of a request
+   * after its headers, 0 waits forever
+   */
+  public void setBodyTimeout(int millis) {
+    this.bodyTimeout = millis;
+  }
+
+  /**
+   * @param connections the number of open connections, further connections
+   * are answered with 503 Service Unavailable and closed
+   */
+  public void setMaxConnections(int connections) {
+    this.maxConnections = connections;
+  }
+
+  /**
+   * Bounds the queue of the default pool, work which doesn't fit is answered
+   * with 503 Service Unavailable. The queue holds connections for the
+   * blocking engine and requests for the selector engine.
+   * @param tasks the number of tasks waiting for a pool thread
+   */
+  public void setMaxQueued(int tasks) {
+    this.maxQueued = tasks;
+  }
+
+  /**
+   * Sheds load when the pool can't keep up: once work has waited in the queue
+   * longer than the target for a whole interval, work which waited longer
+   * than the target is answered with 503 Service Unavailable until the queue
+   * drains. Bursts shorter than the interval are served as usual.
+   * @param targetMillis the acceptable wait for a pool thread, 0 turns
+   * shedding off
+   * @param intervalMillis how long the wait has to stay above the target
+   */
+  public void setQueueDelayTarget(int targetMillis, int intervalMillis) {
+    this.queueDelay = targetMillis <= 0 ? null
+            : new CoDel(targetMillis * 1_000_000L, intervalMillis * 1_000_000L);
+  }
+
+  /**
+   * @param seconds the Retry-After of the 503 responses sent when
+   * overloaded
+   */
+  public void setRetryAfter(int seconds) {
+    unavailable = new Response(Status.SERVICE_UNAVAILABLE, "Retry-After: " + seconds).seal();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ChannelOutput out = ChannelOutput.of(bytes);
+    try {
+      unavailable.send(out, false);
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    refusal = bytes.toByteArray();
+  }
+
+  /**
+   * @param queued when the work was queued for the pool, in nanoseconds
+   * @return whether the pool is overloaded and the work should be answered
+   * with unavailable instead
+   */
+  boolean shed(long queued) {
+    CoDel c = queueDelay;
+    if (c == null) {
+      return false;
+    }
+    long now = System.nanoTime();
+    if (!c.shed(now - queued, now)) {
+      return false;
+    }
+    metrics.rejected(Metrics.Rejection.QUEUE_DELAY);
+    return true;
+  }
+
+  /**
+   * Answers a new connection with 503 without waiting for the client to take
+   * it, the caller closes the connection.
+   */
+  void refuse(WritableByteChannel ch, Metrics.Rejection reason) {
+    metrics.rejected(reason);
+    try {
+      ch.write(ByteBuffer.wrap(refusal));
+    } catch (IOException e) {
+      log.fine(e.toString());
+    }
+  }
+
+  /**
+   * @param bytes the largest request body accepted, requests with larger
+   * bodies are answered with 413 Payload Too Large
+   */
+  public void setMaxBodySize(long bytes) {
+    this.maxBodySize = bytes;
+  }
+
+  /**
+   * Limits the memory used by request bodies held in memory at once. When it
+   * is used up the blocking engine leaves small bodies to be read from
+   * Request.body instead, while the selector engine, which holds every body
+   * in memory, answers with 503 Service Unavailable. An HTTP/2 stream whose
+   * body doesn't fit is answered with 413 Payload Too Large and reset.
+   * @param bytes the total size of request bodies held in memory
+   */
+  public void setMaxBufferedBodies(long bytes) {
+    this.maxBufferedBodies = bytes;
+  }
+
+  boolean reserveBody(long bytes) {
+    long used;
+    do {
+      used = bufferedBodies.get();
+      if (used + bytes > maxBufferedBodies) {
+        return false;
+      }
+    } while (!bufferedBodies.compareAndSet(used, used + bytes));
+    return true;
+  }
+
+  void releaseBody(long bytes) {
+    bufferedBodies.addAndGet(-bytes);
+  }
+
+  /**
+   * @param accessLog where served requests are logged, it is started and
+   * closed with the server
+   */
+  public void setAccessLog(AccessLog accessLog) {
+    this.accessLog = accessLog;
+  }
+
+  /**
+   * @return the request counters and timings of the server, also registered
+   * with JMX as httpserver:type=Server,port=&lt;port&gt; while it runs
+   */
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Lets the selector engine run the handlers of pipelined GET requests on a
+   * connection at the same time, the responses are still written in the
+   * order of the requests. Other methods wait for the requests before them.
+   * @param requests the number of requests of a connection handled at once,
+   * 1 handles them one after another
+   */
+  public void setPipelineConcurrency(int requests) {
+    this.pipelineConcurrency = Math.max(1, requests);
+  }
+
+  /**
+   * Lets clients speak HTTP/2 without TLS, either by starting the connection
+   * with the HTTP/2 preface or by asking to upgrade a request without a body
+   * with "Upgrade: h2c". Enabled by default.
+   * @param enabled whether to accept h2c connections
+   */
+  public void setHttp2(boolean enabled) {
+    this.http2 = enabled;
+  }
+
+  /**
+   * @param streams the number of requests an HTTP/2 connection may have
+   * in flight at once, further streams are refused
+   */
+  public void setMaxConcurrentStreams(int streams) {
+    this.maxConcurrentStreams = streams;
+  }
+
+  /**
+   * @param threads the number of threads reading and writing connections when
+   * using the selector engine
+   */
+  public void setSelectorThreads(int threads) {
+    this.selectorThreads = threads;
+  }
   
+  /**
+   * Runs requests on the given executor instead of the default pool of 100
+   * threads. The executor is not shut down when the server stops.
+   * @param executor the executor to run requests on
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * @param factory creates the threads of the default pool
+   */
+  public void setThreadFactory(ThreadFactory factory) {
+    this.threadFactory = factory;
+  }
+
+  /**
+   * Runs every connection (or request with the selector engine) on its own
+   * virtual thread, so handlers blocking on io don't need a tuned pool.
+   * Requires Java 21.
+   * @throws UnsupportedOperationException if the jvm lacks virtual threads
+   */
+  public void useVirtualThreads() {
+    try {
+      virtualThreads = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21.", e);
+    }
+  }
+
+  private ExecutorService createPool() {
+    if (executor != null) {
+      return executor;
+    }
+    if (virtualThreads != null) {
+      try {
+        return (ExecutorService) virtualThreads.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        throw new UnsupportedOperationException(e);
+      }
+    }
+    return new ThreadPoolExecutor(100, 100, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(Math.max(1, maxQueued)), threadFactory);
+  }
+
   public void start(RequestHandler rh) {
     log.info(String.format("Starting server at '%s'.", server.getInetAddress().toString()));
-    pool = Executors.newFixedThreadPool(100, run -> new Thread(null, run, "", 1 << 12));
-    loop = new ServerLoop(rh);
+    if (accessLog != null) {
+      try {
+        accessLog.start();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    pool = createPool();
+    if (pool instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor workers = (ThreadPoolExecutor) pool;
+      metrics.gauge("httpserver_worker_queue_depth", "Connections or requests waiting for a worker thread.",
+              () -> workers.getQueue().size());
+      metrics.gauge("httpserver_workers_active", "Worker threads running a connection or request.",
+              workers::getActiveCount);
+    }
+    metrics.register("httpserver:type=Server,port=" + server.getLocalPort());
     running = true;
-    loop.start();
+    if (engine == Engine.SELECTOR) {
+      try {
+        selector = new SelectorEngine(this, channel, rh, selectorThreads);
+      } catch (IOException e) {
+        running = false;
+        if (pool != executor) {
+          pool.shutdown();
+        }
+        throw new UncheckedIOException(e);
+      }
+      selector.start();
+    } else {
+      loop = new ServerLoop(rh);
+      loop.start();
+    }
   }
 
   public void stop() {
     try {
       if (running) {
         log.info(String.format("Stopping server at '%s'.", server.getInetAddress().toString()));
-        pool.shutdown();
+        if (pool != executor) {
+          pool.shutdown();
+        }
         pool = null;
         running = false;
         server.close();
+        if (selector != null) {
+          selector.stop();
+          selector = null;
+        }
+        if (accessLog != null) {
+          accessLog.close();
+        }
+        metrics.unregister();
       }
     } catch (IOException e) {
       log.warning(e.toString());
@@ -76,21 +446,134 @@ public class Server {
   }
   static final int DEFAULT_PORT = 80;
   static final int DEFAULT_SECURE_PORT = 443;
+  static final int DEFAULT_IDLE_TIMEOUT = 5000;
+  static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+  static final long DEFAULT_MAX_BODY_SIZE = 16 << 20;
+  static final long DEFAULT_MAX_BUFFERED_BODIES = 64 << 20;
+  static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+  static final int DEFAULT_MAX_QUEUED = 1000;
+  static final int DEFAULT_MAX_CONNECTIONS = 10000;
+  static final int DEFAULT_HEADER_TIMEOUT = 10000;
+  static final int DEFAULT_BODY_TIMEOUT = 60000;
+  static final int DEFAULT_RETRY_AFTER = 1;
 
   public static Server create(int port) throws IOException {
-    return new Server(port, false);
+    return new Server(port, null);
+  }
+
+  public static Server create(int port, Engine engine) throws IOException {
+    return new Server(port, null, engine);
   }
 
+  /**
+   * @return a server using the default SSLContext, configured through the
+   * javax.net.ssl system properties
+   */
   public static Server createSecure(int port) throws IOException {
-    return new Server(port, true);
+    return new Server(port, TlsConfig.fromDefault());
+  }
+
+  public static Server createSecure(int port, TlsConfig tls) throws IOException {
+    return new Server(port, tls);
+  }
+
+  /**
+   * With the selector engine the handshake runs on the selector threads, so a
+   * slow client doesn't hold a pool thread, but HTTP/2 is only served by the
+   * blocking engine.
+   */
+  public static Server createSecure(int port, TlsConfig tls, Engine engine) throws IOException {
+    return new Server(port, tls, engine);
   }
 
   public static Server create() throws IOException {
-    return new Server(DEFAULT_PORT, false);
+    return new Server(DEFAULT_PORT, null);
   }
 
   public static Server createSecure() throws IOException {
-    return new Server(DEFAULT_SECURE_PORT, true);
+    return new Server(DEFAULT_SECURE_PORT, TlsConfig.fromDefault());
+  }
+
+  /**
+   * Handles a request and writes the response into out, which is left for
+   * the caller to flush so the responses to pipelined requests can be
+   * written together.
+   * @param served the number of requests served on the connection including
+   * this one
+   * @param remote the address of the client, for the access log
+   * @return whether the connection should be kept open for another request
+   */
+  boolean serve(RequestHandler rh, Request rq, ChannelOutput out, int served, InetAddress remote) throws IOException {
+    long start = System.nanoTime();
+    Response resp;
+    try {
+      resp = handle(rh, rq);
+    } catch (IOException | RuntimeException | Error e) {
+      rq.release();
+      throw e;
+    }
+    return send(rq, resp, out, served, remote, start);
+  }
+
+  /**
+   * Runs the handler of a request.
+   */
+  Response handle(RequestHandler rh, Request rq) throws IOException {
+    if (rq.bodyTooLarge) {
+      return Responses.payloadTooLarge();
+    }
+    metrics.inFlight.incrementAndGet();
+    try {
+      return Responses.ranges(rq, Conditional.evaluate(rq, rh.handle(rq)));
+    } catch (RuntimeException e) {
+      if (!rq.bodyOverflowed()) {
+        throw e;
+      }
+      return Responses.payloadTooLarge();
+    } finally {
+      metrics.inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Writes the response to a handled request.
+   * @param start when the request started being handled, in nanoseconds
+   * @return whether the connection should be kept open for another request
+   */
+  boolean send(Request rq, Response resp, ChannelOutput out, int served, InetAddress remote, long start) throws IOException {
+    long written = out.written;
+    boolean reuse = keepAlive && served < maxRequestsPerConnection && rq.keepAlive();
+    try {
+      reuse &= !rq.bodyOverflowed() && rq.discardBody();
+      if (resp instanceof Responses.StreamingResponse && !rq.acceptsChunked()) {
+        ((Responses.StreamingResponse) resp).chunked = false;
+        reuse = false;
+      }
+      resp.send(out, reuse);
+    } finally {
+      rq.release();
+    }
+    record(rq, resp, remote, out.written - written, start);
+    return reuse;
+  }
+
+  /**
+   * Counts a served request in the metrics and the access log.
+   * @param sent the bytes of the response
+   */
+  void record(Request rq, Response resp, InetAddress remote, long sent, long start) {
+    long nanos = System.nanoTime() - start;
+    metrics.record(rq.route, resp.status, nanos, rq.bytesIn(), sent);
+    if (accessLog != null) {
+      accessLog.record(remote, rq, resp.status.id, sent, nanos);
+    }
+  }
+
+  /**
+   * @return the request for an error message, built only when one is logged
+   */
+  static String describe(Request rq) {
+    return rq == null ? "*****no request found.*****" : rq.toString();
   }
 
   private class ServerLoop extends Thread {
@@ -104,21 +587,47 @@ public class Server {
     @Override
     public void run() {
       while (running) {
+        Socket s;
         try {
-          pool.submit(new RequestThread(server.accept(), rh));
+          s = server.accept();
         } catch (IOException ex) {
-          if (!ex.getMessage().equals("socket closed")) {
+          if (running) {
             log.severe(ex.toString());
           }
+          continue;
+        }
+        if (metrics.connections.incrementAndGet() > maxConnections) {
+          refuse(s, Metrics.Rejection.MAX_CONNECTIONS);
+          continue;
+        }
+        try {
+          pool.submit(new RequestThread(s, rh));
+        } catch (RejectedExecutionException e) {
+          refuse(s, Metrics.Rejection.QUEUE_FULL);
         }
       }
     }
+
+    private void refuse(Socket s, Metrics.Rejection reason) {
+      try (Socket c = s) {
+        if (c.getChannel() != null) {
+          Server.this.refuse(c.getChannel(), reason);
+        } else {
+          metrics.rejected(reason);
+        }
+      } catch (IOException e) {
+        log.fine(e.toString());
+      } finally {
+        metrics.connections.decrementAndGet();
+      }
+    }
   }
 
-  private class RequestThread extends Thread {
+  private class RequestThread implements Runnable {
 
     private final RequestHandler rh;
     private final Socket sock;
+    private final long queued = System.nanoTime();
 
     RequestThread(Socket s, RequestHandler rh) {
       this.rh = rh;
@@ -127,30 +636,214 @@ public class Server {
 
     @Override
     public void run() {
-      String requestString = "*****no request found.*****";
+      Request rq = null;
       InetAddress con = null;
       try (Socket s = sock) {
         con = s.getInetAddress();
-        Request rq = new Request(s.getInputStream());
-        requestString = rq.toString();
-        Response resp = rh.handle(rq);
-        resp.send(sock.getOutputStream());
-        log.log(Level.FINE,format("[%s] served successfully. %s\nRequest:\n%s\n\n", con.getHostName(), rq.path, requestString));
+        s.setSoTimeout(idleTimeout);
+        s.setTcpNoDelay(true);
+        ChannelOutput out = ChannelOutput.of(s);
+        if (shed(queued)) {
+          unavailable.send(out, false);
+          out.flush();
+          return;
+        }
+        DeadlineInputStream deadlines = new DeadlineInputStream(s);
+        InputStream in = new BufferedInputStream(new FlushingInputStream(deadlines, out));
+        boolean h2c = http2 && !(s instanceof SSLSocket);
+        if (http2 && s instanceof SSLSocket) {
+          SSLSocket ssl = (SSLSocket) s;
+          ssl.startHandshake();
+          if (TlsConfig.H2.equals(ssl.getApplicationProtocol())) {
+            new Http2Connection(Server.this, rh, s, in).serve(null);
+            return;
+          }
+        }
+        for (int served = 1; running && awaitRequest(in, deadlines); ++served) {
+          if (served == 1 && h2c && Http2Connection.hasPreface(in)) {
+            deadlines.clear();
+            new Http2Connection(Server.this, rh, s, in).serve(null);
+            break;
+          }
+          try {
+            rq = new Request(in, maxBodySize, Server.this);
+          } catch (Request.BadRequestException e) {
+            Responses.badRequest().send(out, false);
+            out.flush();
+            throw e;
+          }
+          if (h2c && Http2Connection.upgradable(rq)) {
+            out.write(Http2Connection.SWITCHING_PROTOCOLS);
+            out.flush();
+            deadlines.clear();
+            new Http2Connection(Server.this, rh, s, in).serve(rq);
+            break;
+          }
+          if (rq.contentLength() != 0) {
+            deadlines.start(bodyTimeout, metrics.bodyTimeouts);
+          }
+          boolean reuse = serve(rh, rq, out, served, con);
+          if (log.isLoggable(Level.FINE)) {
+            log.fine(format("[%s] served successfully. %s\nRequest:\n%s\n\n", con.getHostAddress(), rq.path, rq));
+          }
+          if (!reuse)
+            break;
+        }
+        out.flush();
+      } catch (DeadlineException | Request.BadRequestException e) {
+        log.fine(format("[%s] %s", con.getHostAddress(), e.getMessage()));
       } catch (SocketException e) {
         if (con != null) {
-          log.warning(format("[%s] %s!Request:\n%s\n\n", con.getHostAddress(), e.toString(), requestString));
+          log.warning(format("[%s] %s!Request:\n%s\n\n", con.getHostAddress(), e.toString(), describe(rq)));
         } else {
-          log.warning(format("[no connection] %s!\nRequest:\n%s\n\n", e.toString(), requestString));
+          log.warning(format("[no connection] %s!\nRequest:\n%s\n\n", e.toString(), describe(rq)));
         }
       } catch (IOException e) {
         if (con != null) {
-          log.severe(format("[%s] %s!\nRequest:\n%s\n\n", con.getHostAddress(), e.toString(), requestString));
+          log.severe(format("[%s] %s!\nRequest:\n%s\n\n", con.getHostAddress(), e.toString(), describe(rq)));
         } else {
-          log.severe(format("[no connection] %s!\nRequest:\n%s\n\n", e.toString(), requestString));
+          log.severe(format("[no connection] %s!\nRequest:\n%s\n\n", e.toString(), describe(rq)));
         }
       } catch (Exception | Error e) {
-        log.log(Level.SEVERE,requestString ,e);
+        log.log(Level.SEVERE, describe(rq), e);
+      } finally {
+        metrics.connections.decrementAndGet();
+      }
+    }
+
+    /**
+     * Waits for the first byte of the next request, which then has to arrive
+     * before the header timeout.
+     * @return false if the client closed the connection or it timed out
+     */
+    private boolean awaitRequest(InputStream in, DeadlineInputStream deadlines) throws IOException {
+      deadlines.clear();
+      in.mark(1);
+      try {
+        if (in.read() == -1)
+          return false;
+      } catch (SocketTimeoutException e) {
+        return false;
       }
+      in.reset();
+      deadlines.start(headerTimeout, metrics.headerTimeouts);
+      return true;
+    }
+  }
+
+  /**
+   * Limits the time left to read the part of a request being read, so a
+   * client sending it a few bytes at a time can't hold a connection forever.
+   * Each read waits for the idle timeout or until the deadline, whichever
+   * comes first.
+   */
+  private class DeadlineInputStream extends FilterInputStream {
+
+    private final Socket sock;
+    private long deadline = 0;
+    private LongAdder timeouts;
+    private int timeout;
+
+    DeadlineInputStream(Socket sock) throws IOException {
+      super(sock.getInputStream());
+      this.sock = sock;
+      this.timeout = sock.getSoTimeout();
+    }
+
+    /**
+     * @param millis the time from now until the deadline, 0 for none
+     * @param timeouts counts reads which miss the deadline
+     */
+    void start(int millis, LongAdder timeouts) {
+      deadline = millis > 0 ? System.nanoTime() + millis * 1_000_000L : 0;
+      this.timeouts = timeouts;
+    }
+
+    void clear() {
+      deadline = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        limit();
+        return in.read();
+      } catch (SocketTimeoutException e) {
+        throw missed(e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        limit();
+        return in.read(b, off, len);
+      } catch (SocketTimeoutException e) {
+        throw missed(e);
+      }
+    }
+
+    private void limit() throws IOException {
+      int t = idleTimeout;
+      if (deadline != 0) {
+        // Rounded up so a timeout comes after the deadline.
+        long left = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+        if (left <= 0) {
+          throw new SocketTimeoutException();
+        }
+        t = t > 0 ? (int) Math.min(t, left) : (int) Math.min(Integer.MAX_VALUE, left);
+      }
+      if (t != timeout) {
+        sock.setSoTimeout(t);
+        timeout = t;
+      }
+    }
+
+    private SocketTimeoutException missed(SocketTimeoutException e) {
+      if (deadline == 0 || deadline - System.nanoTime() > 0) {
+        return e;
+      }
+      timeouts.increment();
+      return new DeadlineException(timeouts == metrics.headerTimeouts ? "Header timed out." : "Body timed out.");
+    }
+  }
+
+  /**
+   * A part of a request which wasn't received in time.
+   */
+  static class DeadlineException extends SocketTimeoutException {
+
+    private static final long serialVersionUID = 1L;
+
+    DeadlineException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Flushes the responses written so far before blocking on the socket, so
+   * responses to requests that were pipelined and already buffered go out
+   * in one write.
+   */
+  private static class FlushingInputStream extends FilterInputStream {
+
+    private final ChannelOutput out;
+
+    FlushingInputStream(InputStream in, ChannelOutput out) {
+      super(in);
+      this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+      out.flush();
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      out.flush();
+      return in.read(b, off, len);
     }
   }
 
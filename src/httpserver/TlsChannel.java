@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a non-blocking channel with an SSLEngine, for the selector engine.
+ * The selector thread feeds it the bytes it reads, which runs the handshake
+ * without taking a pool thread and decrypts the requests, while the pool
+ * thread writing a response encrypts it.
+ */
+class TlsChannel {
+
+  /**
+   * What the connection waits for after read.
+   */
+  static final int READ = 0, WRITE = 1, CLOSED = 2;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SocketChannel ch;
+  private final SSLEngine engine;
+  // Only touched by the selector thread.
+  private ByteBuffer netIn, appIn;
+  /**
+   * Encrypted bytes not written yet, guarded by lock.
+   */
+  private ByteBuffer netOut;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  interface Sink {
+    void accept(ByteBuffer plain);
+  }
+
+  TlsChannel(SocketChannel ch, SSLEngine engine) throws SSLException {
+    this.ch = ch;
+    this.engine = engine;
+    engine.beginHandshake();
+    netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    netOut.flip();
+  }
+
+  /**
+   * Runs the handshake as far as the bytes received allow and decrypts the
+   * application data among them.
+   * @param src bytes read from the channel, or null to go on after WRITE
+   * @param sink receives the decrypted bytes
+   * @return READ when more bytes are needed, WRITE when handshake bytes wait
+   * for the channel to be writable, or CLOSED when the client closed the
+   * session
+   */
+  int read(ByteBuffer src, Sink sink) throws IOException {
+    if (src != null) {
+      if (src.remaining() > netIn.remaining()) {
+        netIn = grow(netIn, netIn.position() + src.remaining());
+      }
+      netIn.put(src);
+    }
+    while (true) {
+      switch (engine.getHandshakeStatus()) {
+        case NEED_TASK:
+          Runnable task;
+          while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+          }
+          break;
+        case NEED_WRAP:
+          lock.lock();
+          try {
+            if (!flush()) {
+              return WRITE;
+            }
+            netOut.clear();
+            SSLEngineResult r = engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            if (!flush()) {
+              return WRITE;
+            }
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+              return CLOSED;
+            }
+          } finally {
+            lock.unlock();
+          }
+          break;
+        default:
+          netIn.flip();
+          SSLEngineResult r;
+          try {
+            r = engine.unwrap(netIn, appIn);
+          } finally {
+            netIn.compact();
+          }
+          if (appIn.position() > 0) {
+            appIn.flip();
+            sink.accept(appIn);
+            appIn.clear();
+          }
+          switch (r.getStatus()) {
+            case BUFFER_UNDERFLOW:
+              if (!netIn.hasRemaining()) {
+                netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+              }
+              return READ;
+            case BUFFER_OVERFLOW:
+              appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+              break;
+            case CLOSED:
+              return CLOSED;
+            default:
+              if (r.bytesConsumed() == 0 && r.bytesProduced() == 0
+                      && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                return READ;
+              }
+          }
+      }
+    }
+  }
+
+  private static ByteBuffer grow(ByteBuffer b, int min) {
+    ByteBuffer res = ByteBuffer.allocate(Math.max(min, b.capacity() * 2));
+    b.flip();
+    res.put(b);
+    return res;
+  }
+
+  /**
+   * Writes pending encrypted bytes without waiting.
+   * @return whether all were written
+   */
+  private boolean flush() throws IOException {
+    while (netOut.hasRemaining()) {
+      if (ch.write(netOut) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encrypts and writes all remaining bytes of srcs, in records of up to
+   * 16 KB.
+   * @param awaitWritable called when the channel can't take more
+   */
+  void write(ByteBuffer[] srcs, ChannelOutput.Await awaitWritable) throws IOException {
+    lock.lock();
+    try {
+      drain(awaitWritable);
+      while (srcs[srcs.length - 1].hasRemaining()) {
+        netOut.clear();
+        SSLEngineResult r = engine.wrap(srcs, netOut);
+        netOut.flip();
+        if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+          throw new SSLException("The session is closed.");
+        }
+        if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+          netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+          netOut.flip();
+          continue;
+        }
+        drain(awaitWritable);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drain(ChannelOutput.Await awaitWritable) throws IOException {
+    while (!flush()) {
+      awaitWritable.await();
+    }
+  }
+
+  /**
+   * Sends close_notify if nothing else is being written and the channel
+   * takes it right away.
+   */
+  void close() {
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      engine.closeOutbound();
+      netOut.clear();
+      engine.wrap(EMPTY, netOut);
+      netOut.flip();
+      flush();
+    } catch (IOException e) {
+      // The connection is closed anyway.
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * How a secure server speaks TLS: the SSLContext holding its certificate, the
+ * protocols and cipher suites it accepts, how many sessions it keeps for how
+ * long so clients can resume them without a full handshake, and the
+ * application protocols it offers with ALPN.
+ */
+public class TlsConfig {
+
+  /**
+   * TLS 1.3 is preferred, it needs one round trip less for a full handshake.
+   */
+  static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+  static final String H2 = "h2", HTTP11 = "http/1.1";
+
+  private final SSLContext context;
+  private String[] protocols = DEFAULT_PROTOCOLS;
+  private String[] cipherSuites;
+  private String[] applicationProtocols;
+
+  /**
+   * @param context the context with the key and certificate of the server
+   */
+  public TlsConfig(SSLContext context) {
+    this.context = context;
+  }
+
+  /**
+   * @param keyStore a PKCS12 or JKS key store with the key and certificate
+   * chain of the server
+   * @param password the password of the key store and the key
+   */
+  public static TlsConfig fromKeyStore(File keyStore, char[] password) throws IOException, GeneralSecurityException {
+    KeyStore ks = KeyStore.getInstance(keyStore, password);
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(ks, password);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), null, null);
+    return new TlsConfig(context);
+  }
+
+  /**
+   * @return a configuration using the default context, which takes its key
+   * store from the javax.net.ssl.keyStore system properties
+   */
+  public static TlsConfig fromDefault() {
+    try {
+      return new TlsConfig(SSLContext.getDefault());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param protocols the protocols accepted, those the jvm doesn't support
+   * are left out. The highest one both sides support is used.
+   */
+  public TlsConfig protocols(String... protocols) {
+    this.protocols = protocols.clone();
+    return this;
+  }
+
+  /**
+   * @param suites the cipher suites accepted in the order the server prefers
+   * them, its order wins over the order of the client
+   */
+  public TlsConfig cipherSuites(String... suites) {
+    this.cipherSuites = suites.clone();
+    return this;
+  }
+
+  /**
+   * Tunes the cache of sessions clients can resume with an abbreviated
+   * handshake.
+   * @param size the number of sessions kept, 0 for no limit
+   * @param timeoutSeconds how long a session can be resumed, 0 for no limit
+   */
+  public TlsConfig sessionCache(int size, int timeoutSeconds) {
+    SSLSessionContext sessions = context.getServerSessionContext();
+    sessions.setSessionCacheSize(size);
+    sessions.setSessionTimeout(timeoutSeconds);
+    return this;
+  }
+
+  /**
+   * @param protocols the protocols offered with ALPN, by default "h2" where
+   * the engine serves HTTP/2 over TLS and "http/1.1"
+   */
+  public TlsConfig applicationProtocols(String... protocols) {
+    this.applicationProtocols = protocols.clone();
+    return this;
+  }
+
+  SSLContext context() {
+    return context;
+  }
+
+  /**
+   * @param h2 whether HTTP/2 can be offered if no application protocols were
+   * given
+   */
+  SSLParameters parameters(boolean h2) {
+    SSLParameters params = context.getDefaultSSLParameters();
+    List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+    List<String> enabled = new ArrayList<>();
+    for (String p : protocols) {
+      if (supported.contains(p)) {
+        enabled.add(p);
+      }
+    }
+    if (enabled.isEmpty()) {
+      throw new IllegalArgumentException("None of the protocols " + Arrays.toString(protocols) + " is supported.");
+    }
+    params.setProtocols(enabled.toArray(new String[enabled.size()]));
+    if (cipherSuites != null) {
+      params.setCipherSuites(cipherSuites);
+    }
+    params.setUseCipherSuitesOrder(true);
+    if (applicationProtocols != null) {
+      params.setApplicationProtocols(applicationProtocols);
+    } else {
+      params.setApplicationProtocols(h2 ? new String[]{H2, HTTP11} : new String[]{HTTP11});
+    }
+    return params;
+  }
+
+  SSLEngine createEngine(boolean h2) {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    engine.setSSLParameters(parameters(h2));
+    return engine;
+  }
+}
@@ -23,44 +23,197 @@
  */
 package httpserver.sql;
 
+import httpserver.Histogram;
+import httpserver.Metrics;
 import java.sql.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-
+/**
+ * Runs statements on pooled connections to the database at the configured
+ * url. The pool is created on first use, changing a setting afterwards closes
+ * it and the next statement opens a new one with the new settings.
+ */
 public abstract class ConnectionPool {
+
+  public static final int DEFAULT_MIN_SIZE = 0;
+  public static final int DEFAULT_MAX_SIZE = 10;
+  public static final long DEFAULT_MAX_LIFETIME = 30 * 60 * 1000;
+  public static final long DEFAULT_ACQUIRE_TIMEOUT = 30 * 1000;
+  public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+  static final long HOUSEKEEPING_INTERVAL = 5000;
   
   public static void setUrl(String url) {
     ConnectionPool.url = url;
+    reset();
   }
   
   private static String url;
   private static String username;
   private static String password;
-  private static Connection get() throws SQLException {
-    return DriverManager.getConnection(url, username, password);
+  private static int minSize = DEFAULT_MIN_SIZE, maxSize = DEFAULT_MAX_SIZE;
+  private static long maxLifetime = DEFAULT_MAX_LIFETIME, acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+  private static long leakThreshold = 0;
+  private static int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+  private static Pool pool;
+  private static ScheduledExecutorService housekeeper;
+  private static final Histogram acquireTimes = new Histogram(), statementTimes = new Histogram();
+
+  private static synchronized Pool pool() {
+    if (pool == null) {
+      Pool p = new Pool(() -> DriverManager.getConnection(url, username, password),
+              minSize, maxSize, maxLifetime, acquireTimeout, leakThreshold, statementCacheSize);
+      if (housekeeper == null) {
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "ConnectionPool housekeeper");
+          t.setDaemon(true);
+          return t;
+        });
+      }
+      housekeeper.scheduleWithFixedDelay(p::maintain, 0, HOUSEKEEPING_INTERVAL, TimeUnit.MILLISECONDS);
+      pool = p;
+    }
+    return pool;
+  }
+
+  private static synchronized void reset() {
+    if (housekeeper != null) {
+      housekeeper.shutdownNow();
+      housekeeper = null;
+    }
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+  }
+
+  /**
+   * Closes the idle connections, connections in use are closed when they are
+   * returned.
+   */
+  public static void close() {
+    reset();
   }
+
   public static void execute(String sql) {
-      try(Connection conn = ConnectionPool.get();
-              Statement stmt = conn.createStatement();) {
-        stmt.execute(sql);
-      } catch (SQLException e) {
-        throw new SQLError(e);
-      }
+      run((p, c) -> {
+        try (Statement stmt = c.conn.createStatement()) {
+          stmt.execute(sql);
+        }
+        return null;
+      });
   }
   public static <T> T query(String sql, Callback<T> call) {
-      try(Connection conn = ConnectionPool.get();
-              Statement stmt = conn.createStatement();
-              ResultSet res = stmt.executeQuery(sql);) {
-        return call.call(res);
+      return run((p, c) -> {
+        try (Statement stmt = c.conn.createStatement();
+                ResultSet res = stmt.executeQuery(sql);) {
+          return call.call(res);
+        }
+      });
+  }
+
+  /**
+   * Executes a statement with parameters bound to its '?' placeholders. The
+   * statement is prepared once per connection and reused.
+   */
+  public static void execute(String sql, Object... params) {
+      run((p, c) -> {
+        p.prepare(c, sql, params).execute();
+        return null;
+      });
+  }
+
+  /**
+   * Runs a query with parameters bound to its '?' placeholders. The statement
+   * is prepared once per connection and reused.
+   */
+  public static <T> T query(String sql, Callback<T> call, Object... params) {
+      return query(sql, 0, call, params);
+  }
+
+  /**
+   * Runs a parameterized query, fetching fetchSize rows at a time from the
+   * database while the callback reads them.
+   * @param fetchSize the number of rows fetched at a time, 0 for the driver
+   * default
+   */
+  public static <T> T query(String sql, int fetchSize, Callback<T> call, Object... params) {
+      return run((p, c) -> {
+        PreparedStatement stmt = p.prepare(c, sql, params);
+        stmt.setFetchSize(fetchSize);
+        try (ResultSet res = stmt.executeQuery()) {
+          return call.call(res);
+        }
+      });
+  }
+
+  private static <T> T run(Work<T> work) {
+      Pool p = pool();
+      Pool.Pooled c = null;
+      boolean broken = false;
+      long start = System.nanoTime();
+      try {
+        c = p.acquire();
+        long acquired = System.nanoTime();
+        acquireTimes.record(acquired - start);
+        try {
+          return work.run(p, c);
+        } finally {
+          statementTimes.record(System.nanoTime() - acquired);
+        }
       } catch (SQLException e) {
+        broken = true;
         throw new SQLError(e);
+      } finally {
+        if (c != null) {
+          p.release(c, broken);
+        }
       }
   }
 
+  private static interface Work<T> {
+    T run(Pool p, Pool.Pooled c) throws SQLException;
+  }
+
+  /**
+   * @return the current state and counters of the pool
+   */
+  public static Stats stats() {
+    return pool().stats();
+  }
+
+  private static synchronized Stats current() {
+    return pool == null ? null : pool.stats();
+  }
+
+  /**
+   * Exports the usage of the pool and the time spent waiting for connections
+   * and running statements with the metrics of a server.
+   */
+  public static void registerMetrics(Metrics metrics) {
+    metrics.gauge("httpserver_sql_connections_active", "Pooled connections in use.", () -> {
+      Stats s = current();
+      return s == null ? 0 : s.active;
+    });
+    metrics.gauge("httpserver_sql_connections_idle", "Pooled connections waiting to be used.", () -> {
+      Stats s = current();
+      return s == null ? 0 : s.idle;
+    });
+    metrics.gauge("httpserver_sql_acquire_waiting", "Threads waiting for a pooled connection.", () -> {
+      Stats s = current();
+      return s == null ? 0 : s.waiting;
+    });
+    metrics.summary("httpserver_sql_acquire_seconds", "Time waiting for a pooled connection.", acquireTimes);
+    metrics.summary("httpserver_sql_statement_seconds", "Time running statements and reading their results.", statementTimes);
+  }
+
     /**
      * @param aUsername the username to set
      */
     public static void setUsername(String aUsername) {
         username = aUsername;
+        reset();
     }
 
     /**
@@ -68,8 +221,119 @@ public abstract class ConnectionPool {
      */
     public static void setPassword(String aPassword) {
         password = aPassword;
+        reset();
     }
+
+  /**
+   * @param size the number of connections kept open while idle
+   */
+  public static void setMinSize(int size) {
+    minSize = size;
+    reset();
+  }
+
+  /**
+   * @param size the most connections open at once
+   */
+  public static void setMaxSize(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("The pool needs at least one connection.");
+    }
+    maxSize = size;
+    reset();
+  }
+
+  /**
+   * @param millis the age after which a connection is closed and replaced, 0
+   * to keep connections forever
+   */
+  public static void setMaxLifetime(long millis) {
+    maxLifetime = millis;
+    reset();
+  }
+
+  /**
+   * @param millis how long a statement waits for a free connection before it
+   * fails with an SQLError
+   */
+  public static void setAcquireTimeout(long millis) {
+    acquireTimeout = millis;
+    reset();
+  }
+
+  /**
+   * @param millis connections held longer than this are logged together with
+   * where they were acquired, 0 to disable
+   */
+  public static void setLeakThreshold(long millis) {
+    leakThreshold = millis;
+    reset();
+  }
+
+  /**
+   * @param size the number of prepared statements kept open per connection
+   */
+  public static void setStatementCacheSize(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("The statement cache needs room for at least one statement.");
+    }
+    statementCacheSize = size;
+    reset();
+  }
+
   public static interface Callback<T> {
     public T call(ResultSet res) throws SQLException;
   }
+
+  /**
+   * A snapshot of the pool.
+   */
+  public static class Stats {
+
+    /**
+     * Connections in use, idle and open in total, and threads waiting.
+     */
+    public final int active, idle, waiting, total;
+    public final long acquired, created, timeouts, leaks;
+    /**
+     * Nanoseconds spent waiting for a connection.
+     */
+    public final long meanAcquireNanos, maxAcquireNanos;
+    /**
+     * Parameterized statements found and not found in the statement caches.
+     */
+    public final long statementHits, statementMisses;
+
+    Stats(int active, int idle, int waiting, int total, long acquired, long created,
+            long timeouts, long leaks, long meanAcquireNanos, long maxAcquireNanos,
+            long statementHits, long statementMisses) {
+      this.active = active;
+      this.idle = idle;
+      this.waiting = waiting;
+      this.total = total;
+      this.acquired = acquired;
+      this.created = created;
+      this.timeouts = timeouts;
+      this.leaks = leaks;
+      this.meanAcquireNanos = meanAcquireNanos;
+      this.maxAcquireNanos = maxAcquireNanos;
+      this.statementHits = statementHits;
+      this.statementMisses = statementMisses;
+    }
+
+    /**
+     * @return the fraction of parameterized statements served from the cache
+     */
+    public double statementHitRate() {
+      long n = statementHits + statementMisses;
+      return n == 0 ? 0 : statementHits / (double) n;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("active=%d idle=%d waiting=%d total=%d acquired=%d created=%d timeouts=%d leaks=%d mean=%dus max=%dus statementHitRate=%.2f",
+              active, idle, waiting, total, acquired, created, timeouts, leaks,
+              meanAcquireNanos / 1000, maxAcquireNanos / 1000, statementHitRate());
+    }
+  }
 }
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of jdbc connections. Threads wait for a free connection in
+ * arrival order, idle connections are reused most recently returned first and
+ * are validated before being handed out if they have been idle for a while.
+ */
+class Pool {
+
+  private static final Logger log = Logger.getLogger(Pool.class.getName());
+
+  static final long VALIDATION_INTERVAL = 1000;
+  static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+  interface Factory {
+    Connection create() throws SQLException;
+  }
+
+  private final Factory factory;
+  private final int minSize, statementCacheSize;
+  private final long maxLifetime, acquireTimeout, leakThreshold;
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<>();
+  private final Set<Pooled> active = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger total = new AtomicInteger();
+  private final LongAdder acquired = new LongAdder(), acquireNanos = new LongAdder(),
+          created = new LongAdder(), timeouts = new LongAdder(), leaks = new LongAdder(),
+          statementHits = new LongAdder(), statementMisses = new LongAdder();
+  private final LongAccumulator maxAcquireNanos = new LongAccumulator(Math::max, 0);
+  private volatile boolean closed = false;
+
+  /**
+   * @param minSize the number of connections kept open while idle
+   * @param maxSize the most connections open at once
+   * @param maxLifetime milliseconds after which a connection is replaced
+   * @param acquireTimeout milliseconds to wait for a free connection
+   * @param leakThreshold milliseconds a connection may be held before it is
+   * reported as leaked, 0 to disable
+   * @param statementCacheSize the number of prepared statements kept open per
+   * connection
+   */
+  Pool(Factory factory, int minSize, int maxSize, long maxLifetime, long acquireTimeout, long leakThreshold,
+          int statementCacheSize) {
+    this.factory = factory;
+    this.minSize = Math.min(minSize, maxSize);
+    this.maxLifetime = maxLifetime;
+    this.acquireTimeout = acquireTimeout;
+    this.leakThreshold = leakThreshold;
+    this.statementCacheSize = statementCacheSize;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  Pooled acquire() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+        timeouts.increment();
+        throw new SQLTimeoutException(String.format("No connection available within %d ms.", acquireTimeout));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection.", e);
+    }
+    try {
+      Pooled p = take();
+      long now = System.nanoTime();
+      p.acquired = now;
+      p.acquirer = leakThreshold > 0 ? new Throwable("Connection acquired here") : null;
+      active.add(p);
+      long waited = now - start;
+      acquired.increment();
+      acquireNanos.add(waited);
+      maxAcquireNanos.accumulate(waited);
+      return p;
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private Pooled take() throws SQLException {
+    if (closed) {
+      throw new SQLException("The connection pool is closed.");
+    }
+    long now = System.currentTimeMillis();
+    Pooled p;
+    while ((p = idle.pollFirst()) != null) {
+      if (expired(p, now)) {
+        discard(p);
+      } else if (now - p.lastUsed > VALIDATION_INTERVAL && !valid(p)) {
+        discard(p);
+      } else {
+        return p;
+      }
+    }
+    return open();
+  }
+
+  private Pooled open() throws SQLException {
+    total.incrementAndGet();
+    try {
+      Pooled p = new Pooled(factory.create(), statementCacheSize);
+      created.increment();
+      return p;
+    } catch (SQLException | RuntimeException e) {
+      total.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a prepared statement for sql with the parameters set, reusing the
+   * one cached on the connection if there is one. The statement belongs to the
+   * connection and must not be closed by the caller.
+   */
+  PreparedStatement prepare(Pooled p, String sql, Object... params) throws SQLException {
+    PreparedStatement stmt = p.statements.get(sql);
+    if (stmt == null) {
+      statementMisses.increment();
+      stmt = p.conn.prepareStatement(sql);
+      p.statements.put(sql, stmt);
+    } else {
+      statementHits.increment();
+      stmt.clearParameters();
+    }
+    for (int i = 0; i < params.length; ++i) {
+      stmt.setObject(i + 1, params[i]);
+    }
+    return stmt;
+  }
+
+  /**
+   * Returns a connection to the pool.
+   * @param broken whether the connection failed while it was used, it is
+   * validated before being reused and its cached statements are dropped
+   */
+  void release(Pooled p, boolean broken) {
+    active.remove(p);
+    p.acquirer = null;
+    p.lastUsed = System.currentTimeMillis();
+    try {
+      if (broken) {
+        p.closeStatements();
+      }
+      if (closed || expired(p, p.lastUsed) || (broken && !valid(p))) {
+        discard(p);
+      } else {
+        idle.offerFirst(p);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private boolean expired(Pooled p, long now) {
+    return maxLifetime > 0 && now - p.created > maxLifetime;
+  }
+
+  private static boolean valid(Pooled p) {
+    try {
+      return p.conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private void discard(Pooled p) {
+    total.decrementAndGet();
+    try {
+      p.conn.close();
+    } catch (SQLException e) {
+      log.warning(e.toString());
+    }
+  }
+
+  /**
+   * Replaces expired idle connections, opens connections up to the minimum
+   * size and reports connections held longer than the leak threshold.
+   */
+  void maintain() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Pooled> it = idle.iterator(); it.hasNext();) {
+      Pooled p = it.next();
+      if (expired(p, now) && idle.removeFirstOccurrence(p)) {
+        discard(p);
+      }
+    }
+    while (!closed && total.get() < minSize) {
+      try {
+        Pooled p = open();
+        p.lastUsed = now;
+        idle.offerLast(p);
+      } catch (SQLException e) {
+        log.warning(e.toString());
+        break;
+      }
+    }
+    if (leakThreshold > 0) {
+      long nanos = System.nanoTime();
+      for (Pooled p : active) {
+        Throwable at = p.acquirer;
+        if (at != null && nanos - p.acquired > TimeUnit.MILLISECONDS.toNanos(leakThreshold)) {
+          p.acquirer = null;
+          leaks.increment();
+          log.log(Level.WARNING, String.format("Connection held for more than %d ms, possible leak.", leakThreshold), at);
+        }
+      }
+    }
+  }
+
+  void close() {
+    closed = true;
+    Pooled p;
+    while ((p = idle.pollFirst()) != null) {
+      discard(p);
+    }
+  }
+
+  ConnectionPool.Stats stats() {
+    long n = acquired.sum();
+    return new ConnectionPool.Stats(active.size(), idle.size(), permits.getQueueLength(), total.get(),
+            n, created.sum(), timeouts.sum(), leaks.sum(),
+            n == 0 ? 0 : acquireNanos.sum() / n, maxAcquireNanos.get(),
+            statementHits.sum(), statementMisses.sum());
+  }
+
+  static class Pooled {
+
+    final Connection conn;
+    final Map<String, PreparedStatement> statements;
+    final long created = System.currentTimeMillis();
+    volatile long lastUsed = created;
+    volatile long acquired;
+    volatile Throwable acquirer;
+
+    Pooled(Connection conn, int statementCacheSize) {
+      this.conn = conn;
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+          if (size() <= statementCacheSize) {
+            return false;
+          }
+          close(eldest.getValue());
+          return true;
+        }
+      };
+    }
+
+    void closeStatements() {
+      for (PreparedStatement stmt : statements.values()) {
+        close(stmt);
+      }
+      statements.clear();
+    }
+
+    private static void close(PreparedStatement stmt) {
+      try {
+        stmt.close();
+      } catch (SQLException e) {
+        log.warning(e.toString());
+      }
+    }
+  }
+}
@@ -1,66 +1,148 @@
 
 package httpserver.sql;
 
-import httpserver.JsonBuilder;
+import httpserver.JsonWriter;
 import httpserver.Response;
 import httpserver.Responses;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Array;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Types;
 
 public class SQLResponses {
 
+  public static final int DEFAULT_FETCH_SIZE = 256;
+
+  private static int fetchSize = DEFAULT_FETCH_SIZE;
+
+  /**
+   * @param rows the number of rows streamSQL fetches from the database at a
+   * time
+   */
+  public static void setFetchSize(int rows) {
+    fetchSize = rows;
+  }
+
   /**
    * Responds with the content of a sql query which returns a single value
    * @param query the query whose results we want to send
+   * @param params the values of the '?' placeholders in the query
    * @return A response object which will send the data
    */
-  public static Response directUniqueSQL(String query) {
-    Map<String, Object> m = ConnectionPool.query(query, (ResultSet r) -> {
-      Map<String, Object> res = new HashMap<>();
+  public static Response directUniqueSQL(String query, Object... params) {
+    JsonWriter json = new JsonWriter();
+    ConnectionPool.query(query, (ResultSet r) -> {
       ResultSetMetaData meta = r.getMetaData();
       int n = meta.getColumnCount();
+      Object[] row = null;
       while (r.next()) {
+        row = new Object[n];
         for (int i = 1; i <= n; ++i) {
-          res.put(meta.getColumnLabel(i), r.getObject(i));
+          row[i - 1] = value(r, i, meta.getColumnType(i));
         }
       }
-      return res;
-    });
-    JsonBuilder jb = new JsonBuilder();
-    jb.append(m);
-    return Responses.json(jb.toString());
+      json.beginObject();
+      for (int i = 1; row != null && i <= n; ++i) {
+        json.name(meta.getColumnLabel(i)).value(row[i - 1]);
+      }
+      json.endObject();
+      return null;
+    }, params);
+    return Responses.json(json);
   }
 
   /**
    * Responds with the content of a sql query
    * @param query the query whose results we want to send
+   * @param params the values of the '?' placeholders in the query
    * @return A response object which will send the data
    */
-  public static Response directSQL(String query) {
-    List<Map<String, Object>> m = ConnectionPool.query(query, (ResultSet r) -> {
-      List<Map<String, Object>> res = new ArrayList<>();
-      ResultSetMetaData meta = r.getMetaData();
-      int n = meta.getColumnCount();
-      String[] names = new String[n];
-      for (int i = 0; i < n; ++i) {
-        names[i] = meta.getColumnName(i + 1);
-      }
-      while (r.next()) {
-        Map<String, Object> pr = new HashMap<>();
-        res.add(pr);
-        for (int i = 0; i < n; ++i) {
-          pr.put(names[i], r.getObject(i + 1));
+  public static Response directSQL(String query, Object... params) {
+    JsonWriter json = new JsonWriter();
+    ConnectionPool.query(query, (ResultSet r) -> {
+      writeRows(r, json, false);
+      return null;
+    }, params);
+    return Responses.json(json);
+  }
+
+  /**
+   * Responds with the content of a sql query like directSQL, but runs the
+   * query while the response is sent and writes each row as it is read, so
+   * memory use doesn't grow with the number of rows. The connection is held
+   * until the client has received the last row.
+   * @param query the query whose results we want to send
+   * @param params the values of the '?' placeholders in the query
+   * @return A response object which will send the data
+   */
+  public static Response streamSQL(String query, Object... params) {
+    int rows = fetchSize;
+    return new Responses.StreamingResponse("application/json") {
+      @Override
+      protected void writeBody(OutputStream out) throws IOException {
+        try {
+          ConnectionPool.query(query, rows, (ResultSet r) -> {
+            JsonWriter json = new JsonWriter(out);
+            writeRows(r, json, true);
+            json.flush();
+            return null;
+          }, params);
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
         }
       }
-      return res;
-    });
-    JsonBuilder jb = new JsonBuilder();
-    jb.append(m);
-    return Responses.json(jb.toString());
+    };
+  }
+
+  /**
+   * Writes the rows as an array of objects with a member per column.
+   * @param labels whether members are named by column label or column name
+   */
+  private static void writeRows(ResultSet r, JsonWriter json, boolean labels) throws SQLException {
+    ResultSetMetaData meta = r.getMetaData();
+    int n = meta.getColumnCount();
+    String[] names = new String[n];
+    int[] types = new int[n];
+    for (int i = 0; i < n; ++i) {
+      names[i] = labels ? meta.getColumnLabel(i + 1) : meta.getColumnName(i + 1);
+      types[i] = meta.getColumnType(i + 1);
+    }
+    json.beginArray();
+    while (r.next()) {
+      json.beginObject();
+      for (int i = 0; i < n; ++i) {
+        json.name(names[i]).value(value(r, i + 1, types[i]));
+      }
+      json.endObject();
+    }
+    json.endArray();
+  }
+
+  /**
+   * Reads a column as a value JsonWriter knows, large objects are read into
+   * strings and byte arrays.
+   */
+  private static Object value(ResultSet r, int column, int type) throws SQLException {
+    switch (type) {
+      case Types.CLOB:
+      case Types.NCLOB:
+        return r.getString(column);
+      case Types.BLOB:
+        return r.getBytes(column);
+      case Types.SQLXML:
+        SQLXML xml = r.getSQLXML(column);
+        return xml == null ? null : xml.getString();
+      case Types.ARRAY:
+        Array array = r.getArray(column);
+        return array == null ? null : array.getArray();
+      default:
+        return r.getObject(column);
+    }
   }
 
 }
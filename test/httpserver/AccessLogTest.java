@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AccessLogTest {
+
+    static Request request(String s) throws IOException {
+        return new Request(new ByteArrayInputStream(s.getBytes()));
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        Path dir = Files.createTempDirectory("access");
+        Request rq = request("GET /a%20b?x=\"1\" HTTP/1.1\r\n\r\n");
+        InetAddress local = InetAddress.getByName("127.0.0.1");
+
+        AccessLog common = new AccessLog(dir.resolve("common.log"), AccessLog.Format.COMMON);
+        common.start();
+        common.record(local, rq, 200, 1234, 5_678_000);
+        common.close();
+        String line = Files.readAllLines(dir.resolve("common.log")).get(0);
+        assertTrue(line, line.matches("127\\.0\\.0\\.1 - - \\[\\d\\d/\\w{3}/\\d{4}:\\d\\d:\\d\\d:\\d\\d [+-]\\d{4}\\] "
+                + "\"GET /a%20b\\?x=\"1\" HTTP/1\\.1\" 200 1234 5678"));
+
+        AccessLog json = new AccessLog(dir.resolve("json.log"), AccessLog.Format.JSON);
+        json.start();
+        json.record(null, rq, 404, 0, 1000);
+        json.close();
+        line = Files.readAllLines(dir.resolve("json.log")).get(0);
+        assertTrue(line, line.matches("\\{\"time\":\"[^\"]+\",\"remote\":null,\"method\":\"GET\",\"path\":\"/a%20b\","
+                + "\"query\":\"x=\\\\\"1\\\\\"\",\"protocol\":\"HTTP/1.1\",\"status\":404,\"bytes\":0,\"micros\":1\\}"));
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+        Path dir = Files.createTempDirectory("access");
+        Path file = dir.resolve("access.log");
+        AccessLog log = new AccessLog(file, AccessLog.Format.COMMON, 4);
+        log.setMaxFileSize(1);
+        log.setMaxFiles(2);
+        log.start();
+        Request rq = request("GET / HTTP/1.1\r\n\r\n");
+        for (int i = 0; i < 4; ++i) {
+            log.record(null, rq, 200, 0, 0);
+        }
+        log.close();
+        assertTrue(Files.exists(file));
+        assertTrue(Files.exists(dir.resolve("access.log.1")));
+        assertTrue(Files.exists(dir.resolve("access.log.2")));
+        assertFalse(Files.exists(dir.resolve("access.log.3")));
+        List<String> last = Files.readAllLines(file);
+        assertEquals(1, last.size());
+    }
+
+    @Test
+    public void testDropsWhenFull() throws IOException {
+        Path file = Files.createTempDirectory("access").resolve("access.log");
+        AccessLog log = new AccessLog(file, AccessLog.Format.COMMON, 4);
+        Request rq = request("GET / HTTP/1.1\r\n\r\n");
+        for (int i = 0; i < 6; ++i) {
+            log.record(null, rq, 200, 0, 0);
+        }
+        assertEquals(2, log.dropped());
+        log.start();
+        log.close();
+        assertEquals(4, Files.readAllLines(file).size());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CachingHandlerTest {
+
+    static Request request(String target, String... headers) throws IOException {
+        StringBuilder req = new StringBuilder("GET " + target + " HTTP/1.1\r\n");
+        for (String h : headers) {
+            req.append(h).append("\r\n");
+        }
+        req.append("\r\n");
+        return new Request(new ByteArrayInputStream(req.toString().getBytes()));
+    }
+
+    static String body(Response r) {
+        return new String(((Responses.RawResponse) r).data);
+    }
+
+    @Test
+    public void testHit() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        CachingHandler h = new CachingHandler(req -> Responses.json("{\"n\":" + calls.incrementAndGet() + "}"),
+                60000, "Accept-Language");
+        Response first = h.handle(request("/report?a=1"));
+        assertTrue(first.isSealed());
+        assertSame(first, h.handle(request("/report?a=1")));
+        assertEquals(1, calls.get());
+        assertEquals("{\"n\":2}", body(h.handle(request("/report?a=2"))));
+        assertEquals("{\"n\":3}", body(h.handle(request("/report?a=1", "Accept-Language: sv"))));
+        assertSame(first, h.handle(request("/report?a=1")));
+        assertEquals(3, h.misses());
+        assertEquals(2, h.hits());
+        assertEquals(3, h.size());
+
+        h.clear();
+        assertEquals("{\"n\":4}", body(h.handle(request("/report?a=1"))));
+    }
+
+    @Test
+    public void testOptOut() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        CachingHandler h = new CachingHandler(req -> {
+            Response r = Responses.respond("" + calls.incrementAndGet());
+            switch (req.path) {
+                case "/private":
+                    return r.addHeader("Cache-Control", "private, max-age=60");
+                case "/vary":
+                    return r.addHeader("Vary", "Cookie");
+                case "/cookie":
+                    return r.addHeader("Set-Cookie", "a=1");
+                case "/missing":
+                    return Responses.notFound();
+                default:
+                    return r;
+            }
+        }, 60000).route("/live", 0, 0);
+        for (String path : new String[]{"/private", "/vary", "/cookie", "/missing", "/live"}) {
+            int before = calls.get();
+            h.handle(request(path));
+            h.handle(request(path));
+            assertEquals(path, before + 2, calls.get());
+        }
+        Response r = h.handle(request("/other"));
+        assertSame(r, h.handle(request("/other")));
+        assertNotSame(r, h.handle(request("/other", "Authorization: Basic YTpi")));
+        assertEquals(1, h.size());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CachingHandler h = new CachingHandler(req -> Responses.respond("" + calls.incrementAndGet())
+                .addHeader("Cache-Control", "public, max-age=0"),
+                60000, 0, CachingHandler.DEFAULT_MAX_BYTES, Runnable::run);
+        // max-age=0 means the response can't be stored.
+        h.handle(request("/"));
+        assertEquals(0, h.size());
+
+        h = new CachingHandler(req -> Responses.respond("" + calls.incrementAndGet()),
+                1, 60000, CachingHandler.DEFAULT_MAX_BYTES, Runnable::run);
+        calls.set(0);
+        Response first = h.handle(request("/"));
+        Thread.sleep(5);
+        // The stale response is served while the refresh runs, here right away.
+        assertSame(first, h.handle(request("/")));
+        assertEquals(2, calls.get());
+        Response refreshed = h.handle(request("/"));
+        assertEquals("2", body(refreshed));
+    }
+
+    @Test
+    public void testRefreshRequest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CachingHandler h = new CachingHandler(req -> {
+            String body = req.route + " " + req.params + " " + calls.incrementAndGet();
+            // Handlers may add to the params, the refresh must not see it.
+            req.params.add("extra");
+            return Responses.respond(body);
+        }, 1, 60000, CachingHandler.DEFAULT_MAX_BYTES, Runnable::run);
+        RequestHandler.Aggregate.Builder b = new RequestHandler.Aggregate.Builder();
+        b.add(Http.Method.GET, "/report/(\\w+)", h);
+        RequestHandler.Aggregate routes = b.build();
+        assertEquals("/report/(\\w+) [a] 1", body(routes.handle(request("/report/a"))));
+        Thread.sleep(5);
+        Request stale = request("/report/a");
+        // The stale response is served and refreshed with the params of the route.
+        assertEquals("/report/(\\w+) [a] 1", body(routes.handle(stale)));
+        assertEquals(1, stale.params.size());
+        assertEquals("/report/(\\w+) [a] 2", body(routes.handle(request("/report/a"))));
+    }
+
+    @Test
+    public void testSlowLoad() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch hung = new CountDownLatch(1);
+        CachingHandler h = new CachingHandler(req -> {
+            int n = calls.incrementAndGet();
+            if (n == 1) {
+                try {
+                    hung.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Responses.respond("" + n);
+        }, 50);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Response> first = pool.submit(() -> h.handle(request("/report")));
+            while (calls.get() == 0) {
+                Thread.sleep(1);
+            }
+            // Waits for the running load no longer than the ttl, then loads itself.
+            assertEquals("2", body(h.handle(request("/report"))));
+            hung.countDown();
+            assertEquals("1", body(first.get(5, TimeUnit.SECONDS)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescedMisses() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch waiting = new CountDownLatch(1);
+        CachingHandler h = new CachingHandler(req -> {
+            try {
+                waiting.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Responses.respond("" + calls.incrementAndGet());
+        }, 60000);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                responses.add(pool.submit(() -> h.handle(request("/report"))));
+            }
+            Thread.sleep(100);
+            waiting.countDown();
+            for (Future<Response> f : responses) {
+                assertEquals("1", body(f.get(5, TimeUnit.SECONDS)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        CachingHandler h = new CachingHandler(req -> new Responses.RawResponse(new byte[1000], null),
+                60000, 0, 3 * (1000 + CachingHandler.ENTRY_OVERHEAD + 20), Runnable::run);
+        for (int i = 0; i < 5; ++i) {
+            h.handle(request("/" + i));
+        }
+        assertEquals(3, h.size());
+        assertEquals(2, h.evictions());
+        assertTrue(h.bytes() <= 3 * (1000 + CachingHandler.ENTRY_OVERHEAD + 20));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class CompressionHandlerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    static Request request(String acceptEncoding) throws IOException {
+        String req = "GET /a.css HTTP/1.1\r\n"
+                + (acceptEncoding == null ? "" : "Accept-Encoding: " + acceptEncoding + "\r\n")
+                + "\r\n";
+        return new Request(new ByteArrayInputStream(req.getBytes()));
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertEquals("gzip", CompressionHandler.negotiate("gzip, deflate, sdch"));
+        assertEquals("deflate", CompressionHandler.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", CompressionHandler.negotiate("gzip;q=0, *"));
+        assertNull(CompressionHandler.negotiate("br, identity"));
+        assertNull(CompressionHandler.negotiate(null));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        File f = folder.newFile("a.css");
+        byte[] data = new byte[10000];
+        Arrays.fill(data, (byte) 'a');
+        Files.write(f.toPath(), data);
+        CompressionHandler h = new CompressionHandler(req -> Responses.respond(f));
+        Response gz = h.handle(request("gzip"));
+        assertEquals("gzip", gz.header("Content-Encoding"));
+        assertEquals("Accept-Encoding", gz.header("Vary"));
+        assertEquals("text/css", gz.header("Content-Type"));
+        assertSame(gz, h.handle(request("gzip")));
+        byte[] body = ((Responses.RawResponse) gz).data;
+        assertArrayEquals(data, new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes());
+        Response plain = h.handle(request(null));
+        assertNull(plain.header("Content-Encoding"));
+        assertEquals("Accept-Encoding", plain.header("Vary"));
+    }
+
+    @Test
+    public void testSmallAndIncompressible() throws IOException {
+        CompressionHandler h = new CompressionHandler(req -> Responses.json("{}"));
+        assertNull(h.handle(request("gzip")).header("Content-Encoding"));
+        byte[] image = new byte[10000];
+        h = new CompressionHandler(req -> new Responses.RawResponse(image, "image/png"));
+        assertNull(h.handle(request("gzip")).header("Content-Encoding"));
+    }
+
+    @Test
+    public void testSharedResponse() throws IOException {
+        Responses.RawResponse same = new Responses.RawResponse(new String(new char[5000]).replace('\0', 'a'), "text/plain");
+        CompressionHandler h = new CompressionHandler(req -> same);
+        for (int i = 0; i < 2; ++i) {
+            Response r = h.handle(request(null));
+            assertNotSame(same, r);
+            assertEquals(1, count(r, "Vary"));
+        }
+        assertNull(same.header("Vary"));
+    }
+
+    static int count(Response r, String name) {
+        int n = 0;
+        for (int i = 0; i < r.headerCount(); ++i) {
+            if (r.headerName(i).equalsIgnoreCase(name)) {
+                ++n;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConditionalTest {
+
+    static final long DATE = 784111777000L;
+
+    static Request request(String... headers) throws IOException {
+        StringBuilder req = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (String h : headers) {
+            req.append(h).append("\r\n");
+        }
+        req.append("\r\n");
+        return new Request(new ByteArrayInputStream(req.toString().getBytes()));
+    }
+
+    @Test
+    public void testDates() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", Conditional.formatDate(DATE + 999));
+        assertEquals(DATE, Conditional.parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(DATE, Conditional.parseDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(DATE, Conditional.parseDate("Sun Nov  6 08:49:37 1994"));
+        assertEquals(DATE, Conditional.parseDate("Sun, 06 Nov 1994 09:49:37 CET"));
+        assertEquals(-1, Conditional.parseDate("yesterday"));
+        assertEquals(-1, Conditional.parseDate("Sun, 31 Nov 1994 08:49:37 GMT"));
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(Conditional.matches("\"a\"", "\"a\"", true));
+        assertTrue(Conditional.matches("\"x\", W/\"a\"", "\"a\"", false));
+        assertFalse(Conditional.matches("W/\"a\"", "\"a\"", true));
+        assertFalse(Conditional.matches("\"a\"", "W/\"a\"", true));
+        assertTrue(Conditional.matches("\"a\"", "W/\"a\"", false));
+        assertFalse(Conditional.matches("\"ab\"", "\"a\"", false));
+        assertTrue(Conditional.matches("*", "\"a\"", true));
+        assertFalse(Conditional.matches("*", null, false));
+    }
+
+    @Test
+    public void testBody() throws IOException {
+        // Bodies are only hashed for requests with a precondition.
+        Response r = Responses.respond("hello");
+        assertSame(r, Conditional.evaluate(request(), r));
+        assertSame(r, Conditional.evaluate(request("If-None-Match: \"other\""), r));
+        assertNull(r.header("ETag"));
+        String etag = Conditional.etag("hello".getBytes());
+
+        Response nm = Conditional.evaluate(request("If-None-Match: W/" + etag), Responses.respond("hello"));
+        assertEquals(Http.Status.NOT_MODIFIED, nm.status);
+        assertEquals("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\nConnection: close\r\n\r\n",
+                ResponseTest.send(nm, false));
+
+        assertEquals(Http.Status.PRECONDITION_FAILED,
+                Conditional.evaluate(request("If-Match: \"other\""), Responses.respond("hello")).status);
+        Response shared = new Responses.RawResponse("hello", null).seal();
+        assertEquals(Http.Status.NOT_MODIFIED, Conditional.evaluate(request("If-None-Match: " + etag), shared).status);
+        assertNull(shared.header("ETag"));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        File f = File.createTempFile("conditional", ".txt");
+        f.deleteOnExit();
+        Files.write(f.toPath(), "0123456789".getBytes());
+        f.setLastModified(DATE + 500);
+        Response file = Responses.respond(f);
+        String etag = file.header("ETag");
+        assertEquals(Conditional.etag(10, DATE + 500), etag);
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", file.header("Last-Modified"));
+
+        String[][] cases = {
+            {"If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT"},
+            {"If-Modified-Since: Sun, 06 Nov 1994 08:49:38 GMT"},
+            {"If-None-Match: " + etag},
+            {"If-None-Match: \"other\", " + etag, "If-Modified-Since: Sun, 06 Nov 1994 08:49:36 GMT"},};
+        for (String[] headers : cases) {
+            Response r = Conditional.evaluate(request(headers), Responses.respond(f));
+            assertEquals(headers[0], Http.Status.NOT_MODIFIED, r.status);
+            assertEquals(etag, r.header("ETag"));
+            assertEquals("Public", r.header("Cache-Control"));
+        }
+        String[][] sent = {
+            {"If-Modified-Since: Sun, 06 Nov 1994 08:49:36 GMT"},
+            {"If-Modified-Since: not a date"},
+            // If-None-Match takes precedence over a matching date.
+            {"If-None-Match: \"other\"", "If-Modified-Since: Sun, 06 Nov 1994 08:49:38 GMT"},};
+        for (String[] headers : sent) {
+            assertEquals(headers[0], Http.Status.SUCCESS, Conditional.evaluate(request(headers), Responses.respond(f)).status);
+        }
+        assertEquals(Http.Status.PRECONDITION_FAILED, Conditional.evaluate(
+                request("If-Unmodified-Since: Sun, 06 Nov 1994 08:49:36 GMT"), Responses.respond(f)).status);
+        assertEquals(Http.Status.SUCCESS, Conditional.evaluate(
+                request("If-Match: " + etag), Responses.respond(f)).status);
+
+        assertEquals(Http.Status.PARTIAL_CONTENT,
+                Responses.ranges(request("Range: bytes=0-1", "If-Range: " + etag), Responses.respond(f)).status);
+        assertEquals(Http.Status.SUCCESS,
+                Responses.ranges(request("Range: bytes=0-1", "If-Range: W/" + etag), Responses.respond(f)).status);
+        assertEquals(Http.Status.PARTIAL_CONTENT, Responses.ranges(
+                request("Range: bytes=0-1", "If-Range: Sun, 06 Nov 1994 08:49:37 GMT"), Responses.respond(f)).status);
+
+        assertEquals(Http.Status.NOT_MODIFIED, Responses.notModified(
+                request("If-None-Match: " + etag), etag, DATE).status);
+        assertNull(Responses.notModified(request(), etag, DATE));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class FileCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    File file(String name, int size) throws IOException {
+        File f = folder.newFile(name);
+        Files.write(f.toPath(), new byte[size]);
+        return f;
+    }
+
+    @Test
+    public void testHits() throws IOException {
+        FileCache cache = new FileCache(1 << 20);
+        File f = file("a.css", 100);
+        Response first = cache.respond(f);
+        assertSame(first, cache.respond(f));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertEquals("text/css", first.header("Content-Type"));
+        assertSame(Responses.notFound(), cache.respond(new File(folder.getRoot(), "missing.css")));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        FileCache cache = new FileCache(3 * (1000 + FileCache.ENTRY_OVERHEAD));
+        File a = file("a.js", 1000), b = file("b.js", 1000), c = file("c.js", 1000), d = file("d.js", 1000);
+        cache.respond(a);
+        cache.respond(b);
+        cache.respond(c);
+        cache.respond(a);
+        cache.respond(d);
+        assertEquals(1, cache.evictions());
+        assertEquals(3, cache.size());
+        cache.respond(a);
+        assertEquals(2, cache.hits());
+        cache.respond(b);
+        assertEquals(5, cache.misses());
+    }
+
+    @Test
+    public void testRevalidation() throws IOException {
+        FileCache cache = new FileCache(1 << 20, 1 << 10, 0);
+        File f = file("a.html", 100);
+        Response first = cache.respond(f);
+        Files.write(f.toPath(), new byte[200]);
+        assertNotSame(first, cache.respond(f));
+        assertEquals("200", cache.respond(f).header("Content-Length"));
+        assertTrue(cache.respond(file("big.html", 2000)) instanceof Responses.FileResponse);
+    }
+
+    @Test
+    public void testLargeFile() throws IOException {
+        FileCache cache = new FileCache(1 << 20, 1 << 10, 60000);
+        File big = file("big.js", 2000);
+        for (int i = 0; i < 3; ++i) {
+            Response r = cache.respond(big);
+            assertTrue(r instanceof Responses.FileResponse);
+            assertEquals("2000", r.header("Content-Length"));
+        }
+        // Looked up once, then remembered as too large to cache.
+        assertEquals(1, cache.misses());
+        assertEquals(0, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        FileCache cache = new FileCache(1 << 20);
+        File f = folder.newFile("a.txt");
+        Files.write(f.toPath(), "0123456789".getBytes());
+        Response cached = cache.respond(f);
+        assertEquals("bytes", cached.header("Accept-Ranges"));
+        Request req = new Request(new java.io.ByteArrayInputStream("GET / HTTP/1.1\r\nRange: bytes=2-4\r\n\r\n".getBytes()));
+        String res = ResponseTest.send(Responses.ranges(req, cache.respond(f)), false);
+        assertTrue(res.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue(res.contains("Content-Range: bytes 2-4/10\r\n"));
+        assertTrue(res.endsWith("\r\n\r\n234"));
+        // Dynamic bodies don't advertise ranges and are sent whole.
+        Response raw = Responses.respond("0123456789");
+        assertSame(raw, Responses.ranges(req, raw));
+    }
+}
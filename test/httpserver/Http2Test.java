@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class Http2Test {
+
+    static final int PORT = 18098;
+
+    static byte[] hex(String s) {
+        s = s.replace(" ", "");
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+    static List<String> decode(Hpack.Decoder decoder, String block) throws IOException {
+        byte[] b = hex(block);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(b, 0, b.length, fields);
+        return fields;
+    }
+
+    /**
+     * The requests with Huffman coding from RFC 7541, appendix C.4.
+     */
+    @Test
+    public void testHpack() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache"),
+                decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.encodeStatus(out, 200);
+        Hpack.encodeStatus(out, 413);
+        Hpack.encode(out, "content-type", "text/plain");
+        Hpack.encode(out, "x-long", new String(new char[300]).replace('\0', 'x'));
+        byte[] b = out.toByteArray();
+        List<String> fields = new ArrayList<>();
+        new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(b, 0, b.length, fields);
+        assertEquals(Arrays.asList(":status", "200", ":status", "413", "content-type", "text/plain",
+                "x-long", new String(new char[300]).replace('\0', 'x')), fields);
+
+        try {
+            decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "be");
+            fail("Index into an empty dynamic table.");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    static Server start(int port, Server.Engine engine, CountDownLatch together) throws IOException {
+        Server server = Server.create(port, engine);
+        server.start(req -> {
+            switch (req.path) {
+                case "/together":
+                    together.countDown();
+                    try {
+                        return Responses.respond(together.await(5, TimeUnit.SECONDS) ? "together" : "alone");
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return Responses.serverError();
+                    }
+                case "/large":
+                    return new Responses.RawResponse(new byte[1 << 20], "application/octet-stream");
+                case "/stream":
+                    return new Responses.StreamingResponse("text/plain") {
+                        @Override
+                        protected void writeBody(OutputStream out) throws IOException {
+                            for (int i = 0; i < 1000; ++i) {
+                                out.write(("line " + i + "\n").getBytes());
+                            }
+                        }
+                    };
+                case "/echo":
+                    try {
+                        return new Responses.RawResponse(req.body().readAllBytes(), "text/plain");
+                    } catch (IOException e) {
+                        return Responses.serverError();
+                    }
+                case "/headers":
+                    return Responses.respond(req.protocol + " " + req.host + " " + req.cookies.get("b"));
+                default:
+                    return Responses.notFound();
+            }
+        });
+        return server;
+    }
+
+    static void client(int port, Server.Engine engine) throws Exception {
+        CountDownLatch together = new CountDownLatch(4);
+        Server server = start(port, engine, together);
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            String base = "http://localhost:" + port;
+            // The first request upgrades the connection, the others are streams on it.
+            HttpResponse<String> first = client.send(HttpRequest.newBuilder(URI.create(base + "/headers"))
+                    .header("Cookie", "a=1; b=2").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(HttpClient.Version.HTTP_2, first.version());
+            assertEquals("HTTP/1.1 localhost:" + port + " 2", first.body());
+
+            HttpResponse<String> h2 = client.send(HttpRequest.newBuilder(URI.create(base + "/headers"))
+                    .header("Cookie", "a=1; b=2").build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(HttpClient.Version.HTTP_2, h2.version());
+            assertEquals("HTTP/2.0 localhost:" + port + " 2", h2.body());
+
+            List<CompletableFuture<HttpResponse<String>>> concurrent = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                concurrent.add(client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/together")).build(),
+                        HttpResponse.BodyHandlers.ofString()));
+            }
+            for (CompletableFuture<HttpResponse<String>> f : concurrent) {
+                assertEquals("together", f.get(10, TimeUnit.SECONDS).body());
+            }
+
+            byte[] body = new byte[200000];
+            Arrays.fill(body, (byte) 'b');
+            HttpResponse<byte[]> echo = client.send(HttpRequest.newBuilder(URI.create(base + "/echo"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertArrayEquals(body, echo.body());
+
+            HttpResponse<byte[]> large = client.send(HttpRequest.newBuilder(URI.create(base + "/large")).build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(1 << 20, large.body().length);
+            assertEquals("1048576", large.headers().firstValue("content-length").get());
+
+            HttpResponse<String> stream = client.send(HttpRequest.newBuilder(URI.create(base + "/stream")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertTrue(stream.body().startsWith("line 0\nline 1\n"));
+            assertTrue(stream.body().endsWith("line 999\n"));
+            assertFalse(stream.headers().firstValue("transfer-encoding").isPresent());
+
+            HttpResponse<String> missing = client.send(HttpRequest.newBuilder(URI.create(base + "/missing")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(404, missing.statusCode());
+            assertEquals(HttpClient.Version.HTTP_2, missing.version());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        client(PORT, Server.Engine.BLOCKING);
+        client(PORT + 1, Server.Engine.SELECTOR);
+    }
+
+    static void frame(OutputStream out, int type, int flags, int stream, byte[] payload) throws IOException {
+        byte[] head = new byte[9];
+        head[0] = (byte) (payload.length >>> 16);
+        head[1] = (byte) (payload.length >>> 8);
+        head[2] = (byte) payload.length;
+        head[3] = (byte) type;
+        head[4] = (byte) flags;
+        Http2Connection.putInt32(head, 5, stream);
+        out.write(head);
+        out.write(payload);
+    }
+
+    static void priorKnowledge(int port, Server.Engine engine) throws Exception {
+        Server server = start(port, engine, new CountDownLatch(0));
+        try (Socket s = new Socket("localhost", port)) {
+            OutputStream out = s.getOutputStream();
+            out.write(Http2Connection.PREFACE);
+            frame(out, Http2Connection.SETTINGS, 0, 0, new byte[0]);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            Hpack.encode(block, ":method", "GET");
+            Hpack.encode(block, ":scheme", "http");
+            Hpack.encode(block, ":path", "/headers");
+            Hpack.encode(block, ":authority", "example.com");
+            frame(out, Http2Connection.HEADERS, Http2Connection.END_HEADERS | Http2Connection.END_STREAM, 1,
+                    block.toByteArray());
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            List<String> fields = new ArrayList<>();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            boolean end = false, settings = false;
+            while (!end) {
+                byte[] head = new byte[9];
+                in.readFully(head);
+                int length = (head[0] & 0xff) << 16 | (head[1] & 0xff) << 8 | head[2] & 0xff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int type = head[3], flags = head[4], stream = Http2Connection.int32(head, 5);
+                if (type == Http2Connection.SETTINGS && flags == 0) {
+                    settings = true;
+                } else if (type == Http2Connection.HEADERS) {
+                    assertEquals(1, stream);
+                    decoder.decode(payload, 0, length, fields);
+                } else if (type == Http2Connection.DATA) {
+                    assertEquals(1, stream);
+                    body.write(payload);
+                    end = (flags & Http2Connection.END_STREAM) != 0;
+                }
+            }
+            assertTrue(settings);
+            assertEquals(":status", fields.get(0));
+            assertEquals("200", fields.get(1));
+            assertEquals("HTTP/2.0 example.com null", body.toString());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPriorKnowledge() throws Exception {
+        priorKnowledge(PORT + 2, Server.Engine.BLOCKING);
+        priorKnowledge(PORT + 3, Server.Engine.SELECTOR);
+    }
+
+    /**
+     * Posts a body to /echo on a stream.
+     * @return the status and the body of the response
+     */
+    static String post(OutputStream out, DataInputStream in, Hpack.Decoder decoder, int stream, int size)
+            throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.encode(block, ":method", "POST");
+        Hpack.encode(block, ":scheme", "http");
+        Hpack.encode(block, ":path", "/echo");
+        frame(out, Http2Connection.HEADERS, Http2Connection.END_HEADERS, stream, block.toByteArray());
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'b');
+        frame(out, Http2Connection.DATA, Http2Connection.END_STREAM, stream, data);
+        out.flush();
+        List<String> fields = new ArrayList<>();
+        int length = 0;
+        while (true) {
+            byte[] head = new byte[9];
+            in.readFully(head);
+            byte[] payload = new byte[(head[0] & 0xff) << 16 | (head[1] & 0xff) << 8 | head[2] & 0xff];
+            in.readFully(payload);
+            int type = head[3], flags = head[4];
+            if (Http2Connection.int32(head, 5) != stream) {
+                continue;
+            }
+            if (type == Http2Connection.HEADERS) {
+                decoder.decode(payload, 0, payload.length, fields);
+            } else if (type == Http2Connection.DATA) {
+                length += payload.length;
+            }
+            if ((flags & Http2Connection.END_STREAM) != 0 && type != Http2Connection.SETTINGS) {
+                return fields.get(1) + " " + length;
+            }
+        }
+    }
+
+    @Test
+    public void testBodyMemory() throws Exception {
+        Server server = start(PORT + 4, Server.Engine.BLOCKING, new CountDownLatch(0));
+        server.setMaxBufferedBodies(10);
+        try (Socket s = new Socket("localhost", PORT + 4)) {
+            OutputStream out = s.getOutputStream();
+            out.write(Http2Connection.PREFACE);
+            frame(out, Http2Connection.SETTINGS, 0, 0, new byte[0]);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            assertEquals("200 5", post(out, in, decoder, 1, 5));
+            assertEquals("413 0", post(out, in, decoder, 3, 100));
+            // The memory of both bodies has been given back.
+            assertEquals("200 10", post(out, in, decoder, 5, 10));
+        } finally {
+            server.stop();
+        }
+        assertEquals(1, server.metrics().values().get("httpserver_rejected_total{reason=\"body_memory\"}"), 0);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JsonWriterTest {
+
+    @Test
+    public void testEscaping() {
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", JsonWriter.toJson("a\"b\\c\n\u0001"));
+        String s = "å€😀";
+        assertArrayEquals(('"' + s + '"').getBytes(StandardCharsets.UTF_8), new JsonWriter().value(s).toByteArray());
+    }
+
+    @Test
+    public void testValues() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("n", -1234567890123L);
+        m.put("d", 1.5);
+        m.put("i", 3.0);
+        m.put("nan", Double.NaN);
+        m.put("big", new BigDecimal("1.10"));
+        m.put("b", true);
+        m.put("null", null);
+        m.put("list", Arrays.asList(1, "x", new int[]{2, 3}));
+        m.put("date", LocalDate.of(2015, 1, 2));
+        m.put("sql", java.sql.Date.valueOf("2015-01-02"));
+        m.put("bytes", new byte[]{1, 2, 3});
+        assertEquals("{\"n\":-1234567890123,\"d\":1.5,\"i\":3.0,\"nan\":null,\"big\":1.10,\"b\":true,"
+                + "\"null\":null,\"list\":[1,\"x\",[2,3]],\"date\":\"2015-01-02\",\"sql\":\"2015-01-02\","
+                + "\"bytes\":\"AQID\"}", JsonWriter.toJson(m));
+        assertEquals(String.valueOf(Long.MIN_VALUE), JsonWriter.toJson(Long.MIN_VALUE));
+    }
+
+    static class Point {
+        int x = 1, y = 2;
+    }
+
+    @Test
+    public void testSerializer() {
+        JsonWriter.register(Point.class, (p, out) -> out.beginArray().value(p.x).value(p.y).endArray());
+        assertEquals("[[1,2],[1,2]]", JsonWriter.toJson(new Point[]{new Point(), new Point()}));
+    }
+
+    @Test
+    public void testStream() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter w = new JsonWriter(bytes);
+        w.beginArray();
+        for (int i = 0; i < 10000; ++i) {
+            w.value("row");
+        }
+        w.endArray().flush();
+        assertEquals(10000 * 6 + 1, bytes.size());
+        assertEquals("[\"row\",\"row\"", bytes.toString().substring(0, 12));
+    }
+
+    @Test
+    public void testNestedBuilder() {
+        JsonBuilder inner = new JsonBuilder().start().append("x", 1).end();
+        JsonBuilder outer = new JsonBuilder().start().append("a", inner).end();
+        assertEquals("{\"x\":1}", inner.toString());
+        assertEquals("{\"a\":{\"x\":1}}", outer.toString());
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("b", inner);
+        assertEquals("{\"b\":{\"x\":1}}", JsonWriter.toJson(m));
+    }
+
+    @Test
+    public void testUnknownType() {
+        // Like a driver specific value from ResultSet.getObject.
+        Object driverValue = new Object() {
+            @Override
+            public String toString() {
+                return "a\"}, \"b\": {";
+            }
+        };
+        assertEquals("[\"a\\\"}, \\\"b\\\": {\"]", JsonWriter.toJson(new Object[]{driverValue}));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void testBuckets() {
+        for (long v : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE / 2}) {
+            int b = Histogram.bucket(v);
+            assertTrue(v + " above its bucket", v <= Histogram.highest(b));
+            assertTrue(v + " below its bucket", b == 0 || v > Histogram.highest(b - 1));
+            assertTrue(v + " bucket too wide", Histogram.highest(b) - v <= v / 16);
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        Histogram h = new Histogram();
+        assertArrayEquals(new long[]{0}, h.quantiles(0.5));
+        for (int i = 1; i <= 1000; ++i) {
+            h.record(i * 1000L);
+        }
+        assertEquals(1000, h.count());
+        assertEquals(500500000L, h.sum());
+        long[] q = h.quantiles(0.5, 0.99, 1);
+        assertEquals(500000, q[0], 500000 / 16);
+        assertEquals(990000, q[1], 990000 / 16);
+        assertEquals(1000000, q[2], 1000000 / 16);
+    }
+
+    @Test
+    public void testExport() throws IOException {
+        RequestHandler.Aggregate.Builder b = new RequestHandler.Aggregate.Builder();
+        b.add(Http.Method.GET, "/items/(\\d+)", req -> Responses.notFound());
+        Request rq = new Request(new ByteArrayInputStream("GET /items/7 HTTP/1.1\r\n\r\n".getBytes()));
+        b.build().handle(rq);
+        assertEquals("/items/(\\d+)", rq.route);
+
+        Metrics m = new Metrics();
+        m.record(rq.route, Http.Status.NOT_FOUND, 2_000_000, 30, 60);
+        m.record(null, Http.Status.SUCCESS, 1_000_000, 10, 20);
+        m.gauge("test_gauge", "A gauge.", () -> 42);
+        Map<String, Double> values = m.values();
+        assertEquals(2.0, values.get("httpserver_requests_total"), 0);
+        assertEquals(40.0, values.get("httpserver_received_bytes_total"), 0);
+        assertEquals(80.0, values.get("httpserver_sent_bytes_total"), 0);
+        assertEquals(1.0, values.get("httpserver_status_duration_seconds_count{status=\"404\"}"), 0);
+        assertEquals(42.0, values.get("test_gauge"), 0);
+
+        String text = m.prometheus();
+        assertTrue(text, text.contains("# TYPE httpserver_route_duration_seconds summary\n"));
+        assertTrue(text, text.contains("httpserver_route_duration_seconds_count{route=\"/items/(\\\\d+)\"} 1\n"));
+        assertTrue(text, text.contains("httpserver_route_duration_seconds_count{route=\"unrouted\"} 1\n"));
+        assertTrue(text, text.contains("httpserver_status_duration_seconds_sum{status=\"200\"} 0.001\n"));
+        assertFalse(text, text.contains("status=\"500\""));
+    }
+}
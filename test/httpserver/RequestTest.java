@@ -54,6 +54,17 @@ public class RequestTest {
         assertEquals(req.protocol, "HTTP/1.1");
     }
     
+    @Test
+    public void testKeepAlive() throws IOException {
+        assertTrue(new Request(new ByteArrayInputStream(reqString.getBytes())).keepAlive());
+        String close = "GET / HTTP/1.1\r\nConnection: close\r\n\r\n";
+        assertFalse(new Request(new ByteArrayInputStream(close.getBytes())).keepAlive());
+        String old = "GET / HTTP/1.0\r\n\r\n";
+        assertFalse(new Request(new ByteArrayInputStream(old.getBytes())).keepAlive());
+        String oldKeep = "GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n";
+        assertTrue(new Request(new ByteArrayInputStream(oldKeep.getBytes())).keepAlive());
+    }
+    
     @Test(expected=IOException.class)
     public void testSize() throws IOException {
       
@@ -70,4 +81,115 @@ public class RequestTest {
       exception.expect(IOException.class);
     }
     
+    @Test
+    public void testHeaders() throws IOException {
+        String s = "POST /form?a=1&b=2 HTTP/1.1\r\n"
+                + "host: example.com\r\n"
+                + "Cookie: id=42; theme=dark\r\n"
+                + "X-Padded:   value  \r\n"
+                + "Content-Length: 3\r\n"
+                + "\r\n"
+                + "abcGET /next HTTP/1.1\r\n\r\n";
+        InputStream in = new java.io.BufferedInputStream(new ByteArrayInputStream(s.getBytes()));
+        Request req = new Request(in);
+        assertEquals(Http.Method.POST, req.method);
+        assertEquals("/form", req.path);
+        assertEquals("a=1&b=2", req.query);
+        assertEquals("example.com", req.host);
+        assertEquals("value", req.headers.get("x-padded"));
+        assertEquals("3", req.headers.get("CONTENT-LENGTH"));
+        assertNull(req.headers.get("Missing"));
+        assertEquals(4, req.headers.size());
+        assertEquals("42", req.cookies.get("id"));
+        assertEquals("dark", req.cookies.get("theme"));
+        assertEquals("abc", new String(req.data));
+        assertEquals("/next", new Request(in).path);
+    }
+
+    static String read(InputStream in) throws IOException {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        for (int n; (n = in.read(b)) > 0;) {
+            out.write(b, 0, n);
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testStreamedBody() throws IOException {
+        int size = Request.BUFFERED_BODY_SIZE + 1;
+        String body = new String(new char[size]).replace('\0', 'x');
+        String s = "PUT /up HTTP/1.1\r\nContent-Length: " + size + "\r\n\r\n" + body
+                + "GET /next HTTP/1.1\r\n\r\n";
+        InputStream in = new java.io.BufferedInputStream(new ByteArrayInputStream(s.getBytes()));
+        Request req = new Request(in);
+        assertEquals(0, req.data.length);
+        assertEquals(size, req.contentLength());
+        assertEquals(body, read(req.body()));
+        assertTrue(req.discardBody());
+        assertEquals("/next", new Request(in).path);
+    }
+
+    @Test
+    public void testChunkedBody() throws IOException {
+        String s = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n"
+                + "GET /next HTTP/1.1\r\n\r\n";
+        InputStream in = new java.io.BufferedInputStream(new ByteArrayInputStream(s.getBytes()));
+        Request req = new Request(in);
+        assertEquals(-1, req.contentLength());
+        assertEquals("hello world", read(req.body()));
+        assertEquals("/next", new Request(in).path);
+
+        s = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nb\r\nhello world\r\n0\r\n\r\n";
+        req = new Request(new ByteArrayInputStream(s.getBytes()), 10, null);
+        exception.expect(IOException.class);
+        read(req.body());
+    }
+
+    @Test
+    public void testBodyLimits() throws IOException {
+        String s = "POST / HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world";
+        Request req = new Request(new ByteArrayInputStream(s.getBytes()), 10, null);
+        assertTrue(req.bodyTooLarge);
+        assertFalse(req.discardBody());
+        for (String bad : new String[]{
+            "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n",
+            "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 1\r\n\r\n",
+            "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\nab"}) {
+            try {
+                new Request(new ByteArrayInputStream(bad.getBytes()));
+                fail("Accepted " + bad);
+            } catch (IOException e) {
+            }
+        }
+        String conflict = "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n";
+        assertEquals(-1, SelectorEngine.contentLength(conflict.getBytes(), conflict.length()));
+        s = "POST / HTTP/1.1\r\nContent-Length: 2\r\nContent-Length: 2\r\n\r\nab";
+        assertEquals(2, new Request(new ByteArrayInputStream(s.getBytes())).contentLength());
+        assertEquals(2, SelectorEngine.contentLength(s.getBytes(), s.indexOf("\r\n\r\n")));
+    }
+
+    @Test
+    public void testChunkedEnd() {
+        byte[] b = "5\r\nhello\r\n0\r\n\r\nGET".getBytes();
+        assertEquals(b.length - 3, SelectorEngine.chunkedEnd(b, 0, b.length, 100));
+        assertEquals(SelectorEngine.INCOMPLETE, SelectorEngine.chunkedEnd(b, 0, 8, 100));
+        assertEquals(SelectorEngine.TOO_LARGE, SelectorEngine.chunkedEnd(b, 0, b.length, 4));
+        byte[] bad = "5\r\nhello!!0\r\n\r\n".getBytes();
+        assertEquals(SelectorEngine.MALFORMED, SelectorEngine.chunkedEnd(bad, 0, bad.length, 100));
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        for (String s : new String[]{"GET /\r\n\r\n", "GET / x HTTP/1.1\r\n\r\n", "FETCH / HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1\r\nNoColon\r\n\r\n"}) {
+            try {
+                new Request(new ByteArrayInputStream(s.getBytes()));
+                fail("Accepted " + s);
+            } catch (IOException e) {
+            }
+        }
+    }
+
 }
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResponseTest {
+
+    static String send(Response r, boolean keepAlive) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChannelOutput out = ChannelOutput.of(bytes);
+        r.send(out, keepAlive);
+        out.flush();
+        return bytes.toString();
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        Response r = new Response(Http.Status.MOVED_PERMANENTLY, "Location: /index.html");
+        r.addHeader("X-Test", "1");
+        assertEquals("HTTP/1.1 301 Moved Permanently\r\n"
+                + "Location: /index.html\r\n"
+                + "X-Test: 1\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n\r\n", send(r, false));
+        assertEquals("/index.html", r.header("location"));
+    }
+
+    @Test
+    public void testBody() throws IOException {
+        byte[] big = new byte[ChannelOutput.BUFFER_SIZE * 2];
+        java.util.Arrays.fill(big, (byte) 'a');
+        String res = send(new Responses.RawResponse(big, "text/plain"), true);
+        assertTrue(res.startsWith("HTTP/1.1 200 Success\r\nContent-Type: text/plain\r\n"));
+        assertTrue(res.endsWith("Connection: keep-alive\r\n\r\n" + new String(big)));
+    }
+
+    @Test
+    public void testSealed() throws IOException {
+        assertSame(Responses.notFound(), Responses.notFound());
+        assertEquals("HTTP/1.1 404 Not Found\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: keep-alive\r\n\r\n", send(Responses.notFound(), true));
+        assertEquals("HTTP/1.1 304 Not Modified\r\n"
+                + "Connection: close\r\n\r\n", send(Responses.notModified(), false));
+    }
+
+    static Response streaming(int size) {
+        return new Responses.StreamingResponse("text/plain") {
+            @Override
+            protected void writeBody(java.io.OutputStream out) throws IOException {
+                for (int i = 0; i < size; ++i) {
+                    out.write('a');
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        String res = send(streaming(ChunkedOutput.CHUNK_SIZE + 3), true);
+        String a = new String(new char[ChunkedOutput.CHUNK_SIZE]).replace('\0', 'a');
+        assertEquals("HTTP/1.1 200 Success\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Connection: keep-alive\r\n\r\n"
+                + Integer.toHexString(ChunkedOutput.CHUNK_SIZE) + "\r\n" + a + "\r\n"
+                + "3\r\naaa\r\n0\r\n\r\n", res);
+        Responses.StreamingResponse r = (Responses.StreamingResponse) streaming(3);
+        r.chunked = false;
+        assertTrue(send(r, false).endsWith("Connection: close\r\n\r\naaa"));
+    }
+
+    @Test
+    public void testParseRanges() {
+        assertArrayEquals(new long[]{0, 499}, Responses.parseRanges("bytes=0-499", 1000));
+        assertArrayEquals(new long[]{500, 999}, Responses.parseRanges("bytes=500-", 1000));
+        assertArrayEquals(new long[]{900, 999, 0, 0}, Responses.parseRanges("bytes=-100, 0-0", 1000));
+        assertArrayEquals(new long[]{990, 999}, Responses.parseRanges("bytes=990-2000", 1000));
+        assertArrayEquals(new long[0], Responses.parseRanges("bytes=1000-", 1000));
+        assertNull(Responses.parseRanges("bytes=5-1", 1000));
+        assertNull(Responses.parseRanges("items=0-1", 1000));
+        assertNull(Responses.parseRanges("bytes=a-b", 1000));
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        java.io.File f = java.io.File.createTempFile("range", ".html");
+        f.deleteOnExit();
+        java.nio.file.Files.write(f.toPath(), "0123456789".getBytes());
+        Request req = new Request(new java.io.ByteArrayInputStream("GET / HTTP/1.1\r\nRange: bytes=2-4\r\n\r\n".getBytes()));
+        String res = send(Responses.ranges(req, Responses.respond(f)), false);
+        assertTrue(res.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue(res.contains("Content-Range: bytes 2-4/10\r\n"));
+        assertTrue(res.endsWith("\r\n\r\n234"));
+        req = new Request(new java.io.ByteArrayInputStream("GET / HTTP/1.1\r\nRange: bytes=0-0,-1\r\n\r\n".getBytes()));
+        res = send(Responses.ranges(req, Responses.respond(f)), false);
+        assertTrue(res.contains("Content-Type: multipart/byteranges; boundary="));
+        assertTrue(res.contains("Content-Range: bytes 0-0/10\r\n\r\n0\r\n"));
+        assertTrue(res.contains("Content-Range: bytes 9-9/10\r\n\r\n9\r\n"));
+        int length = Integer.parseInt(res.replaceAll("(?s).*Content-Length: (\\d+).*", "$1"));
+        assertEquals(length, res.length() - res.indexOf("\r\n\r\n") - 4);
+        req = new Request(new java.io.ByteArrayInputStream("GET / HTTP/1.1\r\nRange: bytes=20-\r\n\r\n".getBytes()));
+        res = send(Responses.ranges(req, Responses.respond(f)), false);
+        assertTrue(res.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */10\r\n"));
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testSealedIsImmutable() {
+        Responses.notFound().addHeader("X-Test", "1");
+    }
+}
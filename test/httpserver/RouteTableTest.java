@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import httpserver.Http.Method;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RouteTableTest {
+
+    static Request request(Method method, String target) throws IOException {
+        String s = method + " " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        return new Request(new ByteArrayInputStream(s.getBytes()));
+    }
+
+    final Response[] responses = new Response[8];
+    final RequestHandler.Aggregate.Builder builder = new RequestHandler.Aggregate.Builder();
+    int count = 0;
+
+    void add(Method method, String regex) {
+        int i = count++;
+        responses[i] = new Response();
+        builder.add(method, regex, req -> responses[i]);
+    }
+
+    @Test
+    public void testRouting() throws IOException {
+        add(Method.GET, "/users/([^/]+)");
+        add(Method.GET, "/users/me");
+        add(Method.GET, "/users/(\\d+)/posts/([^/]*)");
+        add(Method.POST, "/users/me");
+        add(Method.GET, "/static/(.*)");
+        add(Method.GET, "/a\\.css");
+        add(Method.GET, "/");
+        RequestHandler.Aggregate routes = builder.build();
+
+        Request req = request(Method.GET, "/users/me?x=1");
+        assertSame(responses[0], routes.handle(req));
+        assertEquals(Collections.singletonList("me"), req.params);
+        assertEquals("x=1", req.query);
+
+        req = request(Method.GET, "/users/12/posts/");
+        assertSame(responses[2], routes.handle(req));
+        assertEquals(Arrays.asList("12", ""), req.params);
+        assertSame(Responses.notFound(), routes.handle(request(Method.GET, "/users/x/posts/1")));
+
+        assertSame(responses[3], routes.handle(request(Method.POST, "/users/me")));
+        req = request(Method.GET, "/static/js/app.js");
+        assertSame(responses[4], routes.handle(req));
+        assertEquals(Collections.singletonList("js/app.js"), req.params);
+        assertSame(responses[5], routes.handle(request(Method.GET, "/a.css")));
+        assertSame(Responses.notFound(), routes.handle(request(Method.GET, "/aXcss")));
+        assertSame(responses[6], routes.handle(request(Method.GET, "/")));
+        assertSame(Responses.notFound(), routes.handle(request(Method.DELETE, "/")));
+    }
+
+    @Test
+    public void testFallbackOrder() throws IOException {
+        add(Method.GET, "/(.*)");
+        add(Method.GET, "/index.html");
+        add(Method.GET, "/about");
+        RequestHandler.Aggregate routes = builder.build();
+        assertSame(responses[0], routes.handle(request(Method.GET, "/about")));
+    }
+
+    @Test
+    public void testSegments() {
+        assertEquals(Arrays.asList("", "a", "([^/]+)", "b"), RouteTable.segments("^/a/([^/]+)/b$"));
+        assertEquals(Arrays.asList("", "(?<id>[a-z0-9_]+)"), RouteTable.segments("/(?<id>[a-z0-9_]+)"));
+        assertNull(RouteTable.segments("/a/(.*)"));
+        assertNull(RouteTable.segments("/(a/b)"));
+        assertNull(RouteTable.segments("/a/?"));
+        assertNull(RouteTable.segments("/a\\/b"));
+        assertNull(RouteTable.segments("/([^a]+)"));
+        assertNull(RouteTable.segments("/([!-z]+)"));
+        assertNull(RouteTable.segments("/(\\w+)/\\1"));
+    }
+}
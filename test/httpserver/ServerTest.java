@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ServerTest {
+
+    static final int PORT = 18095;
+
+    /**
+     * Reads a response with a Content-Length.
+     * @return the body
+     */
+    static String readBody(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int length = 0;
+        while (true) {
+            int c = in.read();
+            assertNotEquals("Connection closed early.", -1, c);
+            if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+            String l = line.toString().trim();
+            line.setLength(0);
+            if (l.isEmpty()) {
+                break;
+            }
+            if (l.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Integer.parseInt(l.substring(15).trim());
+            }
+        }
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            body[i] = (byte) in.read();
+        }
+        return new String(body);
+    }
+
+    static void pipeline(int port, Server.Engine engine, int concurrency) throws Exception {
+        Server server = Server.create(port, engine);
+        server.setPipelineConcurrency(concurrency);
+        server.start(req -> {
+            try {
+                // Later requests finish first when handled concurrently.
+                Thread.sleep(50 - 10 * Integer.parseInt(req.path.substring(1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Responses.RawResponse(req.method + req.path, "text/plain");
+        });
+        try (Socket s = new Socket("localhost", port)) {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 5; ++i) {
+                if (i == 2) {
+                    requests.append("POST /2 HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+                } else {
+                    requests.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+                }
+            }
+            s.getOutputStream().write(requests.toString().getBytes());
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            for (int i = 0; i < 5; ++i) {
+                assertEquals((i == 2 ? "POST/" : "GET/") + i, readBody(in));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        pipeline(PORT, Server.Engine.BLOCKING, 1);
+        pipeline(PORT + 1, Server.Engine.SELECTOR, 1);
+        pipeline(PORT + 2, Server.Engine.SELECTOR, 4);
+    }
+
+    /**
+     * Reads what the server sends until it closes the connection.
+     */
+    static String readAll(Socket s) throws IOException {
+        s.setSoTimeout(5000);
+        return new String(s.getInputStream().readAllBytes());
+    }
+
+    static void admission(int port, Server.Engine engine) throws Exception {
+        Server server = Server.create(port, engine);
+        server.setMaxConnections(1);
+        server.setHeaderTimeout(200);
+        server.setRetryAfter(7);
+        server.start(req -> Responses.respond("ok"));
+        try (Socket first = new Socket("localhost", port)) {
+            first.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("ok", readBody(new BufferedInputStream(first.getInputStream())));
+            try (Socket second = new Socket("localhost", port)) {
+                String refused = readAll(second);
+                assertTrue(refused, refused.startsWith("HTTP/1.1 503 "));
+                assertTrue(refused, refused.contains("Retry-After: 7\r\n"));
+            }
+            // A request which never finishes its header is cut off.
+            first.getOutputStream().write("GET / HTTP/1.1\r\nHost: slow".getBytes());
+            assertEquals("", readAll(first));
+        } finally {
+            server.stop();
+        }
+        Map<String, Double> values = server.metrics().values();
+        assertEquals(1, values.get("httpserver_rejected_total{reason=\"max_connections\"}"), 0);
+        assertEquals(1, values.get("httpserver_timeouts_total{phase=\"header\"}"), 0);
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        admission(PORT + 3, Server.Engine.BLOCKING);
+        admission(PORT + 4, Server.Engine.SELECTOR);
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        ExecutorService pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+        Server server = Server.create(PORT + 5);
+        server.setExecutor(pool);
+        server.setKeepAlive(false);
+        server.start(req -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Responses.respond("ok");
+        });
+        try (Socket busy = new Socket("localhost", PORT + 5);
+                Socket queued = new Socket("localhost", PORT + 5)) {
+            busy.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            queued.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            Thread.sleep(100);
+            try (Socket refused = new Socket("localhost", PORT + 5)) {
+                assertTrue(readAll(refused).startsWith("HTTP/1.1 503 "));
+            }
+            assertTrue(readAll(busy).endsWith("ok"));
+            assertTrue(readAll(queued).endsWith("ok"));
+        } finally {
+            server.stop();
+            pool.shutdown();
+        }
+        assertEquals(1, server.metrics().values().get("httpserver_rejected_total{reason=\"queue_full\"}"), 0);
+    }
+
+    static void badRequest(int port, Server.Engine engine) throws Exception {
+        Server server = Server.create(port, engine);
+        server.start(req -> new Responses.RawResponse("ok", "text/plain"));
+        try (Socket s = new Socket("localhost", port)) {
+            s.getOutputStream().write(
+                    "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\nab".getBytes());
+            assertTrue(readAll(s).startsWith("HTTP/1.1 400 "));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConflictingLength() throws Exception {
+        badRequest(PORT + 6, Server.Engine.BLOCKING);
+        badRequest(PORT + 7, Server.Engine.SELECTOR);
+    }
+
+    @Test
+    public void testQueueDelay() {
+        long ms = 1_000_000;
+        CoDel codel = new CoDel(5 * ms, 100 * ms);
+        assertFalse(codel.shed(1 * ms, 0));
+        // A burst shorter than the interval is served.
+        assertFalse(codel.shed(20 * ms, 10 * ms));
+        assertFalse(codel.shed(20 * ms, 50 * ms));
+        assertFalse(codel.shed(2 * ms, 60 * ms));
+        // A standing queue is shed once it has lasted an interval.
+        assertFalse(codel.shed(20 * ms, 200 * ms));
+        assertFalse(codel.shed(20 * ms, 250 * ms));
+        assertTrue(codel.shed(20 * ms, 300 * ms));
+        assertTrue(codel.shed(30 * ms, 310 * ms));
+        assertFalse(codel.shed(1 * ms, 320 * ms));
+        assertFalse(codel.shed(20 * ms, 330 * ms));
+    }
+}
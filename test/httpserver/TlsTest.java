@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Random;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TlsTest {
+
+    static final int PORT = 18102;
+    static final char[] PASSWORD = "changeit".toCharArray();
+    static File keyStore, file;
+    static byte[] content;
+
+    /**
+     * Creates a self-signed certificate for localhost with keytool.
+     */
+    static File keyStore() throws IOException, InterruptedException {
+        File f = File.createTempFile("httpserver", ".p12");
+        f.delete();
+        f.deleteOnExit();
+        Process p = new ProcessBuilder(System.getProperty("java.home") + "/bin/keytool", "-genkeypair",
+                "-keystore", f.getPath(), "-storetype", "PKCS12", "-storepass", new String(PASSWORD),
+                "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1")
+                .redirectErrorStream(true).start();
+        p.getInputStream().readAllBytes();
+        if (p.waitFor() != 0) {
+            throw new IOException("keytool failed.");
+        }
+        return f;
+    }
+
+    /**
+     * @return a client context trusting the certificate of the key store
+     */
+    static SSLContext trusting(File keyStore) throws Exception {
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(KeyStore.getInstance(keyStore, PASSWORD));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        keyStore = keyStore();
+        file = File.createTempFile("httpserver", ".bin");
+        file.deleteOnExit();
+        content = new byte[3 << 20];
+        new Random(1).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    static Server start(int port, Server.Engine engine) throws Exception {
+        Server server = Server.createSecure(port, TlsConfig.fromKeyStore(keyStore, PASSWORD), engine);
+        server.start(req -> {
+            switch (req.path) {
+                case "/file":
+                    return Responses.respond(file);
+                case "/echo":
+                    try {
+                        return new Responses.RawResponse(req.body().readAllBytes(), "text/plain");
+                    } catch (IOException e) {
+                        return Responses.serverError();
+                    }
+                default:
+                    return Responses.respond(req.protocol);
+            }
+        });
+        return server;
+    }
+
+    static void client(int port, Server.Engine engine, HttpClient.Version version) throws Exception {
+        Server server = start(port, engine);
+        try {
+            HttpClient client = HttpClient.newBuilder().sslContext(trusting(keyStore)).build();
+            String base = "https://localhost:" + port;
+            for (int i = 0; i < 3; ++i) {
+                HttpResponse<String> hello = client.send(HttpRequest.newBuilder(URI.create(base + "/")).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals(version, hello.version());
+                assertEquals(version == HttpClient.Version.HTTP_2 ? "HTTP/2.0" : "HTTP/1.1", hello.body());
+            }
+
+            byte[] body = new byte[200000];
+            Arrays.fill(body, (byte) 'b');
+            HttpResponse<byte[]> echo = client.send(HttpRequest.newBuilder(URI.create(base + "/echo"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertArrayEquals(body, echo.body());
+
+            HttpResponse<byte[]> f = client.send(HttpRequest.newBuilder(URI.create(base + "/file")).build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            assertArrayEquals(content, f.body());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * The blocking engine negotiates HTTP/2 with ALPN, the selector engine
+     * HTTP/1.1 over its own SSLEngine transport.
+     */
+    @Test
+    public void testClient() throws Exception {
+        client(PORT, Server.Engine.BLOCKING, HttpClient.Version.HTTP_2);
+        client(PORT + 1, Server.Engine.SELECTOR, HttpClient.Version.HTTP_1_1);
+    }
+
+    static byte[] get(SSLContext context, int port, String protocol) throws IOException {
+        try (SSLSocket s = (SSLSocket) context.getSocketFactory().createSocket("localhost", port)) {
+            s.setEnabledProtocols(new String[]{protocol});
+            s.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes());
+            InputStream in = s.getInputStream();
+            assertTrue(new String(in.readAllBytes()).startsWith("HTTP/1.1 200 "));
+            assertEquals(protocol, s.getSession().getProtocol());
+            return s.getSession().getId();
+        }
+    }
+
+    static void resumption(int port, Server.Engine engine) throws Exception {
+        Server server = start(port, engine);
+        try {
+            SSLContext context = trusting(keyStore);
+            byte[] id = get(context, port, "TLSv1.2");
+            assertArrayEquals(id, get(context, port, "TLSv1.2"));
+            get(context, port, "TLSv1.3");
+            get(context, port, "TLSv1.3");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testResumption() throws Exception {
+        resumption(PORT + 2, Server.Engine.BLOCKING);
+        resumption(PORT + 3, Server.Engine.SELECTOR);
+    }
+}
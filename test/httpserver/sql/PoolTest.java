@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Johan Strååt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package httpserver.sql;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PoolTest {
+
+    final AtomicInteger opened = new AtomicInteger(), closed = new AtomicInteger(),
+            prepared = new AtomicInteger(), closedStatements = new AtomicInteger();
+    final AtomicBoolean valid = new AtomicBoolean(true);
+
+    PreparedStatement statement() {
+        prepared.incrementAndGet();
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        closedStatements.incrementAndGet();
+                    }
+                    return null;
+                });
+    }
+
+    Connection connection() {
+        opened.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            closed.incrementAndGet();
+                            return null;
+                        case "isValid":
+                            return valid.get();
+                        case "prepareStatement":
+                            return statement();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    Pool pool(int min, int max, long lifetime) {
+        return new Pool(this::connection, min, max, lifetime, 100, 0, 2);
+    }
+
+    @Test
+    public void testReuse() throws SQLException {
+        Pool p = pool(0, 2, 0);
+        Pool.Pooled a = p.acquire();
+        p.release(a, false);
+        assertSame(a, p.acquire());
+        assertEquals(1, opened.get());
+        ConnectionPool.Stats s = p.stats();
+        assertEquals(1, s.active);
+        assertEquals(2, s.acquired);
+    }
+
+    @Test
+    public void testBounded() throws SQLException {
+        Pool p = pool(0, 2, 0);
+        Pool.Pooled a = p.acquire();
+        p.acquire();
+        try {
+            p.acquire();
+            fail("Acquired more connections than the maximum");
+        } catch (SQLTimeoutException e) {
+        }
+        assertEquals(1, p.stats().timeouts);
+        p.release(a, false);
+        assertSame(a, p.acquire());
+        assertEquals(2, opened.get());
+    }
+
+    @Test
+    public void testBroken() throws SQLException {
+        Pool p = pool(0, 2, 0);
+        Pool.Pooled a = p.acquire();
+        valid.set(false);
+        p.release(a, true);
+        assertEquals(1, closed.get());
+        assertEquals(0, p.stats().total);
+        valid.set(true);
+        assertNotSame(a, p.acquire());
+    }
+
+    @Test
+    public void testStatementCache() throws SQLException {
+        Pool p = pool(0, 1, 0);
+        Pool.Pooled c = p.acquire();
+        PreparedStatement a = p.prepare(c, "a", 1);
+        assertSame(a, p.prepare(c, "a", 2));
+        p.prepare(c, "b");
+        p.prepare(c, "a");
+        p.prepare(c, "c");
+        assertEquals(3, prepared.get());
+        assertEquals(1, closedStatements.get());
+        assertEquals(0.4, p.stats().statementHitRate(), 1e-9);
+        p.release(c, true);
+        assertEquals(3, closedStatements.get());
+    }
+
+    @Test
+    public void testLifetime() throws Exception {
+        Pool p = pool(1, 2, 50);
+        p.maintain();
+        assertEquals(1, p.stats().idle);
+        Thread.sleep(60);
+        p.maintain();
+        assertEquals(1, closed.get());
+        assertEquals(2, opened.get());
+        assertEquals(1, p.stats().total);
+        p.close();
+        assertEquals(2, closed.get());
+    }
+}